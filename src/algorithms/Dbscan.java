@@ -1,5 +1,8 @@
 package edu.nyu.cs.pa.algorithms;
 
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.metrics.Counter;
+import edu.nyu.cs.pa.metrics.Metrics;
 import edu.nyu.cs.pa.plotting.twoDimensionalScatterPlot;
 
 import java.util.*;
@@ -7,14 +10,31 @@ import java.util.*;
 /**
  * Implementation of the DBSCAN algorithm.
  * Focus: Removing noise.
+ * <p> Neighbors are found through a {@link GridIndex} with cells eps wide, so each region query
+ * only measures the rows near the point. Clusters are grown from a queue of row indices and
+ * every row's cluster is kept in an int array, which makes a clustering close to linear in the
+ * number of rows for any number of columns.</p>
+ * <p> To try many parameter combinations on the same data, {@link #sweep(FeatureMatrix, int[], double[])}
+ * measures the neighbors once, up to the largest eps, in a {@link NeighborGraph} and answers
+ * every combination from it.</p>
  *
  * @author ppeirce
  */
 public class Dbscan {
+    /**
+     * The cluster id of rows that are not in any cluster.
+     */
+    public static final int NOISE = -1;
+    private static final int UNCLASSIFIED = -2;
+    private static final Counter REGION_QUERIES = Metrics.global().counter("dbscan_region_queries_total",
+            "Region queries answered while clustering with DBSCAN");
+
     private double eps = 1.0;
     private int minClusterSize = 2;
-    private List<Double[]> dataMatrix = null;
-    private Set<Double[]> visited = new HashSet<Double[]>();
+    private FeatureMatrix dataMatrix = null;
+    private NeighborGraph graph = null;
+    private int[] clusterIds;
+    private int numberOfClusters;
 
     /**
      * Create DBSCAN instance.
@@ -23,70 +43,227 @@ public class Dbscan {
      * @param eps The maximum distance between neighboring points
      */
     // TODO: create setters that check validity of inputs
-    public Dbscan(Double[][] inputMatrix, int clusterSize, double eps) {
-        setDataMatrix(inputMatrix);
+    public Dbscan(FeatureMatrix inputMatrix, int clusterSize, double eps) {
+        this.dataMatrix = inputMatrix;
         this.minClusterSize = clusterSize;
         this.eps = eps;
     }
 
-    private void setDataMatrix(Double[][] inputMatrix) {
-        List<Double[]> dataMatrix = new ArrayList<>();
-        Collections.addAll(dataMatrix, inputMatrix);
-        this.dataMatrix = dataMatrix;
+    /**
+     * @see #Dbscan(FeatureMatrix, int, double)
+     */
+    public Dbscan(Double[][] inputMatrix, int clusterSize, double eps) {
+        this(FeatureMatrix.fromRows(inputMatrix), clusterSize, eps);
+    }
+
+    /**
+     * Create a DBSCAN instance that takes its neighbors from a precomputed graph.
+     * @param inputMatrix The matrix the graph was built from
+     * @param graph neighbors up to at least eps
+     * @param clusterSize The number of elements required for a cluster to exist
+     * @param eps The maximum distance between neighboring points
+     */
+    public Dbscan(FeatureMatrix inputMatrix, NeighborGraph graph, int clusterSize, double eps) {
+        this(inputMatrix, clusterSize, eps);
+        if (graph.rows() != inputMatrix.rows() || eps > graph.maxEps()) {
+            throw new IllegalArgumentException("The graph must cover every row up to eps");
+        }
+        this.graph = graph;
     }
 
-    private List<Double[]> getNeighbors(Double[] sourcePoint) {
-        List<Double[]> neighbors = new ArrayList<>();
-        for (Double[] candidatePoint : dataMatrix) {
-            if (distance(sourcePoint, candidatePoint) <= eps) {
-                neighbors.add(candidatePoint);
+    /**
+     * Cluster the data matrix. A row with at least minClusterSize rows within eps of it, itself
+     * included, is a core row. Clusters are the groups of core rows that reach each other, plus
+     * the rows within eps of them. A row within reach of two clusters joins the first one found.
+     * @return the cluster id of every row, counting from 0, or {@link #NOISE}
+     */
+    public int[] clusterLabels() {
+        int rows = dataMatrix.rows();
+        RegionQuery index = (graph != null) ? graph.within(eps) : new GridIndex(dataMatrix, eps);
+        clusterIds = new int[rows];
+        Arrays.fill(clusterIds, UNCLASSIFIED);
+        numberOfClusters = 0;
+        int[] neighbors = new int[rows];
+        // every row is queued at most once, when it first joins a cluster
+        int[] queue = new int[rows];
+        long queries = 0;
+
+        for (int point = 0; point < rows; point++) {
+            if (clusterIds[point] != UNCLASSIFIED) {
+                continue;
+            }
+            int count = index.neighbors(point, neighbors);
+            queries++;
+            if (count < minClusterSize) {
+                clusterIds[point] = NOISE;
+                continue;
+            }
+            int cluster = numberOfClusters++;
+            clusterIds[point] = cluster;
+            int head = 0;
+            int tail = addToCluster(neighbors, count, cluster, queue, 0);
+            while (head < tail) {
+                int neighbor = queue[head++];
+                count = index.neighbors(neighbor, neighbors);
+                queries++;
+                if (count >= minClusterSize) {
+                    tail = addToCluster(neighbors, count, cluster, queue, tail);
+                }
             }
         }
-        return neighbors;
+        REGION_QUERIES.add(queries);
+        return clusterIds.clone();
     }
 
-    private double distance(Double[] v1, Double[] v2) {
-        double sum = 0.0;
-        for (int i = 0; i < v1.length; i++) {
-            double difference = v1[i] - v2[i];
-            sum += difference * difference;
+    /**
+     * Put the unclaimed rows among the neighbors into the cluster and queue the ones that have
+     * not been looked at yet.
+     * @return the new end of the queue
+     */
+    private int addToCluster(int[] neighbors, int count, int cluster, int[] queue, int tail) {
+        for (int i = 0; i < count; i++) {
+            int neighbor = neighbors[i];
+            if (clusterIds[neighbor] == UNCLASSIFIED) {
+                clusterIds[neighbor] = cluster;
+                queue[tail++] = neighbor;
+            } else if (clusterIds[neighbor] == NOISE) {
+                // a border row: it joins the cluster but cannot extend it
+                clusterIds[neighbor] = cluster;
+            }
         }
-        return Math.sqrt(sum);
+        return tail;
     }
 
-    private List<Double[]> merge(List<Double[]> n1, List<Double[]> n2) {
-        for (Double[] point: n2) {
-            if (!n1.contains(point)) n1.add(point);
+    /**
+     * Cluster the data matrix.
+     * @return one list of row indices per cluster
+     */
+    public List<List<Integer>> clusterIndices() {
+        int[] labels = clusterLabels();
+        List<List<Integer>> listOfNeighborGroups = new ArrayList<List<Integer>>();
+        for (int i = 0; i < numberOfClusters; i++) {
+            listOfNeighborGroups.add(new ArrayList<Integer>());
+        }
+        for (int point = 0; point < labels.length; point++) {
+            if (labels[point] != NOISE) {
+                listOfNeighborGroups.get(labels[point]).add(point);
+            }
         }
-        return n1;
+        return listOfNeighborGroups;
     }
 
+    /**
+     * Cluster the data matrix.
+     * @return one list of points per cluster
+     */
     public List<List<Double[]>> cluster() {
-        List<List<Double[]>> listOfNeighborGroups = new ArrayList<List<Double[]>>();
-        visited.clear();
-        List<Double[]> neighbors;
-        int[] labelArray = new int[dataMatrix.size()];
-
-        for (Double[] point : dataMatrix) {
-            if (!visited.contains(point)) {
-                visited.add(point);
-                neighbors = getNeighbors(point);
-                if (neighbors.size() >= minClusterSize) {
-                    for (int j = 0; j < neighbors.size(); j++) {
-                        Double[] neighbor = neighbors.get(j);
-                        if (!visited.contains(neighbor)) {
-                            visited.add(neighbor);
-                            List<Double[]> localNeighbors = getNeighbors(neighbor);
-                            if (localNeighbors.size() >= minClusterSize) {
-                                neighbors = merge(neighbors, localNeighbors);
-                            }
-                        }
+        List<List<Double[]>> clusters = new ArrayList<List<Double[]>>();
+        for (List<Integer> indices : clusterIndices()) {
+            List<Double[]> points = new ArrayList<>();
+            for (int row : indices) {
+                points.add(dataMatrix.toBoxedRow(row));
+            }
+            clusters.add(points);
+        }
+        return clusters;
+    }
+
+    /**
+     * Run DBSCAN with every combination of cluster size and eps. The distances are measured
+     * once, up to the largest eps.
+     * @param inputMatrix The matrix to be clustered
+     * @param clusterSizes
+     * @param epsValues
+     * @return one result per combination, by cluster size and then by eps
+     */
+    public static List<SweepResult> sweep(FeatureMatrix inputMatrix, int[] clusterSizes, double[] epsValues) {
+        double maxEps = 0.0;
+        for (double eps : epsValues) {
+            maxEps = Math.max(maxEps, eps);
+        }
+        NeighborGraph graph = new NeighborGraph(inputMatrix, maxEps);
+        List<SweepResult> results = new ArrayList<>();
+        for (int clusterSize : clusterSizes) {
+            for (double eps : epsValues) {
+                int[] labels = new Dbscan(inputMatrix, graph, clusterSize, eps).clusterLabels();
+                int clusters = 0;
+                int noise = 0;
+                for (int label : labels) {
+                    if (label == NOISE) {
+                        noise++;
+                    } else {
+                        clusters = Math.max(clusters, label + 1);
+                    }
+                }
+                int[] sizes = new int[clusters];
+                for (int label : labels) {
+                    if (label != NOISE) {
+                        sizes[label]++;
                     }
-                    listOfNeighborGroups.add(neighbors);
                 }
+                Arrays.sort(sizes);
+                int largest = (clusters > 0) ? sizes[clusters - 1] : 0;
+                results.add(new SweepResult(clusterSize, eps, clusters, noise, largest));
             }
         }
-        return listOfNeighborGroups;
+        return results;
+    }
+
+    /**
+     * Print a sweep as a table with one line per combination.
+     * @param results
+     */
+    public static void printSweep(List<SweepResult> results) {
+        System.out.println("minClusterSize    eps  clusters  noise  largest");
+        for (SweepResult result : results) {
+            System.out.printf("%14d %6.2f %9d %6d %8d\n", result.getMinClusterSize(), result.getEps(),
+                    result.getClusters(), result.getNoise(), result.getLargestCluster());
+        }
+    }
+
+    /**
+     * The outcome of one DBSCAN run in a sweep.
+     */
+    public static class SweepResult {
+        private final int minClusterSize;
+        private final double eps;
+        private final int clusters;
+        private final int noise;
+        private final int largestCluster;
+
+        SweepResult(int minClusterSize, double eps, int clusters, int noise, int largestCluster) {
+            this.minClusterSize = minClusterSize;
+            this.eps = eps;
+            this.clusters = clusters;
+            this.noise = noise;
+            this.largestCluster = largestCluster;
+        }
+
+        public int getMinClusterSize() {
+            return minClusterSize;
+        }
+
+        public double getEps() {
+            return eps;
+        }
+
+        public int getClusters() {
+            return clusters;
+        }
+
+        /**
+         * @return the number of rows that are not in any cluster
+         */
+        public int getNoise() {
+            return noise;
+        }
+
+        /**
+         * @return the number of rows in the largest cluster
+         */
+        public int getLargestCluster() {
+            return largestCluster;
+        }
     }
 
     public void printClusterAnalysis(List<List<Double[]>> clusters) {
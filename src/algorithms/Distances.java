@@ -0,0 +1,115 @@
+package edu.nyu.cs.pa.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * The distance kernels used by KNN, the k-d tree, KMeans and DBSCAN.
+ * <p> Every kernel returns the squared Euclidean distance. Ranking neighbors or comparing with
+ * eps squared needs no square root, so callers only take one when they need the distance
+ * itself.</p>
+ * <p> Rows are read straight from flat arrays at an offset, as stored by
+ * {@link edu.nyu.cs.pa.data.FeatureMatrix}. A {@link FeatureMask} selects the compared
+ * columns.</p>
+ * <p> Every kernel adds up the squared differences in ascending column order, so they all give
+ * exactly the same result for the same pair of rows. Brute force and indexed searches therefore
+ * find the same neighbors and break ties the same way.</p>
+ * <p> {@link #squaredDistances(double[], int, FeatureMask, double[], int, int, int, double[])}
+ * measures one query against a block of rows stored column by column. Its inner loop walks one
+ * column of consecutive rows, which the JIT compiles to SIMD instructions. Each lane holds a
+ * different row, so every row's sum is still added up in column order.</p>
+ * <p> The kernels are plain scalar loops rather than Vector API code. A vector kernel over the
+ * columns of one row would add the squared differences lane by lane and then reduce the lanes,
+ * which changes the order of the additions and so the last bits of the result. Brute force and
+ * the k-d tree would then no longer agree on ties. The Vector API is also still an incubator
+ * module that has to be added on the command line to compile and run.</p>
+ *
+ * @author ppeirce
+ */
+public final class Distances {
+
+    private Distances() {
+
+    }
+
+    /**
+     * @return the squared distance between a[aOffset, aOffset + length) and b[bOffset, bOffset + length)
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum = 0.0;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            double d0 = a[aOffset + i] - b[bOffset + i];
+            double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            sum += d0 * d0;
+            sum += d1 * d1;
+            sum += d2 * d2;
+            sum += d3 * d3;
+        }
+        for (; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the squared distance between two full rows, over the columns of the mask
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, FeatureMask features) {
+        if (features.isContiguous()) {
+            return squaredDistance(a, aOffset + features.first(), b, bOffset + features.first(), features.size());
+        }
+        double sum = 0.0;
+        for (int column : features.columns) {
+            double d = a[aOffset + column] - b[bOffset + column];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * The squared distance between a full row and a packed row that holds only the columns of
+     * the mask, one after another, as a k-d tree stores its points.
+     */
+    public static double squaredDistanceToPacked(double[] row, int rowOffset, FeatureMask features,
+                                                 double[] packed, int packedOffset) {
+        if (features.isContiguous()) {
+            return squaredDistance(row, rowOffset + features.first(), packed, packedOffset, features.size());
+        }
+        int[] columns = features.columns;
+        double sum = 0.0;
+        for (int i = 0; i < columns.length; i++) {
+            double d = row[rowOffset + columns[i]] - packed[packedOffset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * Measure one query against the rows [from, to) of a column-major matrix.
+     * @param query a full row
+     * @param queryOffset the position of the query's first column
+     * @param features the compared columns
+     * @param columnMajor all of column 0, then all of column 1, and so on, as returned by
+     * {@link edu.nyu.cs.pa.data.FeatureMatrix#columnMajor()}
+     * @param rows the number of rows in the matrix
+     * @param from
+     * @param to
+     * @param out receives the squared distance to row r at out[r - from]
+     */
+    public static void squaredDistances(double[] query, int queryOffset, FeatureMask features,
+                                        double[] columnMajor, int rows, int from, int to, double[] out) {
+        int count = to - from;
+        Arrays.fill(out, 0, count, 0.0);
+        for (int column : features.columns) {
+            double q = query[queryOffset + column];
+            int base = column * rows + from;
+            for (int i = 0; i < count; i++) {
+                double d = columnMajor[base + i] - q;
+                out[i] += d * d;
+            }
+        }
+    }
+}
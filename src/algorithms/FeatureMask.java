@@ -0,0 +1,124 @@
+package edu.nyu.cs.pa.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * The columns of a row that are compared when measuring distance.
+ * <p> KNN compares stars without their first two parameters, distance and temperature. That is
+ * {@link #range(int, int) range(2, 7)} rather than a hard-coded offset, so any subset of the
+ * parameters can be compared.</p>
+ * <p> The columns are kept in ascending order, which is the order the distance kernels sum
+ * them in.</p>
+ *
+ * @author ppeirce
+ */
+public final class FeatureMask {
+    final int[] columns;
+    private final boolean contiguous;
+
+    private FeatureMask(int[] columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("At least one column must be compared");
+        }
+        int[] sorted = columns.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 0) {
+                throw new IllegalArgumentException("Column indices cannot be negative");
+            }
+            if (i > 0 && sorted[i] == sorted[i - 1]) {
+                throw new IllegalArgumentException("Column " + sorted[i] + " is given twice");
+            }
+        }
+        this.columns = sorted;
+        this.contiguous = sorted[sorted.length - 1] - sorted[0] == sorted.length - 1;
+    }
+
+    /**
+     * @return a mask of every column of rows with the given number of columns
+     */
+    public static FeatureMask all(int columns) {
+        return range(0, columns);
+    }
+
+    /**
+     * @return a mask of the columns [from, to)
+     */
+    public static FeatureMask range(int from, int to) {
+        if (to <= from) {
+            throw new IllegalArgumentException("The range [" + from + ", " + to + ") is empty");
+        }
+        int[] columns = new int[to - from];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = from + i;
+        }
+        return new FeatureMask(columns);
+    }
+
+    /**
+     * @return a mask of the given columns, in any order
+     */
+    public static FeatureMask of(int... columns) {
+        return new FeatureMask(columns);
+    }
+
+    /**
+     * @return the number of compared columns
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * @return the i-th compared column, in ascending order
+     */
+    public int column(int i) {
+        return columns[i];
+    }
+
+    public int first() {
+        return columns[0];
+    }
+
+    /**
+     * @return the largest compared column. Rows must have more columns than this.
+     */
+    public int last() {
+        return columns[columns.length - 1];
+    }
+
+    /**
+     * @return true if the compared columns have no gaps between them
+     */
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    public boolean contains(int column) {
+        return Arrays.binarySearch(columns, column) >= 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if rows with this many columns do not have every compared column
+     */
+    void check(int rowColumns) {
+        if (last() >= rowColumns) {
+            throw new IllegalArgumentException("Column " + last() + " is compared but rows only have " + rowColumns + " columns");
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof FeatureMask && Arrays.equals(columns, ((FeatureMask) other).columns);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(columns);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(columns);
+    }
+}
@@ -0,0 +1,194 @@
+package edu.nyu.cs.pa.algorithms;
+
+import java.util.Arrays;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * Finds all rows within a fixed distance of a row, using a grid of cells at least that wide.
+ * <p> The grid covers up to three columns, the ones with the widest range. Because the distance
+ * in those columns can never exceed the full distance, every neighbor of a row lies in the row's
+ * own cell or one of the cells next to it, so a query only measures the rows in at most 27
+ * cells instead of every row in the matrix.</p>
+ * <p> The cells are stored as one array of row indices sorted by cell, with the start of each
+ * cell found by binary search over the sorted cell keys.</p>
+ * <p> A query allocates nothing: the cell coordinates it works with are kept in scratch arrays
+ * of the index, so an index must only be queried from one thread at a time.</p>
+ *
+ * @author ppeirce
+ */
+final class GridIndex implements RegionQuery {
+    private static final int MAX_GRID_COLUMNS = 3;
+    // at most 2^20 cells along a column, so three coordinates fit in a long key
+    private static final int MAX_CELLS_PER_COLUMN = 1 << 20;
+    // cells are made slightly wider than eps so that rounding in the cell coordinates cannot put
+    // two rows exactly eps apart two cells from each other
+    private static final double CELL_MARGIN = 1e-6;
+
+    private final FeatureMatrix points;
+    private final double eps;
+    private final double squaredEps;
+    private final int[] gridColumns;
+    private final double[] origin;
+    private final double[] cellSize;
+    private final long[] cellKeys;
+    private final int[] cellStart;
+    private final int[] rowsByCell;
+    // scratch space for neighbors: the cell of the row, the cell being visited and its offset
+    private final int[] center;
+    private final int[] cell;
+    private final int[] step;
+
+    /**
+     * @param points
+     * @param eps the distance used by {@link #neighbors(int, int[])}
+     */
+    GridIndex(FeatureMatrix points, double eps) {
+        if (!(eps > 0)) {
+            throw new IllegalArgumentException("eps must be positive");
+        }
+        this.points = points;
+        this.eps = eps;
+        this.squaredEps = eps * eps;
+        int rows = points.rows();
+        int columns = points.columns();
+
+        double[] min = new double[columns];
+        double[] max = new double[columns];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        double[] values = points.values();
+        for (int r = 0; r < rows; r++) {
+            int offset = points.rowOffset(r);
+            for (int c = 0; c < columns; c++) {
+                double value = values[offset + c];
+                if (value < min[c]) min[c] = value;
+                if (value > max[c]) max[c] = value;
+            }
+        }
+        gridColumns = widestColumns(min, max, Math.min(columns, MAX_GRID_COLUMNS));
+        center = new int[gridColumns.length];
+        cell = new int[gridColumns.length];
+        step = new int[gridColumns.length];
+        origin = new double[gridColumns.length];
+        cellSize = new double[gridColumns.length];
+        for (int g = 0; g < gridColumns.length; g++) {
+            int c = gridColumns[g];
+            origin[g] = (rows > 0) ? min[c] : 0.0;
+            double range = (rows > 0) ? max[c] - min[c] : 0.0;
+            cellSize[g] = Math.max(eps * (1 + CELL_MARGIN), range / (MAX_CELLS_PER_COLUMN - 1));
+        }
+
+        long[] keyOfRow = new long[rows];
+        for (int r = 0; r < rows; r++) {
+            cellCoordinates(r, center);
+            keyOfRow[r] = key(center);
+        }
+        long[] sorted = keyOfRow.clone();
+        Arrays.sort(sorted);
+        int cells = 0;
+        for (int i = 0; i < rows; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[cells++] = sorted[i];
+            }
+        }
+        cellKeys = Arrays.copyOf(sorted, cells);
+
+        // counting sort of the rows by cell
+        int[] cellOfRow = new int[rows];
+        cellStart = new int[cells + 1];
+        for (int r = 0; r < rows; r++) {
+            cellOfRow[r] = Arrays.binarySearch(cellKeys, keyOfRow[r]);
+            cellStart[cellOfRow[r] + 1]++;
+        }
+        for (int i = 0; i < cells; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        rowsByCell = new int[rows];
+        int[] next = Arrays.copyOf(cellStart, cells);
+        for (int r = 0; r < rows; r++) {
+            rowsByCell[next[cellOfRow[r]]++] = r;
+        }
+    }
+
+    double eps() {
+        return eps;
+    }
+
+    @Override
+    public int neighbors(int row, int[] result) {
+        cellCoordinates(row, center);
+        int count = 0;
+        // visit the 3^g cells around the center cell, odometer style
+        Arrays.fill(step, -1);
+        while (true) {
+            boolean inGrid = true;
+            for (int g = 0; g < center.length; g++) {
+                cell[g] = center[g] + step[g];
+                if (cell[g] < 0 || cell[g] >= MAX_CELLS_PER_COLUMN) {
+                    inGrid = false;
+                }
+            }
+            if (inGrid) {
+                int index = Arrays.binarySearch(cellKeys, key(cell));
+                if (index >= 0) {
+                    count = collect(row, index, result, count);
+                }
+            }
+            int g = 0;
+            while (g < step.length && step[g] == 1) {
+                step[g++] = -1;
+            }
+            if (g == step.length) {
+                return count;
+            }
+            step[g]++;
+        }
+    }
+
+    private int collect(int row, int cell, int[] result, int count) {
+        double[] values = points.values();
+        int columns = points.columns();
+        int offset = points.rowOffset(row);
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            int candidate = rowsByCell[i];
+            if (Distances.squaredDistance(values, offset, values, points.rowOffset(candidate), columns) <= squaredEps) {
+                result[count++] = candidate;
+            }
+        }
+        return count;
+    }
+
+    private void cellCoordinates(int row, int[] into) {
+        for (int g = 0; g < gridColumns.length; g++) {
+            into[g] = (int) ((points.get(row, gridColumns[g]) - origin[g]) / cellSize[g]);
+        }
+    }
+
+    private static long key(int[] cell) {
+        long key = 0;
+        for (int coordinate : cell) {
+            key = key * MAX_CELLS_PER_COLUMN + coordinate;
+        }
+        return key;
+    }
+
+    /**
+     * @return the indices of the columns with the largest ranges, widest first
+     */
+    private static int[] widestColumns(double[] min, double[] max, int count) {
+        boolean[] used = new boolean[min.length];
+        int[] widest = new int[count];
+        for (int i = 0; i < count; i++) {
+            int best = -1;
+            for (int c = 0; c < min.length; c++) {
+                if (!used[c] && (best < 0 || max[c] - min[c] > max[best] - min[best])) {
+                    best = c;
+                }
+            }
+            used[best] = true;
+            widest[i] = best;
+        }
+        return widest;
+    }
+}
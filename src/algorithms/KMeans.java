@@ -3,20 +3,153 @@ package edu.nyu.cs.pa.algorithms;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.metrics.Counter;
+import edu.nyu.cs.pa.metrics.Metrics;
+
+/**
+ * K-means clustering with Euclidean distance.
+ * <p> The clustering itself can be done with one of several {@link Strategy strategies}. They
+ * share the same initialization, stopping rule and results, so switching between them only
+ * changes how the work is done:</p>
+ * <ul>
+ *     <li>{@link Strategy#LLOYD} compares every row with every centroid in each iteration.</li>
+ *     <li>{@link Strategy#HAMERLY} and {@link Strategy#ELKAN} give the same clusters as Lloyd but
+ *     use the triangle inequality to skip most distance calculations once the centroids settle.
+ *     Hamerly keeps two bounds per row, Elkan keeps one per row and centroid and prunes more.
+ *     A row is only skipped when its bounds show it is strictly closer to its centroid, with a
+ *     margin for rounding, and the rows that are measured compare squared distances and give
+ *     ties to the lower centroid index as Lloyd does, so the labels and centroids are exactly
+ *     the same.</li>
+ *     <li>{@link Strategy#MINI_BATCH} moves the centroids using small random samples of the rows.
+ *     The result is approximate, but an iteration costs the same however large the data is.</li>
+ * </ul>
+ * <p> The initial centroids are chosen with k-means++ from a seeded random number generator, so
+ * a clustering can be repeated exactly. Several restarts with different seeds can be run in
+ * parallel, and the one with the lowest inertia (the sum of squared distances from each row to
+ * its centroid) is kept.</p>
+ *
+ * @author ppeirce
+ */
 public class KMeans {
-    private Double[][] dataMatrix;
-    private Double[][] centroids;
+    /**
+     * How the centroids are fitted to the data.
+     */
+    public enum Strategy {
+        LLOYD, HAMERLY, ELKAN, MINI_BATCH
+    }
+
+    private static final double CONVERGENCE_DISTANCE = 0.001;
+    // the relative margin by which a bound must clear another before a row is skipped
+    private static final double BOUND_SLACK = 1e-9;
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int MAX_MINI_BATCH_ITERATIONS = 1000;
+    private static final Counter ITERATIONS = Metrics.global().counter("kmeans_iterations_total",
+            "KMeans iterations run, across every restart");
+
+    private FeatureMatrix dataMatrix;
+    private double[][] centroids;
     private int[] labelArray;
     private int[] clusterCount;
     private int numRows;
     private int numCols;
     private int numClusters;
+    private double inertia;
+    private Strategy strategy = Strategy.LLOYD;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long seed = new Random().nextLong();
+    private int restarts = 1;
+    private int parallelism = 1;
+    private Random random;
 
-    public KMeans(Double[][] d) {
+    // reused between iterations
+    private double[][] previousCentroids;
+    private double[][] sums;
+    private int[] counts;
+    // the largest distance a centroid moved in each iteration
+    private double[] convergence = new double[0];
+    private int iterations;
+
+    public KMeans(FeatureMatrix d) {
         this.dataMatrix = d;
-        this.numRows = d.length;
-        this.numCols = d[0].length;
+        this.numRows = d.rows();
+        this.numCols = d.columns();
+    }
+
+    public KMeans(Double[][] d) {
+        this(FeatureMatrix.fromRows(d));
+    }
+
+    /**
+     * A single restart with the same data and settings as another instance.
+     */
+    private KMeans(KMeans settings, long seed) {
+        this(settings.dataMatrix);
+        this.strategy = settings.strategy;
+        this.batchSize = settings.batchSize;
+        this.seed = seed;
+    }
+
+    /**
+     * @param strategy the strategy used by the next calls to {@link #cluster(int, int)}.
+     * The default is Lloyd.
+     */
+    public void setStrategy(Strategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("A strategy is required");
+        }
+        this.strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @param batchSize the number of rows sampled in each mini-batch iteration
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param seed seeds the choice of initial centroids and mini-batch samples. Clustering the
+     * same data with the same seed and settings gives the same result. Unless this is called a
+     * random seed is used.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param restarts how many times each call to {@link #cluster(int, int)} clusters the data,
+     * from different initial centroids. The result with the lowest inertia is kept.
+     */
+    public void setRestarts(int restarts) {
+        if (restarts < 1) {
+            throw new IllegalArgumentException("At least one restart is required");
+        }
+        this.restarts = restarts;
+    }
+
+    /**
+     * @param parallelism the number of restarts run at the same time
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
     }
 
     /**
@@ -28,80 +161,442 @@ public class KMeans {
      * be created.
      * @param numberOfIterations Number of iterations. How many times clustering
      * will be performed unless the clusters converge earlier in the process.
+     * Mini-batch clustering stops after 1000 batches if this is not positive.
      */
     public void cluster(int numberOfClusters, int numberOfIterations) {
+        if (numberOfClusters < 1 || numberOfClusters > numRows) {
+            throw new IllegalArgumentException("The number of clusters must be between 1 and the number of rows");
+        }
+        // every restart gets its own seed, drawn in order so the result does not depend on timing
+        Random seeds = new Random(seed);
+        long[] restartSeeds = new long[restarts];
+        for (int r = 0; r < restarts; r++) {
+            restartSeeds[r] = seeds.nextLong();
+        }
+        if (restarts == 1) {
+            random = new Random(restartSeeds[0]);
+            clusterOnce(numberOfClusters, numberOfIterations);
+            ITERATIONS.add(iterations);
+            recordConvergence();
+            return;
+        }
+
+        List<KMeans> runs = new ArrayList<>();
+        List<Future<KMeans>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, restarts));
+        try {
+            for (int r = 0; r < restarts; r++) {
+                runs.add(new KMeans(this, restartSeeds[r]));
+                results.add(pool.submit(new Restart(runs.get(r), numberOfClusters, numberOfIterations)));
+            }
+            KMeans best = null;
+            for (Future<KMeans> result : results) {
+                KMeans run = result.get();
+                ITERATIONS.add(run.iterations);
+                // ties go to the earlier restart
+                if (best == null || run.inertia < best.inertia) {
+                    best = run;
+                }
+            }
+            numClusters = best.numClusters;
+            centroids = best.centroids;
+            labelArray = best.labelArray;
+            clusterCount = best.clusterCount;
+            inertia = best.inertia;
+            convergence = best.convergence;
+            iterations = best.iterations;
+            recordConvergence();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while clustering", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A restart failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class Restart implements Callable<KMeans> {
+        private final KMeans run;
+        private final int numberOfClusters;
+        private final int numberOfIterations;
+
+        Restart(KMeans run, int numberOfClusters, int numberOfIterations) {
+            this.run = run;
+            this.numberOfClusters = numberOfClusters;
+            this.numberOfIterations = numberOfIterations;
+        }
+
+        @Override
+        public KMeans call() {
+            run.random = new Random(run.seed);
+            run.clusterOnce(numberOfClusters, numberOfIterations);
+            return run;
+        }
+    }
+
+    private void clusterOnce(int numberOfClusters, int numberOfIterations) {
         numClusters = numberOfClusters;
+        labelArray = new int[numRows];
+        previousCentroids = new double[numClusters][numCols];
+        sums = new double[numClusters][numCols];
+        counts = new int[numClusters];
+        convergence = new double[16];
+        iterations = 0;
+
+        centroids = seedCentroids();
+
+        switch (strategy) {
+            case LLOYD:
+                lloyd(numberOfIterations);
+                break;
+            case HAMERLY:
+                hamerly(numberOfIterations);
+                break;
+            case ELKAN:
+                elkan(numberOfIterations);
+                break;
+            case MINI_BATCH:
+                miniBatch(numberOfIterations > 0 ? numberOfIterations : MAX_MINI_BATCH_ITERATIONS);
+                break;
+        }
+
+        // label the rows with the final centroids
+        inertia = labelRows();
+        clusterCount = new int[numClusters];
+        for (int label : labelArray) {
+            clusterCount[label]++;
+        }
+    }
+
+    private void recordIteration(double movement) {
+        if (iterations == convergence.length) {
+            convergence = Arrays.copyOf(convergence, iterations * 2);
+        }
+        convergence[iterations++] = movement;
+    }
+
+    /**
+     * Publish how the kept clustering converged, replacing the previous clustering's values.
+     */
+    private void recordConvergence() {
+        Metrics metrics = Metrics.global();
+        metrics.clearLabels("kmeans_convergence_delta");
+        for (int i = 0; i < iterations; i++) {
+            metrics.gauge("kmeans_convergence_delta", "The largest distance a centroid moved in each iteration of the last clustering",
+                    "iteration", Integer.toString(i + 1)).set(convergence[i]);
+        }
+        metrics.gauge("kmeans_inertia", "Inertia of the last clustering").set(inertia);
+    }
 
-        centroids = setCentroids();
+    /**
+     * Assign every row to its closest centroid.
+     * @return the sum of the squared distances from each row to its centroid
+     */
+    private double labelRows() {
+        double total = 0.0;
+        for (int i = 0; i < numRows; i++) {
+            int label = closest(i);
+            labelArray[i] = label;
+            total += squaredDist(i, centroids[label]);
+        }
+        return total;
+    }
 
-        Double[][] newCentroids = centroids;
+    private void lloyd(int numberOfIterations) {
         int round = 0;
+        double movement;
         do {
-            centroids = newCentroids;
-            labelArray = new int[numRows];
             for (int i = 0; i < numRows; i++) {
-                labelArray[i] = closest(dataMatrix[i]);
+                labelArray[i] = closest(i);
             }
-            newCentroids = updateCentroids();
+            movement = updateCentroids();
             round++;
-        } while (!((numberOfIterations > 0 && round >= numberOfIterations) || converge(centroids, newCentroids)));
+            recordIteration(movement);
+        } while (!((numberOfIterations > 0 && round >= numberOfIterations) || movement < CONVERGENCE_DISTANCE));
+    }
 
-        clusterCount = new int[numClusters];
-        for (int i = 0; i < numClusters; i++) {
-            for (int j = 0; j < numRows; j++) {
-                if (labelArray[j] == i) {
-                    clusterCount[i]++;
+    /**
+     * Hamerly's algorithm. Each row has an upper bound on the distance to its centroid and a lower
+     * bound on the distance to every other centroid. A row whose upper bound is below both its
+     * lower bound and half the distance from its centroid to the nearest other centroid cannot
+     * change cluster and is skipped.
+     */
+    private void hamerly(int numberOfIterations) {
+        double[] upper = new double[numRows];
+        double[] lower = new double[numRows];
+        double[] halfNearestCentroid = new double[numClusters];
+        double[] moved = new double[numClusters];
+        for (int i = 0; i < numRows; i++) {
+            assignWithBounds(i, upper, lower);
+        }
+        int round = 0;
+        double movement;
+        do {
+            halfDistancesToNearestCentroid(halfNearestCentroid, null);
+            for (int i = 0; i < numRows; i++) {
+                double bound = Math.max(halfNearestCentroid[labelArray[i]], lower[i]);
+                if (certainlyCloser(upper[i], bound)) {
+                    continue;
                 }
+                upper[i] = dist(i, centroids[labelArray[i]]);
+                if (certainlyCloser(upper[i], bound)) {
+                    continue;
+                }
+                assignWithBounds(i, upper, lower);
+            }
+            movement = updateCentroids(moved);
+            round++;
+            recordIteration(movement);
+
+            int farthest = 0;
+            for (int j = 1; j < numClusters; j++) {
+                if (moved[j] > moved[farthest]) farthest = j;
+            }
+            double secondFarthest = 0.0;
+            for (int j = 0; j < numClusters; j++) {
+                if (j != farthest && moved[j] > secondFarthest) secondFarthest = moved[j];
+            }
+            for (int i = 0; i < numRows; i++) {
+                int label = labelArray[i];
+                upper[i] += moved[label];
+                lower[i] -= (label == farthest) ? secondFarthest : moved[farthest];
+            }
+        } while (!((numberOfIterations > 0 && round >= numberOfIterations) || movement < CONVERGENCE_DISTANCE));
+    }
+
+    /**
+     * Find the closest and second closest centroids of a row and reset its Hamerly bounds. Ties
+     * go to the lower index, as in {@link #closest(int)}.
+     */
+    private void assignWithBounds(int row, double[] upper, double[] lower) {
+        double closest = Double.POSITIVE_INFINITY;
+        double secondClosest = Double.POSITIVE_INFINITY;
+        int label = 0;
+        for (int j = 0; j < numClusters; j++) {
+            double d = squaredDist(row, centroids[j]);
+            if (d < closest) {
+                secondClosest = closest;
+                closest = d;
+                label = j;
+            } else if (d < secondClosest) {
+                secondClosest = d;
             }
         }
+        labelArray[row] = label;
+        upper[row] = Math.sqrt(closest);
+        lower[row] = Math.sqrt(secondClosest);
     }
 
     /**
-     * Recalculate centroids by averaging the members of the cluster.
-     * @return the new centroids
+     * The bounds are built from rounded distances and movements, so they can be off in their
+     * last bits. A row is only taken to be closer to its centroid when its upper bound clears
+     * the other bound by more than that. A row exactly as far from two centroids is then always
+     * measured, and goes to the lower index as in Lloyd.
+     * @return true if a row at most upper from its centroid is closer to it than to any
+     * centroid at least bound away
      */
-    private Double[][] updateCentroids() {
-        Double[][] newCentroids = new Double[numClusters][];
-        int[] counts = new int[numClusters];
+    private static boolean certainlyCloser(double upper, double bound) {
+        return upper < bound * (1.0 - BOUND_SLACK);
+    }
 
-        // gotta initialize the nested Double[] in newCentroids to 0.0
-        for (int i = 0; i < numClusters; i++) {
-            counts[i] = 0;
-            newCentroids[i] = new Double[numCols];
-            for (int j = 0; j < numCols; j++) {
-                newCentroids[i][j] = 0.0;
+    /**
+     * Elkan's algorithm. Each row has an upper bound on the distance to its centroid and a lower
+     * bound on the distance to each centroid, so a centroid is only measured when neither its
+     * lower bound nor the distance between the two centroids rules it out.
+     * <p> The lower bounds take numRows * numClusters doubles.</p>
+     */
+    private void elkan(int numberOfIterations) {
+        double[] upper = new double[numRows];
+        double[] lower = new double[numRows * numClusters];
+        double[][] centroidDistances = new double[numClusters][numClusters];
+        double[] halfNearestCentroid = new double[numClusters];
+        double[] moved = new double[numClusters];
+        for (int i = 0; i < numRows; i++) {
+            int label = 0;
+            double closest = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < numClusters; j++) {
+                double d = squaredDist(i, centroids[j]);
+                lower[i * numClusters + j] = Math.sqrt(d);
+                if (d < closest) {
+                    closest = d;
+                    label = j;
+                }
+            }
+            labelArray[i] = label;
+            upper[i] = Math.sqrt(closest);
+        }
+        int round = 0;
+        double movement;
+        do {
+            halfDistancesToNearestCentroid(halfNearestCentroid, centroidDistances);
+            for (int i = 0; i < numRows; i++) {
+                int label = labelArray[i];
+                if (certainlyCloser(upper[i], halfNearestCentroid[label])) {
+                    continue;
+                }
+                boolean upperIsStale = true;
+                double upperSquared = 0.0;
+                int bounds = i * numClusters;
+                for (int j = 0; j < numClusters; j++) {
+                    if (j == label || certainlyCloser(upper[i], lower[bounds + j])
+                            || certainlyCloser(upper[i], 0.5 * centroidDistances[label][j])) {
+                        continue;
+                    }
+                    if (upperIsStale) {
+                        upperSquared = squaredDist(i, centroids[label]);
+                        upper[i] = Math.sqrt(upperSquared);
+                        lower[bounds + label] = upper[i];
+                        upperIsStale = false;
+                        if (certainlyCloser(upper[i], lower[bounds + j])
+                                || certainlyCloser(upper[i], 0.5 * centroidDistances[label][j])) {
+                            continue;
+                        }
+                    }
+                    double d = squaredDist(i, centroids[j]);
+                    lower[bounds + j] = Math.sqrt(d);
+                    // ties go to the lower index, as in closest()
+                    if (d < upperSquared || (d == upperSquared && j < label)) {
+                        label = j;
+                        upperSquared = d;
+                        upper[i] = lower[bounds + j];
+                    }
+                }
+                labelArray[i] = label;
+            }
+            movement = updateCentroids(moved);
+            round++;
+            recordIteration(movement);
+
+            for (int i = 0; i < numRows; i++) {
+                int bounds = i * numClusters;
+                for (int j = 0; j < numClusters; j++) {
+                    lower[bounds + j] = Math.max(lower[bounds + j] - moved[j], 0.0);
+                }
+                upper[i] += moved[labelArray[i]];
+            }
+        } while (!((numberOfIterations > 0 && round >= numberOfIterations) || movement < CONVERGENCE_DISTANCE));
+    }
+
+    /**
+     * Half the distance from each centroid to the nearest other centroid. A row closer than this
+     * to its centroid cannot be closer to any other centroid.
+     * @param half filled with the result
+     * @param distances if not null, filled with the distances between every pair of centroids
+     */
+    private void halfDistancesToNearestCentroid(double[] half, double[][] distances) {
+        Arrays.fill(half, Double.POSITIVE_INFINITY);
+        for (int a = 0; a < numClusters; a++) {
+            for (int b = a + 1; b < numClusters; b++) {
+                double d = dist(centroids[a], centroids[b]);
+                if (distances != null) {
+                    distances[a][b] = d;
+                    distances[b][a] = d;
+                }
+                if (0.5 * d < half[a]) half[a] = 0.5 * d;
+                if (0.5 * d < half[b]) half[b] = 0.5 * d;
             }
         }
+    }
+
+    /**
+     * Sculley's mini-batch k-means. Each iteration assigns a random sample of rows to their closest
+     * centroids and moves each centroid towards its sampled rows with a step that shrinks as the
+     * centroid receives more rows.
+     */
+    private void miniBatch(int numberOfIterations) {
+        int size = Math.min(batchSize, numRows);
+        int[] batch = new int[size];
+        int[] batchLabels = new int[size];
+        long[] received = new long[numClusters];
+        int round = 0;
+        double movement;
+        do {
+            for (int c = 0; c < numClusters; c++) {
+                System.arraycopy(centroids[c], 0, previousCentroids[c], 0, numCols);
+            }
+            for (int b = 0; b < size; b++) {
+                batch[b] = random.nextInt(numRows);
+                batchLabels[b] = closest(batch[b]);
+            }
+            double[] values = dataMatrix.values();
+            for (int b = 0; b < size; b++) {
+                int label = batchLabels[b];
+                double[] centroid = centroids[label];
+                double step = 1.0 / ++received[label];
+                int offset = dataMatrix.rowOffset(batch[b]);
+                for (int j = 0; j < numCols; j++) {
+                    centroid[j] += step * (values[offset + j] - centroid[j]);
+                }
+            }
+            movement = 0.0;
+            for (int c = 0; c < numClusters; c++) {
+                movement = Math.max(movement, dist(previousCentroids[c], centroids[c]));
+            }
+            round++;
+            recordIteration(movement);
+        } while (!(round >= numberOfIterations || movement < CONVERGENCE_DISTANCE));
+    }
+
+    /**
+     * @see #updateCentroids(double[])
+     */
+    private double updateCentroids() {
+        return updateCentroids(null);
+    }
+
+    /**
+     * Recalculate centroids by averaging the members of the cluster. A centroid with no
+     * members stays where it is.
+     * @param moved if not null, filled with the distance each centroid moved
+     * @return the largest distance any centroid moved
+     */
+    private double updateCentroids(double[] moved) {
+        double[] values = dataMatrix.values();
+        for (int i = 0; i < numClusters; i++) {
+            Arrays.fill(sums[i], 0.0);
+        }
+        Arrays.fill(counts, 0);
 
         // sum up the values
         for (int i = 0; i < numRows; i++) {
             int clusterId = labelArray[i];
+            double[] sum = sums[clusterId];
+            int offset = dataMatrix.rowOffset(i);
             for (int j = 0; j < numCols; j++) {
-                newCentroids[clusterId][j] += dataMatrix[i][j];
+                sum[j] += values[offset + j];
             }
             counts[clusterId]++;
         }
 
         // divide by counts to get averages
+        double movement = 0.0;
+        double[][] swap = previousCentroids;
+        previousCentroids = centroids;
+        centroids = swap;
         for (int i = 0; i < numClusters; i++) {
             for (int j = 0; j < numCols; j++) {
-                newCentroids[i][j] /= counts[i];
+                centroids[i][j] = (counts[i] > 0) ? sums[i][j] / counts[i] : previousCentroids[i][j];
             }
+            double distance = dist(previousCentroids[i], centroids[i]);
+            if (moved != null) {
+                moved[i] = distance;
+            }
+            movement = Math.max(movement, distance);
         }
-
-        return newCentroids;
+        return movement;
     }
 
     /**
-     * Determines the centroid closest to the passed vector
-     * @param v the vector being checked
-     * @return the label of the centroid closest to v
+     * Determines the centroid closest to a row of the data matrix
+     * @param row the row being checked
+     * @return the label of the centroid closest to the row
      */
-    private int closest(Double[] v) {
-        Double minDistance = dist(v, centroids[0]);
+    private int closest(int row) {
+        double minDistance = squaredDist(row, centroids[0]);
         int label = 0;
-        for (int i = 0; i < numClusters; i++) {
-            Double t = dist(v, centroids[i]);
+        for (int i = 1; i < numClusters; i++) {
+            double t = squaredDist(row, centroids[i]);
             if (minDistance > t) {
                 minDistance = t;
                 label = i;
@@ -111,54 +606,68 @@ public class KMeans {
     }
 
     /**
-     * Checks the equivalence of the two centroids by comparing the
-     * distance of their respective parameters. If the distance between
-     * each parameter is zero, the method returns true.
-     * @param c1 the first centroid
-     * @param c2 the second centroid
-     * @return a boolean denoting whether the two centroids are equivalent
+     * Calculate the Euclidean distance between the two vectors.
+     * @param v1 the first vector
+     * @param v2 the second vector
+     * @return the distance
      */
-    private boolean converge(Double[][] c1, Double[][] c2) {
-        Double maxDist = Double.MIN_VALUE;
-        for (int i = 0; i < numClusters; i++) {
-            Double distance = dist(c1[i], c2[i]);
-            if (maxDist < distance) {
-                maxDist = distance;
-            }
-        }
-        return (maxDist < 0.001);
+    private double dist(double[] v1, double[] v2) {
+        return Math.sqrt(Distances.squaredDistance(v1, 0, v2, 0, numCols));
     }
 
     /**
-     * Calculate the Euclidean distance between the two vectors.
-     * @param v1 the first vector
-     * @param v2 the second vector
-     * @return the distance as a Double
+     * Calculate the Euclidean distance between a row of the data matrix and a centroid.
+     * @param row the row of the data matrix
+     * @param centroid
+     * @return the distance
      */
-    private Double dist(Double[] v1, Double[] v2) {
-        Double sum = 0.0;
+    private double dist(int row, double[] centroid) {
+        return Math.sqrt(squaredDist(row, centroid));
+    }
 
-        for (int i = 0; i < numCols; i++) {
-            Double difference = v1[i] - v2[i];
-            sum += difference * difference;
-        }
-        return Math.sqrt(sum);
+    private double squaredDist(int row, double[] centroid) {
+        return Distances.squaredDistance(dataMatrix.values(), dataMatrix.rowOffset(row), centroid, 0, numCols);
     }
 
     /**
-     * Sets the centroids to unique members of the original data set
-     * @return a matrix of Doubles representing the centroids
+     * k-means++: the first centroid is a random row, and each following centroid is a row chosen
+     * with probability proportional to its squared distance from the closest centroid so far.
+     * @return a matrix of doubles representing the centroids
      */
-    private Double[][] setCentroids() {
-        Double[][] centroids = new Double[numClusters][];
-        List<Integer> duplicates = new ArrayList<Integer>();
-        for (int i = 0; i < numClusters; i++) {
-            int c;
-            do {
-                c = (int) (Math.random() * numRows);
-            } while (duplicates.contains(c));
-            duplicates.add(c);
-            centroids[i] = dataMatrix[c];
+    private double[][] seedCentroids() {
+        double[][] centroids = new double[numClusters][numCols];
+        double[] closestSquared = new double[numRows];
+        Arrays.fill(closestSquared, Double.POSITIVE_INFINITY);
+        int chosen = random.nextInt(numRows);
+        for (int c = 0; c < numClusters; c++) {
+            dataMatrix.copyRow(chosen, centroids[c]);
+            if (c == numClusters - 1) {
+                break;
+            }
+            double total = 0.0;
+            for (int i = 0; i < numRows; i++) {
+                double d = squaredDist(i, centroids[c]);
+                if (d < closestSquared[i]) {
+                    closestSquared[i] = d;
+                }
+                total += closestSquared[i];
+            }
+            if (total == 0.0) {
+                // every row sits on a centroid already
+                chosen = random.nextInt(numRows);
+                continue;
+            }
+            double target = random.nextDouble() * total;
+            for (int i = 0; i < numRows; i++) {
+                if (closestSquared[i] > 0.0) {
+                    // rounding can leave the target just above zero after the last row
+                    chosen = i;
+                    target -= closestSquared[i];
+                    if (target < 0.0) {
+                        break;
+                    }
+                }
+            }
         }
         return centroids;
     }
@@ -171,10 +680,32 @@ public class KMeans {
         return labelArray;
     }
 
+    /**
+     * @return the sum of the squared distances from each row to its centroid in the last clustering
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * @return the largest distance any centroid moved in each iteration of the last clustering,
+     * which falls below the convergence distance when the clustering converges
+     */
+    public double[] getConvergenceHistory() {
+        return Arrays.copyOf(convergence, iterations);
+    }
+
+    /**
+     * @return the centroids of the last clustering, one row per cluster
+     */
+    public double[][] getCentroids() {
+        return centroids;
+    }
+
     public void printCentroids() {
-        for (Double[] centroid : centroids) {
+        for (double[] centroid : centroids) {
             String c = "";
-            for (Double d : centroid) {
+            for (double d : centroid) {
                 c += d + " ";
             }
             System.out.println(c);
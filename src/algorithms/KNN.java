@@ -1,16 +1,60 @@
 package edu.nyu.cs.pa.algorithms;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.RowSource;
+import edu.nyu.cs.pa.metrics.Counter;
+import edu.nyu.cs.pa.metrics.Gauge;
+import edu.nyu.cs.pa.metrics.Metrics;
 
 public class KNN {
+    /**
+     * The first two stellar parameters (distance and temperature) are not used when
+     * measuring how similar two stars are.
+     */
+    public static final int FIRST_COMPARED_PARAMETER = 2;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+    // training rows measured at a time by the full scan
+    private static final int SCAN_BLOCK_SIZE = 1024;
+
+    private static final Counter QUERIES = Metrics.global().counter("knn_queries_total", "Observations classified by KNN");
+    private static final Gauge QUERIES_PER_SECOND = Metrics.global().gauge("knn_queries_per_second",
+            "Observations per second classified by the last KNN call");
+
+    private FeatureMask features;
 
     public KNN() {
 
     }
 
+    /**
+     * Choose the parameters that are compared. By default every parameter from
+     * {@link #FIRST_COMPARED_PARAMETER} onwards is compared.
+     * @param features applies to indexes built afterwards and to full scans
+     */
+    public void setFeatures(FeatureMask features) {
+        this.features = features;
+    }
+
+    /**
+     * @return the compared parameters of rows with the given number of columns
+     */
+    private FeatureMask featuresFor(int columns) {
+        if (features != null) {
+            return features;
+        }
+        if (columns <= FIRST_COMPARED_PARAMETER) {
+            throw new IllegalArgumentException("Points must have more than " + FIRST_COMPARED_PARAMETER + " parameters");
+        }
+        return FeatureMask.range(FIRST_COMPARED_PARAMETER, columns);
+    }
+
     /**
      *
      * @param newObservations
@@ -19,35 +63,359 @@ public class KNN {
      * @return
      */
     public int[] classify(int k, List<Double[]> newObservations, List<Double[]> trainingSet, List<Integer> clusterLabels) {
-        if (trainingSet.size() != clusterLabels.size()) {
+        if (newObservations.isEmpty()) {
+            return new int[0];
+        }
+        return classify(k, FeatureMatrix.fromRows(newObservations), FeatureMatrix.fromRows(trainingSet), clusterLabels);
+    }
+
+    /**
+     * Classify every row of newObservations by scanning the whole training set.
+     * <p> Each observation is measured against blocks of training rows at once, reading the
+     * training set column by column.</p>
+     * @param newObservations
+     * @param trainingSet
+     * @param clusterLabels must be the same size (and with matching indices) as the rows of the trainingSet
+     * @return
+     */
+    public int[] classify(int k, RowSource newObservations, FeatureMatrix trainingSet, List<Integer> clusterLabels) {
+        if (trainingSet.rows() != clusterLabels.size()) {
             throw new IllegalArgumentException("Training set and Cluster labels must be the same size");
         }
-        int[] classificationLabels = new int[newObservations.size()];
+        FeatureMask compared = featuresFor(trainingSet.columns());
+        compared.check(newObservations.columns());
+        int[] classificationLabels = new int[newObservations.rows()];
+        TopK neighbors = new TopK(k);
+        int[] votes = new int[labelCount(clusterLabels)];
+        double[] observation = new double[newObservations.columns()];
+        double[] training = trainingSet.columnMajor();
+        int rows = trainingSet.rows();
+        double[] distances = new double[Math.min(rows, SCAN_BLOCK_SIZE)];
+        long start = System.nanoTime();
 
-        for (int obs = 0; obs < newObservations.size(); obs++) {
-            List<Double> distances = new ArrayList<>();
-            Double[] csPoint = newObservations.get(obs);
-            for (Double[] tsPoint : trainingSet) {
-                distances.add(euclideanDistanceIgnoreFirstTwo(csPoint, tsPoint));
+        for (int obs = 0; obs < newObservations.rows(); obs++) {
+            newObservations.copyRow(obs, observation);
+            neighbors.reset(k);
+            for (int from = 0; from < rows; from += SCAN_BLOCK_SIZE) {
+                int to = Math.min(rows, from + SCAN_BLOCK_SIZE);
+                Distances.squaredDistances(observation, 0, compared, training, rows, from, to, distances);
+                for (int ts = from; ts < to; ts++) {
+                    neighbors.offer(ts, distances[ts - from]);
+                }
             }
+            classificationLabels[obs] = vote(neighbors, clusterLabels, votes);
+        }
+        recordQueries(classificationLabels.length, start);
 
-            // <cluster, count>
-            Map<Integer, Integer> closestNeighborsByCluster = new HashMap<>();
-            for (int i = 1; i <= k; i++){
-                int clusterOfIthNearestNeighbor = clusterLabels.get(getIthSmallestValue(i, distances));
-                if (closestNeighborsByCluster.containsKey(clusterOfIthNearestNeighbor)) {
-                    int oldValue = closestNeighborsByCluster.get(clusterOfIthNearestNeighbor);
-                    closestNeighborsByCluster.put(clusterOfIthNearestNeighbor, oldValue + 1);
-                } else {
-                    closestNeighborsByCluster.put(clusterOfIthNearestNeighbor, 1);
-                }
+        return classificationLabels;
+    }
+
+    /**
+     * Build a k-d tree over the training set that can be passed to
+     * {@link #classify(int, List, KdTree, List)} for any number of observations.
+     * @param trainingSet
+     * @return the index
+     */
+    public KdTree buildIndex(List<Double[]> trainingSet) {
+        return buildIndex(FeatureMatrix.fromRows(trainingSet));
+    }
+
+    /**
+     * @see #buildIndex(List)
+     */
+    public KdTree buildIndex(FeatureMatrix trainingSet) {
+        return new KdTree(trainingSet, featuresFor(trainingSet.columns()));
+    }
+
+    /**
+     * Classify the observations using a prebuilt index of the training set instead of
+     * scanning the whole training set for every observation.
+     * @param newObservations
+     * @param trainingIndex built with {@link #buildIndex(List)}
+     * @param clusterLabels must be the same size (and with matching indices) as the indexed trainingSet
+     * @return
+     */
+    public int[] classify(int k, List<Double[]> newObservations, KdTree trainingIndex, List<Integer> clusterLabels) {
+        if (newObservations.isEmpty()) {
+            return new int[0];
+        }
+        return classify(k, FeatureMatrix.fromRows(newObservations), trainingIndex, clusterLabels);
+    }
+
+    /**
+     * @see #classify(int, List, KdTree, List)
+     * @param newObservations a matrix on the heap or a memory-mapped {@link edu.nyu.cs.pa.data.StarCatalog}
+     */
+    public int[] classify(int k, RowSource newObservations, KdTree trainingIndex, List<Integer> clusterLabels) {
+        if (trainingIndex.size() != clusterLabels.size()) {
+            throw new IllegalArgumentException("Training set and Cluster labels must be the same size");
+        }
+        int[] classificationLabels = new int[newObservations.rows()];
+        long start = System.nanoTime();
+        classifyRange(k, newObservations, trainingIndex, clusterLabels, labelCount(clusterLabels),
+                classificationLabels, 0, newObservations.rows());
+        recordQueries(classificationLabels.length, start);
+        return classificationLabels;
+    }
+
+    /**
+     * Lay the training set out in tiles that can be passed to
+     * {@link #classify(int, RowSource, TrainingTiles, List)} for any number of observations.
+     * @param trainingSet
+     * @return the tiles
+     */
+    public TrainingTiles buildTiles(FeatureMatrix trainingSet) {
+        return new TrainingTiles(trainingSet, featuresFor(trainingSet.columns()));
+    }
+
+    /**
+     * Classify the observations a tile at a time against every training point, which suits large
+     * batches of stars better than measuring each star on its own.
+     * <p> The labels are identical to those from {@link #classify(int, RowSource, FeatureMatrix, List)}.</p>
+     * @param newObservations a matrix on the heap or a memory-mapped {@link edu.nyu.cs.pa.data.StarCatalog}
+     * @param trainingTiles built with {@link #buildTiles(FeatureMatrix)}
+     * @param clusterLabels must be the same size (and with matching indices) as the trainingSet of the tiles
+     * @return
+     */
+    public int[] classify(int k, RowSource newObservations, TrainingTiles trainingTiles, List<Integer> clusterLabels) {
+        if (trainingTiles.size() != clusterLabels.size()) {
+            throw new IllegalArgumentException("Training set and Cluster labels must be the same size");
+        }
+        int[] classificationLabels = new int[newObservations.rows()];
+        long start = System.nanoTime();
+        classifyRange(k, newObservations, trainingTiles, clusterLabels, labelCount(clusterLabels),
+                classificationLabels, 0, newObservations.rows());
+        recordQueries(classificationLabels.length, start);
+        return classificationLabels;
+    }
+
+    /**
+     * Classify the observations on several threads. Each star is classified independently, so the
+     * observations are split into chunks that are classified on a ForkJoinPool, with every chunk
+     * writing its labels directly into the shared result array.
+     * <p> The labels are identical to those from {@link #classify(int, RowSource, KdTree, List)}.</p>
+     * @param newObservations a matrix on the heap or a memory-mapped {@link edu.nyu.cs.pa.data.StarCatalog}
+     * @param trainingIndex built with {@link #buildIndex(FeatureMatrix)}
+     * @param clusterLabels must be the same size (and with matching indices) as the indexed trainingSet
+     * @param parallelism the number of threads to use
+     * @return
+     */
+    public int[] classifyInParallel(final int k, final RowSource newObservations, final KdTree trainingIndex,
+                                    final List<Integer> clusterLabels, int parallelism) {
+        if (trainingIndex.size() != clusterLabels.size()) {
+            throw new IllegalArgumentException("Training set and Cluster labels must be the same size");
+        }
+        final int labelCount = labelCount(clusterLabels);
+        return classifyInParallel(newObservations.rows(), parallelism, new RangeClassifier() {
+            @Override
+            public void classify(int[] result, int from, int to) {
+                classifyRange(k, newObservations, trainingIndex, clusterLabels, labelCount, result, from, to);
             }
-            classificationLabels[obs] = getIndexOfLargestValue(closestNeighborsByCluster);
+        });
+    }
+
+    /**
+     * @see #classifyInParallel(int, RowSource, KdTree, List, int)
+     */
+    public int[] classifyInParallel(int k, List<Double[]> newObservations, KdTree trainingIndex,
+                                    List<Integer> clusterLabels, int parallelism) {
+        if (newObservations.isEmpty()) {
+            return new int[0];
         }
+        return classifyInParallel(k, FeatureMatrix.fromRows(newObservations), trainingIndex, clusterLabels, parallelism);
+    }
+
+    /**
+     * Classify the observations on several threads, a tile at a time.
+     * <p> The labels are identical to those from {@link #classify(int, RowSource, TrainingTiles, List)}.</p>
+     * @param newObservations a matrix on the heap or a memory-mapped {@link edu.nyu.cs.pa.data.StarCatalog}
+     * @param trainingTiles built with {@link #buildTiles(FeatureMatrix)}
+     * @param clusterLabels must be the same size (and with matching indices) as the trainingSet of the tiles
+     * @param parallelism the number of threads to use
+     * @return
+     */
+    public int[] classifyInParallel(final int k, final RowSource newObservations, final TrainingTiles trainingTiles,
+                                    final List<Integer> clusterLabels, int parallelism) {
+        if (trainingTiles.size() != clusterLabels.size()) {
+            throw new IllegalArgumentException("Training set and Cluster labels must be the same size");
+        }
+        final int labelCount = labelCount(clusterLabels);
+        return classifyInParallel(newObservations.rows(), parallelism, new RangeClassifier() {
+            @Override
+            public void classify(int[] result, int from, int to) {
+                classifyRange(k, newObservations, trainingTiles, clusterLabels, labelCount, result, from, to);
+            }
+        });
+    }
 
+    private int[] classifyInParallel(int rows, int parallelism, RangeClassifier classifier) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        int[] classificationLabels = new int[rows];
+        // a few chunks per thread so that threads which finish early can steal work
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, rows / (parallelism * 4));
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ClassifyChunk(classifier, classificationLabels, 0, rows, chunkSize));
+        } finally {
+            pool.shutdown();
+        }
+        recordQueries(rows, start);
         return classificationLabels;
     }
 
+    private static void recordQueries(int queries, long start) {
+        QUERIES.add(queries);
+        long elapsed = System.nanoTime() - start;
+        if (elapsed > 0) {
+            QUERIES_PER_SECOND.set(queries / (elapsed / 1e9));
+        }
+    }
+
+    /**
+     * Classify the observations in [from, to) and write the labels into the same positions of result.
+     * @param labelCount one more than the largest cluster label
+     */
+    private void classifyRange(int k, RowSource newObservations, KdTree trainingIndex, List<Integer> clusterLabels,
+                               int labelCount, int[] result, int from, int to) {
+        TopK neighbors = new TopK(k);
+        int[] votes = new int[labelCount];
+        double[] observation = new double[newObservations.columns()];
+        for (int obs = from; obs < to; obs++) {
+            newObservations.copyRow(obs, observation);
+            trainingIndex.nearest(observation, neighbors);
+            result[obs] = vote(neighbors, clusterLabels, votes);
+        }
+    }
+
+    /**
+     * @see #classifyRange(int, RowSource, KdTree, List, int, int[], int, int)
+     */
+    private void classifyRange(int k, RowSource newObservations, TrainingTiles trainingTiles, List<Integer> clusterLabels,
+                               int labelCount, int[] result, int from, int to) {
+        TrainingTiles.Workspace workspace = new TrainingTiles.Workspace(k, newObservations.columns());
+        int[] votes = new int[labelCount];
+        for (int tile = from; tile < to; tile += workspace.capacity()) {
+            int count = Math.min(workspace.capacity(), to - tile);
+            trainingTiles.nearest(newObservations, tile, count, workspace);
+            for (int i = 0; i < count; i++) {
+                result[tile + i] = vote(workspace.neighbors(i), clusterLabels, votes);
+            }
+        }
+    }
+
+    /**
+     * Classifies a range of observations, by whichever search the caller chose.
+     */
+    private interface RangeClassifier {
+        void classify(int[] result, int from, int to);
+    }
+
+    /**
+     * Splits a range of observations in half until it is no larger than the chunk size,
+     * then classifies it.
+     */
+    private static class ClassifyChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeClassifier classifier;
+        private final int[] result;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        ClassifyChunk(RangeClassifier classifier, int[] result, int from, int to, int chunkSize) {
+            this.classifier = classifier;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                classifier.classify(result, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ClassifyChunk(classifier, result, from, mid, chunkSize),
+                    new ClassifyChunk(classifier, result, mid, to, chunkSize));
+        }
+    }
+
+    /**
+     * Classify the observations both with the index and with a full scan of the training set
+     * and report how many labels differ.
+     * <p> Both paths break ties between equally distant training points the same way, so any
+     * disagreement points to a bug in the index.</p>
+     * @return the number of observations that were given different labels
+     */
+    public int compareIndexedWithBruteForce(int k, List<Double[]> newObservations, List<Double[]> trainingSet, List<Integer> clusterLabels) {
+        return compareIndexedWithBruteForce(k, FeatureMatrix.fromRows(newObservations), FeatureMatrix.fromRows(trainingSet), clusterLabels);
+    }
+
+    /**
+     * @see #compareIndexedWithBruteForce(int, List, List, List)
+     */
+    public int compareIndexedWithBruteForce(int k, RowSource newObservations, FeatureMatrix trainingSet, List<Integer> clusterLabels) {
+        int[] bruteForce = classify(k, newObservations, trainingSet, clusterLabels);
+        int[] indexed = classify(k, newObservations, buildIndex(trainingSet), clusterLabels);
+        int mismatches = 0;
+        for (int i = 0; i < bruteForce.length; i++) {
+            if (bruteForce[i] != indexed[i]) {
+                mismatches++;
+            }
+        }
+        System.out.printf("Indexed KNN disagrees with brute force KNN on %d of %d observations\n", mismatches, bruteForce.length);
+        return mismatches;
+    }
+
+    /**
+     * @return one more than the largest cluster label, the size of the vote counts
+     * @throws IllegalArgumentException if a label is negative
+     */
+    private static int labelCount(List<Integer> clusterLabels) {
+        int largest = -1;
+        for (int label : clusterLabels) {
+            if (label < 0) {
+                throw new IllegalArgumentException("Cluster labels cannot be negative: " + label);
+            }
+            largest = Math.max(largest, label);
+        }
+        return largest + 1;
+    }
+
+    /**
+     * Count the cluster labels of the neighbors and return the most common one. Of two labels
+     * with the same count, the lower one wins.
+     * @param neighbors
+     * @param clusterLabels
+     * @param votes one count per label, all zero. Only the neighbors' labels are counted and they
+     * are set back to zero afterwards, so the same array is reused for every observation.
+     * @return
+     */
+    private static int vote(TopK neighbors, List<Integer> clusterLabels, int[] votes) {
+        for (int i = 0; i < neighbors.size(); i++) {
+            votes[clusterLabels.get(neighbors.index(i))]++;
+        }
+        int winner = 0;
+        int winnerVotes = 0;
+        for (int i = 0; i < neighbors.size(); i++) {
+            int cluster = clusterLabels.get(neighbors.index(i));
+            if (votes[cluster] > winnerVotes || (votes[cluster] == winnerVotes && cluster < winner)) {
+                winner = cluster;
+                winnerVotes = votes[cluster];
+            }
+        }
+        for (int i = 0; i < neighbors.size(); i++) {
+            votes[clusterLabels.get(neighbors.index(i))] = 0;
+        }
+        return winner;
+    }
+
     public int getIndexOfLargestValue(Map<Integer, Integer> map) {
         int largest = 0;
         int largestIndex = 0;
@@ -65,7 +433,9 @@ public class KNN {
      * @param i
      * @param l
      * @return
+     * @deprecated repeated values are skipped and every call rescans the list. Use {@link TopK}.
      */
+    @Deprecated
     public int getIthSmallestValue(int i, List<Double> l) {
         double smallest;
         int smallestIndex = 0;
@@ -84,32 +454,4 @@ public class KNN {
         }
         return smallestIndex;
     }
-
-    /**
-     * Calculate the distance between two vectors (Double arrays) of the same size
-     * @param a
-     * @param b
-     * @return the Euclidean distance between these vectors as a double primitive
-     */
-    private double euclideanDistance(Double[] a, Double[] b) {
-        if (a.length != b.length) {
-            throw new IllegalArgumentException("Arrays must be of the same length to calculate distance");
-        }
-        double sum = 0.0;
-
-        for (int i = 0; i < a.length; i++) {
-            double difference = a[i] - b[i];
-            sum += difference * difference;
-        }
-        return Math.sqrt(sum);
-    }
-
-    private double euclideanDistanceIgnoreFirstTwo(Double[] a, Double[] b) {
-        double sum = 0.0;
-        for (int i = 2; i < a.length; i++) {
-            double difference = a[i] - b[i];
-            sum += difference * difference;
-        }
-        return Math.sqrt(sum);
-    }
 }
@@ -0,0 +1,255 @@
+package edu.nyu.cs.pa.algorithms;
+
+import java.util.List;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * A k-d tree built once over a training set so that nearest neighbor queries
+ * do not have to scan every training point.
+ * <p> Only the columns of a {@link FeatureMask} are indexed. KNN ignores the first two stellar
+ * parameters (distance and temperature), so by default it builds the tree over the columns from
+ * 2 onwards.</p>
+ * <p> The tree is stored implicitly: the points are reordered in place so that every
+ * subrange [lo, hi) has its median at (lo + hi) / 2, with the smaller half to its left.
+ * No node objects are created.</p>
+ *
+ * @author ppeirce
+ */
+public class KdTree {
+    private static final int LEAF_SIZE = 8;
+
+    private final int size;
+    private final int dimensions;
+    private final FeatureMask features;
+    private final double[] coordinates;
+    private final int[] order;
+    private final int[] splitDimension;
+
+    /**
+     * Build the tree over the columns from firstDimension onwards.
+     * @param points the training set. Indices returned by queries refer to rows of this matrix.
+     * @param firstDimension the first column of each point that is taken into account
+     */
+    public KdTree(FeatureMatrix points, int firstDimension) {
+        this(points, rangeFrom(firstDimension, points.columns()));
+    }
+
+    /**
+     * Build the tree.
+     * @param points the training set. Indices returned by queries refer to rows of this matrix.
+     * @param features the columns of each point that are taken into account
+     */
+    public KdTree(FeatureMatrix points, FeatureMask features) {
+        if (points.rows() == 0) {
+            throw new IllegalArgumentException("Cannot build a tree over an empty training set");
+        }
+        features.check(points.columns());
+        this.size = points.rows();
+        this.features = features;
+        this.dimensions = features.size();
+        this.coordinates = new double[size * dimensions];
+        this.order = new int[size];
+        this.splitDimension = new int[size];
+        double[] values = points.values();
+        for (int i = 0; i < size; i++) {
+            int offset = points.rowOffset(i);
+            for (int d = 0; d < dimensions; d++) {
+                coordinates[i * dimensions + d] = values[offset + features.column(d)];
+            }
+            order[i] = i;
+        }
+        build(0, size);
+    }
+
+    private static FeatureMask rangeFrom(int firstDimension, int columns) {
+        if (firstDimension >= columns) {
+            throw new IllegalArgumentException("Points must have more than " + firstDimension + " parameters");
+        }
+        return FeatureMask.range(firstDimension, columns);
+    }
+
+    /**
+     * @see #KdTree(FeatureMatrix, int)
+     */
+    public KdTree(List<Double[]> points, int firstDimension) {
+        this(FeatureMatrix.fromRows(points), firstDimension);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the columns the tree compares
+     */
+    public FeatureMask features() {
+        return features;
+    }
+
+    /**
+     * Find the k points closest to the query.
+     * <p> Ties are broken in favor of the point with the lower index in the training set.</p>
+     * @param query a point with the same layout as the training points
+     * @param k the number of neighbors to find
+     * @return the training set indices of the nearest neighbors, closest first
+     */
+    public int[] nearest(Double[] query, int k) {
+        if (k > size) {
+            throw new IllegalArgumentException("k must be between 1 and the size of the training set");
+        }
+        TopK neighbors = new TopK(k);
+        nearest(query, neighbors);
+        int[] indices = new int[neighbors.sort()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = neighbors.index(i);
+        }
+        return indices;
+    }
+
+    /**
+     * Find the nearest points to the query.
+     * <p> The heap is reset and then filled with the neighbors.k() nearest points and their
+     * squared distances from the query. The query is copied into a primitive array first;
+     * use {@link #nearest(FeatureMatrix, int, TopK)} to avoid that.</p>
+     * @param query a point with the same layout as the training points
+     * @param neighbors the heap to fill
+     */
+    public void nearest(Double[] query, TopK neighbors) {
+        double[] point = new double[features.last() + 1];
+        for (int d = 0; d < dimensions; d++) {
+            point[features.column(d)] = query[features.column(d)];
+        }
+        neighbors.reset(neighbors.k());
+        visit(point, 0, neighbors, 0, size);
+    }
+
+    /**
+     * Find the nearest points to a query held in a primitive array, without allocating anything.
+     * <p> The heap is reset and then filled with the neighbors.k() nearest points and their
+     * squared distances from the query.</p>
+     * @param query a full row with the same layout as the training points, including the
+     * parameters that are not compared
+     * @param neighbors the heap to fill
+     */
+    public void nearest(double[] query, TopK neighbors) {
+        neighbors.reset(neighbors.k());
+        visit(query, 0, neighbors, 0, size);
+    }
+
+    /**
+     * Find the nearest points to one row of a matrix without allocating anything.
+     * <p> The heap is reset and then filled with the neighbors.k() nearest points and their
+     * squared distances from the query. The tree itself is not modified, so it can be shared
+     * between threads as long as each thread uses its own heap.</p>
+     * @param queries a matrix with the same columns as the training points
+     * @param row the row of the matrix to use as the query
+     * @param neighbors the heap to fill
+     */
+    public void nearest(FeatureMatrix queries, int row, TopK neighbors) {
+        neighbors.reset(neighbors.k());
+        visit(queries.values(), queries.rowOffset(row), neighbors, 0, size);
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int dimension = widestDimension(lo, hi);
+        select(lo, hi, mid, dimension);
+        splitDimension[mid] = dimension;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /**
+     * @return the dimension with the largest spread of values in the range [lo, hi)
+     */
+    private int widestDimension(int lo, int hi) {
+        int widest = 0;
+        double widestSpread = -1.0;
+        for (int d = 0; d < dimensions; d++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int p = lo; p < hi; p++) {
+                double value = coordinate(order[p], d);
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = d;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Quickselect: reorder the range [lo, hi) so that the point at position nth is the one
+     * that would be there if the range were sorted by the given dimension.
+     */
+    private void select(int lo, int hi, int nth, int dimension) {
+        int left = lo;
+        int right = hi - 1;
+        while (left < right) {
+            double pivot = coordinate(order[(left + right) >>> 1], dimension);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(order[i], dimension) < pivot) i++;
+                while (coordinate(order[j], dimension) > pivot) j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                right = j;
+            } else if (nth >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int point, int dimension) {
+        return coordinates[point * dimensions + dimension];
+    }
+
+    /**
+     * @param query holds a full row of the query starting at queryOffset
+     */
+    private void visit(double[] query, int queryOffset, TopK neighbors, int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int p = lo; p < hi; p++) {
+                consider(query, queryOffset, neighbors, order[p]);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int point = order[mid];
+        int dimension = splitDimension[mid];
+        consider(query, queryOffset, neighbors, point);
+        double difference = query[queryOffset + features.column(dimension)] - coordinate(point, dimension);
+        if (difference < 0) {
+            visit(query, queryOffset, neighbors, lo, mid);
+            if (difference * difference <= neighbors.worstDistance()) {
+                visit(query, queryOffset, neighbors, mid + 1, hi);
+            }
+        } else {
+            visit(query, queryOffset, neighbors, mid + 1, hi);
+            if (difference * difference <= neighbors.worstDistance()) {
+                visit(query, queryOffset, neighbors, lo, mid);
+            }
+        }
+    }
+
+    private void consider(double[] query, int queryOffset, TopK neighbors, int point) {
+        neighbors.offer(point, Distances.squaredDistanceToPacked(query, queryOffset, features, coordinates, point * dimensions));
+    }
+}
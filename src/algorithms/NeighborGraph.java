@@ -0,0 +1,164 @@
+package edu.nyu.cs.pa.algorithms;
+
+import java.util.Arrays;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * Every row's neighbors up to a maximum distance, sorted by distance.
+ * <p> The graph is built once with a {@link GridIndex} and can then answer region queries for
+ * any distance up to the maximum without measuring anything again: the neighbors within eps are
+ * a prefix of each row's list. This lets a DBSCAN parameter sweep share one set of distance
+ * calculations between all of its runs.</p>
+ * <p> The lists are stored back to back in two flat arrays, so the graph takes 12 bytes per
+ * neighbor pair, and large maximum distances on dense data produce large graphs. Squared
+ * distances are kept so that a cut at eps includes exactly the rows a direct region query with
+ * that eps would find.</p>
+ *
+ * @author ppeirce
+ */
+public class NeighborGraph {
+    private final int rows;
+    private final double maxEps;
+    private final int[] start;
+    private final int[] neighbors;
+    private final double[] squaredDistances;
+
+    /**
+     * @param points
+     * @param maxEps the largest distance that will be queried
+     */
+    public NeighborGraph(FeatureMatrix points, double maxEps) {
+        this.rows = points.rows();
+        this.maxEps = maxEps;
+        GridIndex index = new GridIndex(points, maxEps);
+        double[] values = points.values();
+        int columns = points.columns();
+        int[] found = new int[rows];
+        double[] foundDistances = new double[rows];
+
+        start = new int[rows + 1];
+        int[] edges = new int[Math.max(16, rows * 4)];
+        double[] edgeDistances = new double[edges.length];
+        int size = 0;
+        for (int row = 0; row < rows; row++) {
+            int count = index.neighbors(row, found);
+            int offset = points.rowOffset(row);
+            for (int i = 0; i < count; i++) {
+                foundDistances[i] = Distances.squaredDistance(values, offset, values, points.rowOffset(found[i]), columns);
+            }
+            sortByDistance(foundDistances, found, 0, count - 1);
+            if (size + count > edges.length) {
+                int capacity = Math.max(size + count, edges.length * 2);
+                edges = Arrays.copyOf(edges, capacity);
+                edgeDistances = Arrays.copyOf(edgeDistances, capacity);
+            }
+            System.arraycopy(found, 0, edges, size, count);
+            System.arraycopy(foundDistances, 0, edgeDistances, size, count);
+            size += count;
+            start[row + 1] = size;
+        }
+        neighbors = Arrays.copyOf(edges, size);
+        squaredDistances = Arrays.copyOf(edgeDistances, size);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public double maxEps() {
+        return maxEps;
+    }
+
+    /**
+     * @return the number of rows within eps of the row, itself included
+     */
+    public int count(int row, double eps) {
+        return end(row, eps) - start[row];
+    }
+
+    /**
+     * @return the distance from the row to its k-th nearest neighbor, counting the row itself as
+     * the first, or infinity if it has fewer than k neighbors within the maximum distance
+     */
+    public double kDistance(int row, int k) {
+        int position = start[row] + k - 1;
+        return (position < start[row + 1]) ? Math.sqrt(squaredDistances[position]) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * A region query answered from the graph.
+     * @param eps at most the maximum distance of the graph
+     */
+    RegionQuery within(final double eps) {
+        if (eps > maxEps) {
+            throw new IllegalArgumentException("eps " + eps + " is larger than the graph's " + maxEps);
+        }
+        return new RegionQuery() {
+            @Override
+            public int neighbors(int row, int[] result) {
+                int count = end(row, eps) - start[row];
+                System.arraycopy(neighbors, start[row], result, 0, count);
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @return the end of the prefix of the row's list that is within eps
+     */
+    private int end(int row, double eps) {
+        double squaredEps = eps * eps;
+        int lo = start[row];
+        int hi = start[row + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (squaredDistances[mid] <= squaredEps) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Sort [lo, hi] of the distances, moving the rows along with them.
+     */
+    private static void sortByDistance(double[] distances, int[] rows, int lo, int hi) {
+        while (hi - lo > 16) {
+            double pivot = distances[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (distances[i] < pivot) i++;
+                while (distances[j] > pivot) j--;
+                if (i <= j) {
+                    swap(distances, rows, i++, j--);
+                }
+            }
+            // recurse into the smaller side to bound the stack depth
+            if (j - lo < hi - i) {
+                sortByDistance(distances, rows, lo, j);
+                lo = i;
+            } else {
+                sortByDistance(distances, rows, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && distances[j - 1] > distances[j]; j--) {
+                swap(distances, rows, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(double[] distances, int[] rows, int a, int b) {
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+        int row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+    }
+}
@@ -0,0 +1,16 @@
+package edu.nyu.cs.pa.algorithms;
+
+/**
+ * Finds the rows within a fixed distance of a row, as DBSCAN needs.
+ *
+ * @author ppeirce
+ */
+interface RegionQuery {
+    /**
+     * Find the rows within eps of a row, including the row itself.
+     * @param row
+     * @param result receives the row indices. Must be at least as long as the number of rows.
+     * @return the number of rows written to result
+     */
+    int neighbors(int row, int[] result);
+}
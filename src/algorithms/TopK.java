@@ -0,0 +1,156 @@
+package edu.nyu.cs.pa.algorithms;
+
+/**
+ * Keeps the k smallest distances seen so far, along with the index of the point each
+ * distance belongs to.
+ * <p> Backed by a fixed-size max-heap over primitive arrays, so offering a distance costs
+ * O(log k) and nothing is allocated once the heap has been created. The same heap can be
+ * reused for every query by calling {@link #reset(int)}, which also allows k to change
+ * without creating a new heap.</p>
+ * <p> Ties are broken deterministically: of two points at the same distance, the one with
+ * the lower index is considered closer.</p>
+ * <p> Not thread safe. Use one heap per thread.</p>
+ *
+ * @author ppeirce
+ */
+public class TopK {
+    private final double[] distances;
+    private final int[] indices;
+    private int k;
+    private int size;
+
+    /**
+     * @param maxK the largest k this heap will ever be reset to
+     */
+    public TopK(int maxK) {
+        if (maxK < 1) {
+            throw new IllegalArgumentException("maxK must be at least 1");
+        }
+        this.distances = new double[maxK];
+        this.indices = new int[maxK];
+        this.k = maxK;
+    }
+
+    /**
+     * Empty the heap and set how many neighbors it should keep.
+     * @param k must not be larger than the maxK this heap was created with
+     */
+    public void reset(int k) {
+        if (k < 1 || k > distances.length) {
+            throw new IllegalArgumentException("k must be between 1 and " + distances.length);
+        }
+        this.k = k;
+        this.size = 0;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * @return the largest distance currently kept, or positive infinity if fewer than k
+     * distances have been offered. Anything farther than this cannot enter the heap.
+     */
+    public double worstDistance() {
+        return (size < k) ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Offer a point. It is kept if fewer than k points have been offered or if it is
+     * closer than the current worst point.
+     * @param index the index of the point
+     * @param distance the distance of the point from the query
+     * @return true if the point was kept
+     */
+    public boolean offer(int index, double distance) {
+        if (size < k) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!farther(distance, index, distances[parent], indices[parent])) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+            return true;
+        }
+        if (!farther(distances[0], indices[0], distance, index)) {
+            return false;
+        }
+        siftDown(0, size, distance, index);
+        return true;
+    }
+
+    /**
+     * Sort the kept points in place from closest to farthest. After this call,
+     * {@link #index(int)} and {@link #distance(int)} return the points in that order.
+     * The heap must be {@link #reset(int)} before it is offered new points.
+     * @return the number of points kept
+     */
+    public int sort() {
+        for (int end = size - 1; end > 0; end--) {
+            double distance = distances[end];
+            int index = indices[end];
+            distances[end] = distances[0];
+            indices[end] = indices[0];
+            siftDown(0, end, distance, index);
+        }
+        return size;
+    }
+
+    /**
+     * @param i position in the heap. Positions are in closest-first order after {@link #sort()}.
+     * @return the index of the point at that position
+     */
+    public int index(int i) {
+        return indices[i];
+    }
+
+    /**
+     * @param i position in the heap. Positions are in closest-first order after {@link #sort()}.
+     * @return the distance of the point at that position
+     */
+    public double distance(int i) {
+        return distances[i];
+    }
+
+    /**
+     * Place the given point at position i and move it down until the heap property
+     * holds again within [0, end).
+     */
+    private void siftDown(int i, int end, double distance, int index) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) {
+                break;
+            }
+            if (child + 1 < end && farther(distances[child + 1], indices[child + 1], distances[child], indices[child])) {
+                child++;
+            }
+            if (!farther(distances[child], indices[child], distance, index)) {
+                break;
+            }
+            distances[i] = distances[child];
+            indices[i] = indices[child];
+            i = child;
+        }
+        distances[i] = distance;
+        indices[i] = index;
+    }
+
+    private static boolean farther(double distance, int index, double otherDistance, int otherIndex) {
+        return distance > otherDistance || (distance == otherDistance && index > otherIndex);
+    }
+}
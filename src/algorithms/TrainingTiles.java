@@ -0,0 +1,196 @@
+package edu.nyu.cs.pa.algorithms;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.RowSource;
+
+/**
+ * A training set laid out for measuring a batch of queries against every training point.
+ * <p> The queries are taken a tile at a time and measured against one tile of training points
+ * after another, so a training tile is read from memory once per query tile rather than once per
+ * query, and stays in the L1 cache while it is compared with every query of the tile.</p>
+ * <p> The squared distance between a query a and a training point b is expanded to
+ * |a|&sup2; + |b|&sup2; - 2 a&middot;b. The training norms are computed once when the tiles are
+ * built and the query norms once per query, which leaves one multiply-add per column in the inner
+ * loop. That loop walks one column of consecutive training points and is compiled to SIMD
+ * instructions.</p>
+ * <p> The expansion rounds differently from summing the squared differences, and it loses
+ * precision when two points are much closer to each other than to the origin. It is therefore
+ * only used to rule training points out: a point is skipped when its expanded distance, less a
+ * bound on the rounding error, is still farther than the k-th nearest neighbor found so far. Every
+ * other point is measured again with {@link Distances}, and that distance is what is kept. The
+ * neighbors, their distances and the tie breaks are exactly those of a full scan, and only the
+ * few points near the k-th neighbor are measured twice.</p>
+ *
+ * @author ppeirce
+ */
+public final class TrainingTiles {
+    // queries measured against each training tile before moving on to the next one
+    static final int QUERY_TILE_SIZE = 64;
+    // training points in a tile. 256 points of a few columns fit in the L1 cache.
+    static final int TRAINING_TILE_SIZE = 256;
+
+    private final int size;
+    private final int dimensions;
+    private final FeatureMask features;
+    // the compared columns of every training point multiplied by -2, one column after another
+    private final double[] columns;
+    // the compared columns of every training point, one point after another
+    private final double[] points;
+    private final double[] norms;
+    // the largest norm in each training tile
+    private final double[] tileNorms;
+    // multiplied by |a|^2 + |b|^2 + the k-th distance, bounds the rounding error of the
+    // expanded distance and of the distance measured by Distances
+    private final double errorScale;
+
+    /**
+     * @param points the training set. Indices of neighbors refer to rows of this matrix.
+     * @param features the columns of each point that are compared
+     */
+    public TrainingTiles(FeatureMatrix points, FeatureMask features) {
+        if (points.rows() == 0) {
+            throw new IllegalArgumentException("Cannot build tiles over an empty training set");
+        }
+        features.check(points.columns());
+        this.size = points.rows();
+        this.features = features;
+        this.dimensions = features.size();
+        this.columns = new double[size * dimensions];
+        this.points = new double[size * dimensions];
+        this.norms = new double[size];
+        this.tileNorms = new double[(size + TRAINING_TILE_SIZE - 1) / TRAINING_TILE_SIZE];
+        double[] values = points.values();
+        for (int i = 0; i < size; i++) {
+            int offset = points.rowOffset(i);
+            double norm = 0.0;
+            for (int d = 0; d < dimensions; d++) {
+                double value = values[offset + features.column(d)];
+                columns[d * size + i] = -2 * value;
+                this.points[i * dimensions + d] = value;
+                norm += value * value;
+            }
+            norms[i] = norm;
+            int tile = i / TRAINING_TILE_SIZE;
+            tileNorms[tile] = Math.max(tileNorms[tile], norm);
+        }
+        this.errorScale = 4 * (dimensions + 4) * Math.ulp(1.0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the columns that are compared
+     */
+    public FeatureMask features() {
+        return features;
+    }
+
+    /**
+     * Find the nearest training points to each of a run of queries.
+     * @param queries rows with the same layout as the training points
+     * @param from the first query
+     * @param count the number of queries, at most {@link Workspace#capacity()}
+     * @param workspace receives the neighbors of query from + i in {@link Workspace#neighbors(int)}
+     */
+    public void nearest(RowSource queries, int from, int count, Workspace workspace) {
+        if (count > workspace.capacity()) {
+            throw new IllegalArgumentException("The workspace holds at most " + workspace.capacity() + " queries");
+        }
+        features.check(queries.columns());
+        double[][] rows = workspace.rows;
+        double[] queryNorms = workspace.queryNorms;
+        for (int q = 0; q < count; q++) {
+            queries.copyRow(from + q, rows[q]);
+            double norm = 0.0;
+            for (int d = 0; d < dimensions; d++) {
+                double value = rows[q][features.column(d)];
+                norm += value * value;
+            }
+            queryNorms[q] = norm;
+            workspace.neighbors[q].reset(workspace.k);
+        }
+
+        double[] partial = workspace.partial;
+        for (int tile = 0; tile < size; tile += TRAINING_TILE_SIZE) {
+            int tileSize = Math.min(TRAINING_TILE_SIZE, size - tile);
+            for (int q = 0; q < count; q++) {
+                double[] query = rows[q];
+                // |b|^2 - 2 a.b, the expanded distance less |a|^2
+                System.arraycopy(norms, tile, partial, 0, tileSize);
+                for (int d = 0; d < dimensions; d++) {
+                    double value = query[features.column(d)];
+                    int base = d * size + tile;
+                    for (int t = 0; t < tileSize; t++) {
+                        partial[t] += value * columns[base + t];
+                    }
+                }
+                TopK neighbors = workspace.neighbors[q];
+                double queryNorm = queryNorms[q];
+                double margin = errorScale * (queryNorm + tileNorms[tile / TRAINING_TILE_SIZE]);
+                double limit = limit(neighbors.worstDistance(), queryNorm, margin);
+                for (int t = 0; t < tileSize; t++) {
+                    // written so that a NaN is measured rather than skipped
+                    if (!(partial[t] > limit)) {
+                        int index = tile + t;
+                        double distance = Distances.squaredDistanceToPacked(query, 0, features, points, index * dimensions);
+                        if (neighbors.offer(index, distance)) {
+                            limit = limit(neighbors.worstDistance(), queryNorm, margin);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the value of |b|^2 - 2 a.b above which a training point b cannot be closer to the
+     * query a than the k-th neighbor found so far
+     */
+    private double limit(double worst, double queryNorm, double margin) {
+        return worst - queryNorm + margin + errorScale * worst;
+    }
+
+    /**
+     * The buffers used to measure one tile of queries. Creating one per thread and reusing it for
+     * every tile means nothing is allocated while classifying.
+     */
+    public static final class Workspace {
+        private final int k;
+        private final double[][] rows;
+        private final double[] queryNorms;
+        private final double[] partial;
+        private final TopK[] neighbors;
+
+        /**
+         * @param k the number of neighbors to find for each query
+         * @param columns the number of columns of the queries
+         */
+        public Workspace(int k, int columns) {
+            this.k = k;
+            this.rows = new double[QUERY_TILE_SIZE][columns];
+            this.queryNorms = new double[QUERY_TILE_SIZE];
+            this.partial = new double[TRAINING_TILE_SIZE];
+            this.neighbors = new TopK[QUERY_TILE_SIZE];
+            for (int q = 0; q < QUERY_TILE_SIZE; q++) {
+                neighbors[q] = new TopK(k);
+            }
+        }
+
+        /**
+         * @return the number of queries measured at a time
+         */
+        public int capacity() {
+            return QUERY_TILE_SIZE;
+        }
+
+        /**
+         * @return the neighbors of the i-th query of the last call to
+         * {@link TrainingTiles#nearest(RowSource, int, int, Workspace)}
+         */
+        public TopK neighbors(int i) {
+            return neighbors[i];
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package edu.nyu.cs.pa.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds the allocation rate and the bytes
+ * allocated per operation to every result.
+ * <p> The benchmark module builds the suite into benchmark/target/benchmarks.jar with
+ * <code>mvn -B package</code>. The jar's own main class is JMH's, so
+ * <code>java -jar benchmark/target/benchmarks.jar -prof gc</code> runs the same suite, and this
+ * class is run with <code>java -cp benchmark/target/benchmarks.jar
+ * edu.nyu.cs.pa.benchmark.BenchmarkMain</code>. Any JMH command line options can be
+ * given, for example <code>BenchmarkMain Knn -p rows=1000000 -p k=3</code> runs only the KNN
+ * benchmarks on a million stars with k = 3, and <code>-rf json -rff results.json</code> writes
+ * the results for comparing two commits.</p>
+ *
+ * @author ppeirce
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package edu.nyu.cs.pa.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nyu.cs.pa.algorithms.Dbscan;
+import edu.nyu.cs.pa.algorithms.NeighborGraph;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.Standardizer;
+
+/**
+ * Clusters synthetic planets by standardized mass and radius with DBSCAN, once with region
+ * queries on the grid index and once from a prebuilt neighbor graph, and runs the parameter
+ * sweep the analyzer runs.
+ * <p> Every point has a few thousand neighbors within eps at a million rows, so the row counts
+ * stop at a hundred thousand.</p>
+ *
+ * @author ppeirce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DbscanBenchmark {
+    private static final int[] SWEEP_CLUSTER_SIZES = {2, 3, 4, 5, 6};
+    private static final double[] SWEEP_EPS = {0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9};
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    @Param({"0.1", "0.3"})
+    public double eps;
+
+    @Param({"4"})
+    public int minClusterSize;
+
+    private FeatureMatrix planets;
+    private NeighborGraph graph;
+
+    @Setup
+    public void setUp() {
+        planets = SyntheticData.massRadius(rows, SyntheticData.SEED);
+        Standardizer.fit(planets).transformInPlace(planets);
+        graph = new NeighborGraph(planets, eps);
+    }
+
+    @Benchmark
+    public int[] regionQueries() {
+        return new Dbscan(planets, minClusterSize, eps).clusterLabels();
+    }
+
+    @Benchmark
+    public int[] neighborGraph() {
+        return new Dbscan(planets, graph, minClusterSize, eps).clusterLabels();
+    }
+
+    @Benchmark
+    public List<Dbscan.SweepResult> sweep() {
+        return Dbscan.sweep(planets, SWEEP_CLUSTER_SIZES, SWEEP_EPS);
+    }
+}
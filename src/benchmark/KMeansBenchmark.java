@@ -0,0 +1,52 @@
+package edu.nyu.cs.pa.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nyu.cs.pa.algorithms.KMeans;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.Standardizer;
+
+/**
+ * Clusters synthetic planets by standardized mass and radius with each KMeans strategy.
+ * <p> The seed is fixed and there is a single restart, so every operation does the same
+ * iterations from the same initial centroids.</p>
+ *
+ * @author ppeirce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KMeansBenchmark {
+    private static final int ITERATIONS = 100;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"2", "6"})
+    public int clusters;
+
+    @Param({"LLOYD", "HAMERLY", "ELKAN", "MINI_BATCH"})
+    public KMeans.Strategy strategy;
+
+    private FeatureMatrix planets;
+
+    @Setup
+    public void setUp() {
+        planets = SyntheticData.massRadius(rows, SyntheticData.SEED);
+        Standardizer.fit(planets).transformInPlace(planets);
+    }
+
+    @Benchmark
+    public int[] cluster() {
+        KMeans kMeans = new KMeans(planets);
+        kMeans.setStrategy(strategy);
+        kMeans.setSeed(SyntheticData.SEED);
+        kMeans.cluster(clusters, ITERATIONS);
+        return kMeans.getLabelArray();
+    }
+}
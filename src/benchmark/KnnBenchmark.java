@@ -0,0 +1,86 @@
+package edu.nyu.cs.pa.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.nyu.cs.pa.algorithms.KNN;
+import edu.nyu.cs.pa.algorithms.KdTree;
+import edu.nyu.cs.pa.algorithms.TrainingTiles;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * Classifies synthetic stars against a synthetic training set of planet hosts, with each of
+ * the searches KNN offers.
+ * <p> One operation classifies every star, so the throughput is in catalogs per second and the
+ * sampled times are the latency of classifying the whole catalog. The training set has as many
+ * rows as the real one. The index and tiles are built in the setup, as the analyzer builds them
+ * once per run.</p>
+ *
+ * @author ppeirce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KnnBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"3", "5"})
+    public int dimensions;
+
+    @Param({"1", "3", "7"})
+    public int k;
+
+    @Param({"321"})
+    public int trainingRows;
+
+    private FeatureMatrix stars;
+    private FeatureMatrix training;
+    private List<Integer> labels;
+    private KNN knn;
+    private KdTree trainingIndex;
+    private TrainingTiles trainingTiles;
+    private int parallelism;
+
+    @Setup
+    public void setUp() {
+        stars = SyntheticData.stellarParameters(rows, dimensions, SyntheticData.SEED);
+        training = SyntheticData.stellarParameters(trainingRows, dimensions, SyntheticData.SEED + 1);
+        labels = SyntheticData.labels(trainingRows, 6, SyntheticData.SEED);
+        knn = new KNN();
+        trainingIndex = knn.buildIndex(training);
+        trainingTiles = knn.buildTiles(training);
+        parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Benchmark
+    public int[] fullScan() {
+        return knn.classify(k, stars, training, labels);
+    }
+
+    @Benchmark
+    public int[] kdTree() {
+        return knn.classify(k, stars, trainingIndex, labels);
+    }
+
+    @Benchmark
+    public int[] kdTreeInParallel() {
+        return knn.classifyInParallel(k, stars, trainingIndex, labels, parallelism);
+    }
+
+    @Benchmark
+    public int[] tiles() {
+        return knn.classify(k, stars, trainingTiles, labels);
+    }
+
+    @Benchmark
+    public int[] tilesInParallel() {
+        return knn.classifyInParallel(k, stars, trainingTiles, labels, parallelism);
+    }
+}
@@ -0,0 +1,118 @@
+package edu.nyu.cs.pa.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.FeatureMatrixFile;
+import edu.nyu.cs.pa.data.ProjectedTsvReader;
+import edu.nyu.cs.pa.data.StarCatalog;
+import edu.nyu.cs.pa.data.TicBandFilter;
+
+/**
+ * Reads synthetic files in each of the formats the analysis reads: a TIC band, the planet
+ * table, the binary star catalog and a cached feature matrix.
+ * <p> The files are written to a temporary directory in the setup and deleted afterwards. After
+ * the first iteration they are in the page cache, so these measure parsing rather than the
+ * disk.</p>
+ *
+ * @author ppeirce
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReaderBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private File directory;
+    private File band;
+    private File filtered;
+    private File planetTable;
+    private File starCatalog;
+    private File matrixFile;
+    private TicBandFilter ticReader;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("exoplanet-benchmark").toFile();
+        band = new File(directory, "90S_88S.csv");
+        filtered = new File(directory, "combined_tic.csv");
+        planetTable = new File(directory, "planets.tsv");
+        starCatalog = new File(directory, "stars.bin");
+        matrixFile = new File(directory, "stars.fmat");
+        SyntheticData.writeTicBand(band, rows, SyntheticData.SEED);
+        SyntheticData.writePlanetTable(planetTable, rows, SyntheticData.SEED);
+        SyntheticData.writeStarCatalog(starCatalog, rows, SyntheticData.SEED);
+        FeatureMatrixFile.write(SyntheticData.stellarParameters(rows, 5, SyntheticData.SEED), matrixFile);
+        ticReader = new TicBandFilter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long[] ticBandStars(final Blackhole blackhole) throws IOException {
+        return ticReader.readStars(band, new TicBandFilter.StarHandler() {
+            @Override
+            public void star(long ticId, double[] parameters) {
+                blackhole.consume(ticId);
+                blackhole.consume(parameters[0]);
+            }
+        });
+    }
+
+    @Benchmark
+    public long ticBandFilter() {
+        ticReader.filter(Collections.singletonList(band), filtered);
+        return filtered.length();
+    }
+
+    @Benchmark
+    public long planetTable(final Blackhole blackhole) throws IOException {
+        return ProjectedTsvReader.forHeaderNames(planetTable, "mass", "radius").read(planetTable,
+                new ProjectedTsvReader.RowHandler() {
+                    @Override
+                    public void row(double[] values, long present) {
+                        blackhole.consume(values[0]);
+                        blackhole.consume(present);
+                    }
+                });
+    }
+
+    @Benchmark
+    public double starCatalog() throws IOException {
+        try (StarCatalog catalog = StarCatalog.open(starCatalog)) {
+            double[] row = new double[catalog.columns()];
+            double sum = 0.0;
+            for (int i = 0; i < catalog.rows(); i++) {
+                catalog.copyRow(i, row);
+                sum += row[2];
+            }
+            return sum;
+        }
+    }
+
+    @Benchmark
+    public FeatureMatrix featureMatrixFile() throws IOException {
+        return FeatureMatrixFile.read(matrixFile);
+    }
+}
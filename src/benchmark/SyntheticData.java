@@ -0,0 +1,151 @@
+package edu.nyu.cs.pa.benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.StarCatalogWriter;
+
+/**
+ * Seeded synthetic datasets for the benchmarks, shaped like the real catalogs so that the
+ * algorithms do the same kind of work on them.
+ * <p> Stellar rows have distance and temperature in the first two columns, which KNN ignores,
+ * followed by the compared parameters. Every point is drawn around one of a few cluster centers,
+ * as planets and their host stars are, so the k-d tree and DBSCAN see realistic density.</p>
+ * <p> The same seed always gives the same data, so runs on different commits are comparable.</p>
+ *
+ * @author ppeirce
+ */
+final class SyntheticData {
+    static final long SEED = 20181204L;
+    static final String[] STELLAR_COLUMNS =
+            {"distance", "temperature", "mass", "radius", "gravity", "luminosity", "metallicity"};
+    private static final int CENTERS = 6;
+
+    private SyntheticData() {
+
+    }
+
+    /**
+     * @param rows
+     * @param dimensions the number of compared parameters. The rows have two more columns.
+     * @param seed
+     * @return stars around a few cluster centers, in roughly the units of the TIC
+     */
+    static FeatureMatrix stellarParameters(int rows, int dimensions, long seed) {
+        Random random = new Random(seed);
+        int columns = dimensions + 2;
+        double[][] centers = new double[CENTERS][dimensions];
+        for (double[] center : centers) {
+            for (int d = 0; d < dimensions; d++) {
+                center[d] = random.nextDouble() * 4;
+            }
+        }
+        FeatureMatrix matrix = new FeatureMatrix(rows, columns);
+        for (int row = 0; row < rows; row++) {
+            double[] center = centers[random.nextInt(CENTERS)];
+            matrix.set(row, 0, 10 + random.nextDouble() * 990);
+            matrix.set(row, 1, 3000 + random.nextDouble() * 4000);
+            for (int d = 0; d < dimensions; d++) {
+                matrix.set(row, d + 2, center[d] + random.nextGaussian() * 0.3);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * @return planets in log mass (Earth masses) and log radius (Earth radii), from rocky
+     * planets to gas giants
+     */
+    static FeatureMatrix massRadius(int rows, long seed) {
+        Random random = new Random(seed);
+        double[][] centers = {{0.0, 0.0}, {0.8, 0.4}, {1.3, 0.6}, {2.0, 1.0}, {2.5, 1.05}, {3.2, 1.1}};
+        FeatureMatrix matrix = new FeatureMatrix(rows, 2, "mass", "radius");
+        for (int row = 0; row < rows; row++) {
+            double[] center = centers[random.nextInt(centers.length)];
+            matrix.set(row, 0, center[0] + random.nextGaussian() * 0.25);
+            matrix.set(row, 1, center[1] + random.nextGaussian() * 0.08);
+        }
+        return matrix;
+    }
+
+    /**
+     * @return a cluster label between 0 and clusters - 1 for every row
+     */
+    static List<Integer> labels(int rows, int clusters, long seed) {
+        Random random = new Random(seed);
+        List<Integer> labels = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            labels.add(random.nextInt(clusters));
+        }
+        return labels;
+    }
+
+    /**
+     * Write a TIC band file with the seven stellar parameters in their source columns and one in
+     * ten stars missing a parameter, as the real bands have.
+     */
+    static void writeTicBand(File file, int rows, long seed) throws IOException {
+        // source columns in the order distance, temperature, mass, radius, gravity, luminosity, metallicity
+        int[] sourceColumns = {79, 64, 72, 70, 66, 77, 68};
+        FeatureMatrix stars = stellarParameters(rows, 5, seed);
+        Random random = new Random(seed + 1);
+        String[] fields = new String[85];
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            for (int row = 0; row < rows; row++) {
+                Arrays.fill(fields, "");
+                fields[0] = Long.toString(1000000L + row);
+                int missing = (random.nextInt(10) == 0) ? random.nextInt(sourceColumns.length) : -1;
+                for (int p = 0; p < sourceColumns.length; p++) {
+                    if (p != missing) {
+                        fields[sourceColumns[p]] = String.format(Locale.ROOT, "%.4f", stars.get(row, p));
+                    }
+                }
+                for (int i = 0; i < fields.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(fields[i]);
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Write a tab separated planet table with a header line. Columns 3 and 7 hold the planet's
+     * mass and radius and the columns in between hold filler text.
+     */
+    static void writePlanetTable(File file, int rows, long seed) throws IOException {
+        FeatureMatrix planets = massRadius(rows, seed);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            out.write("name\thost\tmethod\tmass\tyear\tfacility\tstatus\tradius\n");
+            for (int row = 0; row < rows; row++) {
+                out.write("planet " + row + "\tstar " + row + "\tTransit\t");
+                out.write(String.format(Locale.ROOT, "%.5f", Math.pow(10, planets.get(row, 0))));
+                out.write("\t2018\tTESS\tConfirmed\t");
+                out.write(String.format(Locale.ROOT, "%.5f", Math.pow(10, planets.get(row, 1))));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Write a binary star catalog of stellar parameters.
+     */
+    static void writeStarCatalog(File file, int rows, long seed) throws IOException {
+        FeatureMatrix stars = stellarParameters(rows, 5, seed);
+        double[] row = new double[stars.columns()];
+        try (StarCatalogWriter writer = new StarCatalogWriter(file, STELLAR_COLUMNS)) {
+            for (int i = 0; i < rows; i++) {
+                stars.copyRow(i, row);
+                writer.addRow(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte-level helpers shared by the catalog readers.
+ * <p> Splits a stream into lines without decoding it into Strings. Each line is handed to a
+ * {@link Handler} as a range of a shared byte buffer, with any trailing carriage return removed.
+ * Numbers can then be parsed straight from that buffer.</p>
+ *
+ * @author ppeirce
+ */
+final class ByteLines {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    interface Handler {
+        /**
+         * @param buffer holds the line in [from, to). Only valid until this call returns.
+         */
+        void line(byte[] buffer, int from, int to) throws IOException;
+    }
+
+    private ByteLines() {
+
+    }
+
+    /**
+     * @return the number of lines read
+     */
+    static long forEachLine(InputStream in, Handler handler) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int filled = 0;
+        while (true) {
+            if (filled == buffer.length) {
+                // a single line is longer than the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, filled, buffer.length - filled);
+            boolean endOfFile = (n < 0);
+            if (!endOfFile) {
+                filled += n;
+            }
+            int lineStart = 0;
+            for (int i = 0; i < filled; i++) {
+                if (buffer[i] == '\n') {
+                    lines++;
+                    handler.line(buffer, lineStart, withoutCarriageReturn(buffer, lineStart, i));
+                    lineStart = i + 1;
+                }
+            }
+            if (endOfFile) {
+                if (lineStart < filled) {
+                    lines++;
+                    handler.line(buffer, lineStart, withoutCarriageReturn(buffer, lineStart, filled));
+                }
+                return lines;
+            }
+            // move the partial last line to the front of the buffer
+            System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+            filled -= lineStart;
+        }
+    }
+
+    private static int withoutCarriageReturn(byte[] buffer, int from, int to) {
+        return (to > from && buffer[to - 1] == '\r') ? to - 1 : to;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parse a decimal number from the bytes [from, to).
+     * <p> Numbers with at most 15 significant digits and a small exponent, which covers every
+     * value in the NASA and TIC catalogs, are computed directly and are exact because both the
+     * digits and the power of ten are exactly representable. Anything else falls back to
+     * Double.parseDouble, so the result always matches it.</p>
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    static double parseDouble(byte[] buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long digits = 0;
+        int significant = 0;
+        int scale = 0;
+        boolean anyDigit = false;
+        boolean point = false;
+        for (; i < to; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (digits != 0 || b != '0') {
+                    significant++;
+                }
+                digits = digits * 10 + (b - '0');
+                if (point) scale--;
+                if (significant > 15) {
+                    return slowParse(buffer, from, to);
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else if (b == 'e' || b == 'E') {
+                break;
+            } else {
+                return slowParse(buffer, from, to);
+            }
+        }
+        if (!anyDigit) {
+            return slowParse(buffer, from, to);
+        }
+        if (i < to) {
+            // exponent
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+                negativeExponent = buffer[i] == '-';
+                i++;
+            }
+            if (i == to || to - i > 3) {
+                return slowParse(buffer, from, to);
+            }
+            int exponent = 0;
+            for (; i < to; i++) {
+                byte b = buffer[i];
+                if (b < '0' || b > '9') {
+                    return slowParse(buffer, from, to);
+                }
+                exponent = exponent * 10 + (b - '0');
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        double value;
+        if (scale == 0) {
+            value = digits;
+        } else if (scale > 0 && scale < POWERS_OF_TEN.length) {
+            value = digits * POWERS_OF_TEN[scale];
+        } else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+            value = digits / POWERS_OF_TEN[-scale];
+        } else {
+            return slowParse(buffer, from, to);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(byte[] buffer, int from, int to) {
+        return Double.parseDouble(new String(buffer, from, to - from, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,421 @@
+package edu.nyu.cs.pa.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Summarizes each column of a stream of rows in a single pass: the count, mean, variance, min,
+ * max and approximate quantiles of the values.
+ * <p> The mean and variance are updated with Welford's algorithm. The quantiles come from a
+ * merging t-digest per column, which keeps a bounded number of weighted centroids: small ones
+ * near the tails, where quantiles are most often asked for, and larger ones in the middle. With
+ * the default compression a column needs a few kilobytes however many rows are added, and
+ * quantiles near the median are usually within a fraction of a percent of rank.</p>
+ * <p> Two summaries can be merged, so rows can be summarized on several threads, each into its
+ * own summary, and combined at the end. Merging in a fixed order gives the same result on every
+ * run.</p>
+ * <p> NaN values, which is how {@link FeatureMatrix} stores missing cells, are ignored.</p>
+ *
+ * @author ppeirce
+ */
+public final class ColumnStatistics {
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final String[] columnNames;
+    private final long[] count;
+    private final double[] mean;
+    private final double[] m2;
+    private final double[] min;
+    private final double[] max;
+    private final Digest[] digests;
+
+    /**
+     * @param columnNames one name per column
+     */
+    public ColumnStatistics(String... columnNames) {
+        this(DEFAULT_COMPRESSION, columnNames);
+    }
+
+    /**
+     * @param compression bounds the number of centroids per column, roughly 2 * compression.
+     * Higher is more accurate and uses more memory.
+     * @param columnNames one name per column
+     */
+    public ColumnStatistics(double compression, String... columnNames) {
+        if (columnNames.length == 0) {
+            throw new IllegalArgumentException("At least one column is needed");
+        }
+        if (!(compression >= 10)) {
+            throw new IllegalArgumentException("The compression must be at least 10");
+        }
+        int columns = columnNames.length;
+        this.columnNames = columnNames.clone();
+        this.count = new long[columns];
+        this.mean = new double[columns];
+        this.m2 = new double[columns];
+        this.min = new double[columns];
+        this.max = new double[columns];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        this.digests = new Digest[columns];
+        for (int c = 0; c < columns; c++) {
+            digests[c] = new Digest(compression);
+        }
+    }
+
+    /**
+     * @return an empty summary with the same columns and compression
+     */
+    public ColumnStatistics emptyCopy() {
+        return new ColumnStatistics(digests[0].compression, columnNames);
+    }
+
+    public int columns() {
+        return columnNames.length;
+    }
+
+    public String columnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * Add one row.
+     * @param row must have at least {@link #columns()} elements
+     */
+    public void add(double[] row) {
+        for (int c = 0; c < count.length; c++) {
+            double value = row[c];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            long n = ++count[c];
+            double delta = value - mean[c];
+            mean[c] += delta / n;
+            m2[c] += delta * (value - mean[c]);
+            if (value < min[c]) min[c] = value;
+            if (value > max[c]) max[c] = value;
+            digests[c].add(value);
+        }
+    }
+
+    /**
+     * Add the rows [from, to).
+     */
+    public void addRows(RowSource rows, int from, int to) {
+        checkColumns(rows.columns());
+        double[] row = new double[count.length];
+        for (int r = from; r < to; r++) {
+            rows.copyRow(r, row);
+            add(row);
+        }
+    }
+
+    /**
+     * Combine another summary into this one, as if its rows had been added here.
+     * @param other a summary of the same columns. Its digests are compacted but it still
+     * describes the same values.
+     */
+    public void merge(ColumnStatistics other) {
+        checkColumns(other.columns());
+        for (int c = 0; c < count.length; c++) {
+            if (other.count[c] == 0) {
+                continue;
+            }
+            long n = count[c] + other.count[c];
+            double delta = other.mean[c] - mean[c];
+            mean[c] += delta * other.count[c] / n;
+            m2[c] += other.m2[c] + delta * delta * ((double) count[c] * other.count[c] / n);
+            count[c] = n;
+            min[c] = Math.min(min[c], other.min[c]);
+            max[c] = Math.max(max[c], other.max[c]);
+            digests[c].merge(other.digests[c]);
+        }
+    }
+
+    /**
+     * @return the number of values seen in the column
+     */
+    public long count(int column) {
+        return count[column];
+    }
+
+    /**
+     * @return the mean of the column, or NaN if no values have been seen
+     */
+    public double mean(int column) {
+        return (count[column] > 0) ? mean[column] : Double.NaN;
+    }
+
+    /**
+     * @return the population variance of the column, or NaN if no values have been seen
+     */
+    public double variance(int column) {
+        return (count[column] > 0) ? m2[column] / count[column] : Double.NaN;
+    }
+
+    /**
+     * @return the population standard deviation of the column, or NaN if no values have been seen
+     */
+    public double standardDeviation(int column) {
+        return Math.sqrt(variance(column));
+    }
+
+    /**
+     * @return the smallest value in the column, or NaN if no values have been seen
+     */
+    public double min(int column) {
+        return (count[column] > 0) ? min[column] : Double.NaN;
+    }
+
+    /**
+     * @return the largest value in the column, or NaN if no values have been seen
+     */
+    public double max(int column) {
+        return (count[column] > 0) ? max[column] : Double.NaN;
+    }
+
+    /**
+     * @param q between 0 and 1, for example 0.5 for the median
+     * @return the approximate q-quantile of the column, or NaN if no values have been seen
+     */
+    public double quantile(int column, double q) {
+        if (!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException("q must be between 0 and 1");
+        }
+        if (count[column] == 0) {
+            return Double.NaN;
+        }
+        return digests[column].quantile(q, min[column], max[column]);
+    }
+
+    private void checkColumns(int columns) {
+        if (columns != count.length) {
+            throw new IllegalArgumentException("Expected " + count.length + " columns but got " + columns);
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(ByteBuffer)} will write
+     */
+    public int serializedSize() {
+        int size = 8 + 4;
+        for (int c = 0; c < count.length; c++) {
+            digests[c].compress();
+            size += 4 + 2 * columnNames[c].length() + 8 * 5 + 4 + 16 * digests[c].centroids;
+        }
+        return size;
+    }
+
+    /**
+     * Write the summary, including the digests, so it can be read back and added to later.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putDouble(digests[0].compression);
+        buffer.putInt(count.length);
+        for (int c = 0; c < count.length; c++) {
+            buffer.putInt(columnNames[c].length());
+            for (int i = 0; i < columnNames[c].length(); i++) {
+                buffer.putChar(columnNames[c].charAt(i));
+            }
+            buffer.putLong(count[c]);
+            buffer.putDouble(mean[c]);
+            buffer.putDouble(m2[c]);
+            buffer.putDouble(min[c]);
+            buffer.putDouble(max[c]);
+            Digest digest = digests[c];
+            digest.compress();
+            buffer.putInt(digest.centroids);
+            for (int i = 0; i < digest.centroids; i++) {
+                buffer.putDouble(digest.means[i]);
+                buffer.putDouble(digest.weights[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a summary written by {@link #writeTo(ByteBuffer)}.
+     * @throws java.nio.BufferUnderflowException if the buffer ends too early
+     */
+    public static ColumnStatistics readFrom(ByteBuffer buffer) {
+        double compression = buffer.getDouble();
+        int columns = buffer.getInt();
+        if (columns < 1 || !(compression >= 10)) {
+            throw new IllegalArgumentException("Not a column summary");
+        }
+        String[] names = new String[columns];
+        long[] counts = new long[columns];
+        double[][] moments = new double[columns][];
+        double[][][] centroids = new double[columns][][];
+        for (int c = 0; c < columns; c++) {
+            char[] name = new char[buffer.getInt()];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = buffer.getChar();
+            }
+            names[c] = new String(name);
+            counts[c] = buffer.getLong();
+            moments[c] = new double[] {buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble()};
+            int n = buffer.getInt();
+            centroids[c] = new double[2][n];
+            for (int i = 0; i < n; i++) {
+                centroids[c][0][i] = buffer.getDouble();
+                centroids[c][1][i] = buffer.getDouble();
+            }
+        }
+        ColumnStatistics statistics = new ColumnStatistics(compression, names);
+        for (int c = 0; c < columns; c++) {
+            statistics.count[c] = counts[c];
+            statistics.mean[c] = moments[c][0];
+            statistics.m2[c] = moments[c][1];
+            statistics.min[c] = moments[c][2];
+            statistics.max[c] = moments[c][3];
+            statistics.digests[c].load(centroids[c][0], centroids[c][1]);
+        }
+        return statistics;
+    }
+
+    /**
+     * A merging t-digest of one column.
+     * <p> New values are collected in a buffer. When it fills up it is sorted and merged with the
+     * centroids, which are kept sorted by mean, in one pass that combines neighbors as long as the
+     * combined centroid stays under the size limit for its place in the distribution,
+     * 4 * total * q * (1 - q) / compression.</p>
+     */
+    private static final class Digest {
+        private final double compression;
+        private double[] means;
+        private double[] weights;
+        private int centroids;
+        private final double[] buffer;
+        private final double[] unitWeights;
+        private int buffered;
+
+        // scratch space for merging
+        private double[] mergedMeans;
+        private double[] mergedWeights;
+
+        Digest(double compression) {
+            this.compression = compression;
+            int capacity = (int) Math.ceil(2 * compression) + 10;
+            this.means = new double[capacity];
+            this.weights = new double[capacity];
+            this.buffer = new double[5 * capacity];
+            this.unitWeights = new double[buffer.length];
+            Arrays.fill(unitWeights, 1.0);
+        }
+
+        void add(double value) {
+            if (buffered == buffer.length) {
+                compress();
+            }
+            buffer[buffered++] = value;
+        }
+
+        void merge(Digest other) {
+            compress();
+            other.compress();
+            mergeSorted(other.means, other.weights, other.centroids);
+        }
+
+        void load(double[] loadedMeans, double[] loadedWeights) {
+            buffered = 0;
+            centroids = 0;
+            mergeSorted(loadedMeans, loadedWeights, loadedMeans.length);
+        }
+
+        /**
+         * Fold the buffered values into the centroids.
+         */
+        void compress() {
+            if (buffered == 0) {
+                return;
+            }
+            Arrays.sort(buffer, 0, buffered);
+            int values = buffered;
+            buffered = 0;
+            mergeSorted(buffer, unitWeights, values);
+        }
+
+        /**
+         * Merge sorted weighted points into the centroids.
+         */
+        private void mergeSorted(double[] otherMeans, double[] otherWeights, int otherCount) {
+            int total = centroids + otherCount;
+            if (mergedMeans == null || mergedMeans.length < total) {
+                mergedMeans = new double[total];
+                mergedWeights = new double[total];
+            }
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < centroids || j < otherCount) {
+                if (j == otherCount || (i < centroids && means[i] <= otherMeans[j])) {
+                    mergedMeans[k] = means[i];
+                    mergedWeights[k++] = weights[i++];
+                } else {
+                    mergedMeans[k] = otherMeans[j];
+                    mergedWeights[k++] = otherWeights[j++];
+                }
+            }
+            double totalWeight = 0;
+            for (int p = 0; p < total; p++) {
+                totalWeight += mergedWeights[p];
+            }
+
+            int out = 0;
+            double weightSoFar = 0;
+            if (means.length < total) {
+                means = new double[Math.max(total, means.length)];
+                weights = new double[means.length];
+            }
+            for (int p = 0; p < total; p++) {
+                if (out > 0) {
+                    double proposed = weights[out - 1] + mergedWeights[p];
+                    double q0 = weightSoFar / totalWeight;
+                    double q2 = (weightSoFar + proposed) / totalWeight;
+                    double limit = totalWeight * Math.min(q0 * (1 - q0), q2 * (1 - q2)) * 4 / compression;
+                    if (proposed <= limit) {
+                        means[out - 1] += (mergedMeans[p] - means[out - 1]) * mergedWeights[p] / proposed;
+                        weights[out - 1] = proposed;
+                        continue;
+                    }
+                    weightSoFar += weights[out - 1];
+                }
+                means[out] = mergedMeans[p];
+                weights[out] = mergedWeights[p];
+                out++;
+            }
+            centroids = out;
+        }
+
+        /**
+         * Interpolate between the centroid means, treating each centroid as centered on its
+         * share of the ranks, and between the extreme centroids and the exact min and max.
+         */
+        double quantile(double q, double min, double max) {
+            compress();
+            if (centroids == 1) {
+                return means[0];
+            }
+            double totalWeight = 0;
+            for (int i = 0; i < centroids; i++) {
+                totalWeight += weights[i];
+            }
+            double rank = q * totalWeight;
+            double left = weights[0] / 2;
+            if (rank < left) {
+                return min + (means[0] - min) * (rank / left);
+            }
+            double weightSoFar = left;
+            for (int i = 0; i + 1 < centroids; i++) {
+                double step = (weights[i] + weights[i + 1]) / 2;
+                if (weightSoFar + step > rank) {
+                    return means[i] + (means[i + 1] - means[i]) * ((rank - weightSoFar) / step);
+                }
+                weightSoFar += step;
+            }
+            double right = weights[centroids - 1] / 2;
+            double fraction = (right > 0) ? Math.min(1.0, (rank - weightSoFar) / right) : 1.0;
+            return means[centroids - 1] + (max - means[centroids - 1]) * fraction;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package edu.nyu.cs.pa.data;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Row-major doubles stored outside the heap in a series of buffers, so that a matrix can be
+ * larger than the 2 GB a single ByteBuffer can address.
+ * <p> Every chunk holds the same power of two number of whole rows, so finding a value takes a
+ * shift and a mask rather than a division, and a row never spans two chunks.</p>
+ * <p> Reads use absolute positions, so the chunks can be read from several threads.</p>
+ *
+ * @author ppeirce
+ */
+final class DoubleChunks {
+    /**
+     * The largest chunk, in bytes.
+     */
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private ByteBuffer[] chunks;
+    private final int columns;
+    private final int rowsPerChunk;
+    private final int rowShift;
+    private final int rowMask;
+
+    /**
+     * @param chunks rowsPerChunk rows each, except that the last may be shorter
+     * @param columns
+     * @param rowsPerChunk a power of two, normally {@link #rowsPerChunk(int)}
+     */
+    DoubleChunks(ByteBuffer[] chunks, int columns, int rowsPerChunk) {
+        if (Integer.bitCount(rowsPerChunk) != 1) {
+            throw new IllegalArgumentException("The rows per chunk must be a power of two");
+        }
+        this.chunks = chunks;
+        this.columns = columns;
+        this.rowsPerChunk = rowsPerChunk;
+        this.rowShift = Integer.numberOfTrailingZeros(rowsPerChunk);
+        this.rowMask = rowsPerChunk - 1;
+    }
+
+    /**
+     * @return the number of rows in every chunk but the last
+     */
+    static int rowsPerChunk(int columns) {
+        return rowsPerChunk(columns, MAX_CHUNK_BYTES);
+    }
+
+    /**
+     * @return the number of rows in every chunk but the last, for chunks of at most chunkBytes
+     */
+    static int rowsPerChunk(int columns, int chunkBytes) {
+        return Integer.highestOneBit(Math.max(1, Math.min(chunkBytes, MAX_CHUNK_BYTES) / (8 * columns)));
+    }
+
+    /**
+     * @return the number of chunks needed for the rows
+     */
+    static int chunkCount(long rows, int rowsPerChunk) {
+        return (int) ((rows + rowsPerChunk - 1) / rowsPerChunk);
+    }
+
+    int rowsPerChunk() {
+        return rowsPerChunk;
+    }
+
+    /**
+     * Add a full chunk allocated outside the heap.
+     * @return the bytes allocated
+     */
+    long allocateChunk() {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(rowsPerChunk * columns * 8).order(ByteOrder.nativeOrder());
+        chunks = Arrays.copyOf(chunks, chunks.length + 1);
+        chunks[chunks.length - 1] = chunk;
+        return chunk.capacity();
+    }
+
+    /**
+     * Free every chunk now, if the JVM allows it, and forget them.
+     * @see #free(ByteBuffer)
+     */
+    void freeAll() {
+        ByteBuffer[] freed = chunks;
+        chunks = new ByteBuffer[0];
+        for (ByteBuffer chunk : freed) {
+            free(chunk);
+        }
+    }
+
+    double get(int row, int column) {
+        return chunks[row >>> rowShift].getDouble((((row & rowMask) * columns) + column) << 3);
+    }
+
+    void copyRow(int row, double[] into) {
+        ByteBuffer chunk = chunks[row >>> rowShift];
+        int position = ((row & rowMask) * columns) << 3;
+        for (int c = 0; c < columns; c++) {
+            into[c] = chunk.getDouble(position + (c << 3));
+        }
+    }
+
+    void set(int row, int column, double value) {
+        chunks[row >>> rowShift].putDouble((((row & rowMask) * columns) + column) << 3, value);
+    }
+
+    void setRow(int row, double[] values) {
+        ByteBuffer chunk = chunks[row >>> rowShift];
+        int position = ((row & rowMask) * columns) << 3;
+        for (int c = 0; c < columns; c++) {
+            chunk.putDouble(position + (c << 3), values[c]);
+        }
+    }
+
+    /**
+     * Free the memory of a direct buffer now instead of when it is garbage collected. The buffer
+     * must not be used afterwards: reading it would read freed memory.
+     * @return false if this JVM does not allow it, in which case the memory is freed when the
+     * buffer is garbage collected
+     */
+    static boolean free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return false;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            // Java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+}
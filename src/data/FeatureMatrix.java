@@ -0,0 +1,553 @@
+package edu.nyu.cs.pa.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A matrix of doubles stored in one flat primitive array in row-major order.
+ * <p> Each row is an observation (a planet or a star) and each column is a feature.
+ * Holding the values in a single double[] instead of a Double[][] or List&lt;Double[]&gt;
+ * avoids an object header per value and per row, which matters once millions of TIC stars
+ * are loaded.</p>
+ * <p> A column-major copy of the values can be requested for algorithms that work one
+ * feature at a time.</p>
+ * <p> Missing values are tracked with one validity bitmap per column, a long[] holding one bit
+ * per row, instead of a sentinel value. A column without a bitmap has a value in every row.
+ * Missing cells hold NaN so that they cannot pass for real data, and rows with every column
+ * present are found by ANDing the bitmaps a word at a time.</p>
+ *
+ * @author ppeirce
+ */
+public class FeatureMatrix implements RowSource {
+    private final int rows;
+    private final int columns;
+    private final double[] values;
+    private final String[] columnNames;
+    private final long[][] validity;
+    private double[] columnMajor;
+
+    /**
+     * Create a matrix filled with zeros.
+     * @param rows
+     * @param columns
+     * @param columnNames optional. If given there must be one name per column.
+     */
+    public FeatureMatrix(int rows, int columns, String... columnNames) {
+        this(new double[rows * columns], rows, columns, columnNames);
+    }
+
+    /**
+     * Wrap an existing row-major array. The array is not copied.
+     * @param values row-major values, rows * columns long
+     * @param rows
+     * @param columns
+     * @param columnNames optional. If given there must be one name per column.
+     */
+    public FeatureMatrix(double[] values, int rows, int columns, String... columnNames) {
+        if (rows < 0 || columns < 1) {
+            throw new IllegalArgumentException("A matrix needs a non-negative number of rows and at least one column");
+        }
+        if (values.length != rows * columns) {
+            throw new IllegalArgumentException("Expected " + (rows * columns) + " values but got " + values.length);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.values = values;
+        this.columnNames = namesOrDefaults(columnNames, columns);
+        this.validity = new long[columns][];
+    }
+
+    /**
+     * Copy a boxed matrix. Every row must have the same length.
+     * @param matrix
+     * @param columnNames optional. If given there must be one name per column.
+     * @return
+     */
+    public static FeatureMatrix fromRows(Double[][] matrix, String... columnNames) {
+        return fromRows(Arrays.asList(matrix), columnNames);
+    }
+
+    /**
+     * Copy a boxed list of rows. Every row must have the same length. Null entries are
+     * recorded as missing.
+     * @param list
+     * @param columnNames optional. If given there must be one name per column.
+     * @return
+     */
+    public static FeatureMatrix fromRows(List<Double[]> list, String... columnNames) {
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("Cannot determine the number of columns of an empty list");
+        }
+        int columns = list.get(0).length;
+        FeatureMatrix matrix = new FeatureMatrix(list.size(), columns, columnNames);
+        int offset = 0;
+        for (Double[] row : list) {
+            if (row.length != columns) {
+                throw new IllegalArgumentException("All rows must have " + columns + " columns");
+            }
+            for (int c = 0; c < columns; c++) {
+                if (row[c] == null) {
+                    matrix.setMissing(offset / columns, c);
+                } else {
+                    matrix.values[offset + c] = row[c];
+                }
+            }
+            offset += columns;
+        }
+        return matrix;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public String columnName(int column) {
+        return columnNames[column];
+    }
+
+    public String[] columnNames() {
+        return columnNames.clone();
+    }
+
+    @Override
+    public double get(int row, int column) {
+        return values[row * columns + column];
+    }
+
+    /**
+     * Set a value and mark it as present.
+     */
+    public void set(int row, int column, double value) {
+        values[row * columns + column] = value;
+        long[] bits = validity[column];
+        if (bits != null) {
+            bits[row >>> 6] |= 1L << row;
+        }
+        columnMajor = null;
+    }
+
+    /**
+     * Mark a value as missing. The cell is set to NaN.
+     */
+    public void setMissing(int row, int column) {
+        if (validity[column] == null) {
+            validity[column] = allRowsMask(rows);
+        }
+        validity[column][row >>> 6] &= ~(1L << row);
+        values[row * columns + column] = Double.NaN;
+        columnMajor = null;
+    }
+
+    public boolean isPresent(int row, int column) {
+        long[] bits = validity[column];
+        return bits == null || isSet(bits, row);
+    }
+
+    /**
+     * @return true if at least one value in the matrix is missing
+     */
+    public boolean hasMissingValues() {
+        for (int c = 0; c < columns; c++) {
+            if (validity[c] != null && presentCount(c) < rows) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The validity bitmap of a column: bit (row % 64) of word (row / 64) is set if the row has
+     * a value. Columns without missing values return a bitmap with every row set.
+     * @param column
+     * @return a copy of the bitmap
+     */
+    public long[] validity(int column) {
+        long[] bits = validity[column];
+        return (bits == null) ? allRowsMask(rows) : bits.clone();
+    }
+
+    /**
+     * @param column
+     * @return the number of rows that have a value in the column
+     */
+    public int presentCount(int column) {
+        long[] bits = validity[column];
+        if (bits == null) {
+            return rows;
+        }
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * A bitmap, in the same layout as {@link #validity(int)}, of the rows that have a value in
+     * every column.
+     * @return
+     */
+    public long[] completeRowMask() {
+        long[] mask = allRowsMask(rows);
+        for (long[] bits : validity) {
+            if (bits != null) {
+                for (int w = 0; w < mask.length; w++) {
+                    mask[w] &= bits[w];
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return the indices, in increasing order, of the rows that have a value in every column
+     */
+    public int[] completeRows() {
+        return setBits(completeRowMask());
+    }
+
+    /**
+     * @return true if bit {@code row} of a row bitmap is set
+     */
+    public static boolean isSet(long[] mask, int row) {
+        return (mask[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * @return the indices of the set bits of a row bitmap, in increasing order
+     */
+    public static int[] setBits(long[] mask) {
+        int count = 0;
+        for (long word : mask) {
+            count += Long.bitCount(word);
+        }
+        int[] indices = new int[count];
+        int i = 0;
+        for (int w = 0; w < mask.length; w++) {
+            long word = mask[w];
+            while (word != 0) {
+                indices[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * @return the mean of the values present in the column, or NaN if there are none
+     */
+    public double mean(int column) {
+        double sum = 0.0;
+        long[] bits = validity[column];
+        if (bits == null) {
+            for (int r = 0; r < rows; r++) {
+                sum += values[r * columns + column];
+            }
+        } else {
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    sum += values[((w << 6) + Long.numberOfTrailingZeros(word)) * columns + column];
+                    word &= word - 1;
+                }
+            }
+        }
+        return sum / presentCount(column);
+    }
+
+    /**
+     * @return the population standard deviation of the values present in the column,
+     * or NaN if there are none
+     */
+    public double standardDeviation(int column) {
+        double mean = mean(column);
+        double squaredDifferences = 0.0;
+        long[] mask = validity(column);
+        for (int w = 0; w < mask.length; w++) {
+            long word = mask[w];
+            while (word != 0) {
+                double difference = values[((w << 6) + Long.numberOfTrailingZeros(word)) * columns + column] - mean;
+                squaredDifferences += difference * difference;
+                word &= word - 1;
+            }
+        }
+        return Math.sqrt(squaredDifferences / presentCount(column));
+    }
+
+    /**
+     * @return the smallest value present in the column, or NaN if there are none
+     */
+    public double min(int column) {
+        return extreme(column, true);
+    }
+
+    /**
+     * @return the largest value present in the column, or NaN if there are none
+     */
+    public double max(int column) {
+        return extreme(column, false);
+    }
+
+    private double extreme(int column, boolean smallest) {
+        double extreme = Double.NaN;
+        long[] mask = validity(column);
+        for (int w = 0; w < mask.length; w++) {
+            long word = mask[w];
+            while (word != 0) {
+                double value = values[((w << 6) + Long.numberOfTrailingZeros(word)) * columns + column];
+                if (Double.isNaN(extreme) || (smallest ? value < extreme : value > extreme)) {
+                    extreme = value;
+                }
+                word &= word - 1;
+            }
+        }
+        return extreme;
+    }
+
+    private static long[] allRowsMask(int rows) {
+        long[] mask = new long[(rows + 63) >>> 6];
+        Arrays.fill(mask, -1L);
+        if ((rows & 63) != 0) {
+            mask[mask.length - 1] = (1L << rows) - 1;
+        }
+        return mask;
+    }
+
+    /**
+     * @return the position of the first value of the row in {@link #values()}
+     */
+    public int rowOffset(int row) {
+        return row * columns;
+    }
+
+    /**
+     * The backing row-major array. Changes to it are visible in the matrix, but a
+     * column-major view taken earlier is not updated.
+     * @return
+     */
+    public double[] values() {
+        return values;
+    }
+
+    /**
+     * Drop the column-major copy after the values were changed through {@link #values()}.
+     */
+    void valuesChanged() {
+        columnMajor = null;
+    }
+
+    /**
+     * A column-major copy of the values: all of column 0, then all of column 1, and so on.
+     * The copy is made on the first call and kept until the matrix is changed through
+     * {@link #set(int, int, double)}.
+     * @return
+     */
+    public double[] columnMajor() {
+        if (columnMajor == null) {
+            double[] transposed = new double[values.length];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    transposed[c * rows + r] = values[r * columns + c];
+                }
+            }
+            columnMajor = transposed;
+        }
+        return columnMajor;
+    }
+
+    @Override
+    public void copyRow(int row, double[] into) {
+        System.arraycopy(values, row * columns, into, 0, columns);
+    }
+
+    /**
+     * Create a new matrix holding only the given rows, in the given order. Missing values stay
+     * missing.
+     * @param selectedRows
+     * @return
+     */
+    public FeatureMatrix selectRows(int[] selectedRows) {
+        FeatureMatrix selection = new FeatureMatrix(selectedRows.length, columns, columnNames);
+        for (int i = 0; i < selectedRows.length; i++) {
+            System.arraycopy(values, selectedRows[i] * columns, selection.values, i * columns, columns);
+        }
+        for (int c = 0; c < columns; c++) {
+            long[] bits = validity[c];
+            if (bits != null) {
+                for (int i = 0; i < selectedRows.length; i++) {
+                    if (!isSet(bits, selectedRows[i])) {
+                        selection.setMissing(i, c);
+                    }
+                }
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * @see #selectRows(int[])
+     */
+    public FeatureMatrix selectRows(List<Integer> selectedRows) {
+        int[] rowArray = new int[selectedRows.size()];
+        for (int i = 0; i < rowArray.length; i++) {
+            rowArray[i] = selectedRows.get(i);
+        }
+        return selectRows(rowArray);
+    }
+
+    /**
+     * @return the row with missing values as null
+     */
+    public Double[] toBoxedRow(int row) {
+        Double[] boxed = new Double[columns];
+        for (int c = 0; c < columns; c++) {
+            boxed[c] = isPresent(row, c) ? values[row * columns + c] : null;
+        }
+        return boxed;
+    }
+
+    /**
+     * Copy the matrix into the boxed layout used by the plotting code.
+     * @return
+     */
+    public Double[][] toBoxedArray() {
+        Double[][] boxed = new Double[rows][];
+        for (int r = 0; r < rows; r++) {
+            boxed[r] = toBoxedRow(r);
+        }
+        return boxed;
+    }
+
+    private static String[] namesOrDefaults(String[] names, int columns) {
+        if (names == null || names.length == 0) {
+            String[] defaults = new String[columns];
+            for (int c = 0; c < columns; c++) {
+                defaults[c] = "column " + c;
+            }
+            return defaults;
+        }
+        if (names.length != columns) {
+            throw new IllegalArgumentException("Expected " + columns + " column names but got " + names.length);
+        }
+        return names.clone();
+    }
+
+    /**
+     * Collects rows one at a time when the number of rows is not known in advance,
+     * such as when reading a file.
+     */
+    public static class Builder {
+        private final int columns;
+        private final String[] columnNames;
+        private double[] values;
+        private long[][] validity;
+        private int rows;
+
+        public Builder(int columns, String... columnNames) {
+            this.columns = columns;
+            this.columnNames = namesOrDefaults(columnNames, columns);
+            this.values = new double[columns * 1024];
+        }
+
+        /**
+         * @param row must have the same number of values as the matrix has columns
+         */
+        public void addRow(double... row) {
+            if (row.length != columns) {
+                throw new IllegalArgumentException("Expected " + columns + " values but got " + row.length);
+            }
+            ensureCapacity();
+            System.arraycopy(row, 0, values, rows * columns, columns);
+            if (validity != null) {
+                for (long[] bits : validity) {
+                    if (bits != null) {
+                        bits[rows >>> 6] |= 1L << rows;
+                    }
+                }
+            }
+            rows++;
+        }
+
+        /**
+         * Add a row where some values may be missing. Only available for matrices with at most
+         * 64 columns.
+         * @param row must have the same number of values as the matrix has columns
+         * @param present bit c is set if column c has a value
+         */
+        public void addRow(double[] row, long present) {
+            if (columns > 64) {
+                throw new IllegalArgumentException("A presence mask can only describe 64 columns");
+            }
+            long allPresent = (columns == 64) ? -1L : (1L << columns) - 1;
+            if ((present & allPresent) == allPresent) {
+                addRow(row);
+                return;
+            }
+            if (row.length != columns) {
+                throw new IllegalArgumentException("Expected " + columns + " values but got " + row.length);
+            }
+            ensureCapacity();
+            if (validity == null) {
+                validity = new long[columns][];
+            }
+            int offset = rows * columns;
+            for (int c = 0; c < columns; c++) {
+                if ((present & (1L << c)) != 0) {
+                    values[offset + c] = row[c];
+                    if (validity[c] != null) {
+                        validity[c][rows >>> 6] |= 1L << rows;
+                    }
+                } else {
+                    values[offset + c] = Double.NaN;
+                    if (validity[c] == null) {
+                        // every earlier row had a value in this column
+                        validity[c] = allRowsMask(rows);
+                        validity[c] = Arrays.copyOf(validity[c], values.length / columns / 64 + 1);
+                    }
+                }
+            }
+            rows++;
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        /**
+         * @return a matrix holding the rows added so far. The builder should not be used afterwards.
+         */
+        public FeatureMatrix build() {
+            FeatureMatrix matrix = new FeatureMatrix(Arrays.copyOf(values, rows * columns), rows, columns, columnNames);
+            if (validity != null) {
+                int words = (rows + 63) >>> 6;
+                for (int c = 0; c < columns; c++) {
+                    if (validity[c] != null) {
+                        matrix.validity[c] = Arrays.copyOf(validity[c], words);
+                    }
+                }
+            }
+            return matrix;
+        }
+
+        private void ensureCapacity() {
+            if ((rows + 1) * columns > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                if (validity != null) {
+                    int words = values.length / columns / 64 + 1;
+                    for (int c = 0; c < columns; c++) {
+                        if (validity[c] != null) {
+                            validity[c] = Arrays.copyOf(validity[c], words);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Saves a {@link FeatureMatrix}, including its missing values, in a binary file that loads with a
+ * few bulk reads. The layout is:
+ * <code><ul>
+ *     <li>8 bytes - the magic string EXOFMAT1</li>
+ *     <li>int - number of rows</li>
+ *     <li>int - number of columns</li>
+ *     <li>for every column: short name length, then the name in UTF-8</li>
+ *     <li>for every column: byte 1 if the column has missing values, else 0</li>
+ *     <li>the values, row-major</li>
+ *     <li>for every column with missing values: its validity bitmap, one bit per row</li>
+ * </ul></code>
+ * <p> All numbers are little-endian.</p>
+ *
+ * @author ppeirce
+ */
+public final class FeatureMatrixFile {
+    private static final byte[] MAGIC = "EXOFMAT1".getBytes(StandardCharsets.US_ASCII);
+
+    private FeatureMatrixFile() {
+
+    }
+
+    public static void write(FeatureMatrix matrix, File file) throws IOException {
+        int rows = matrix.rows();
+        int columns = matrix.columns();
+        boolean[] hasMissing = new boolean[columns];
+        int missingColumns = 0;
+        int headerSize = MAGIC.length + 4 + 4 + columns;
+        byte[][] names = new byte[columns][];
+        for (int c = 0; c < columns; c++) {
+            names[c] = matrix.columnName(c).getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + names[c].length;
+            hasMissing[c] = matrix.presentCount(c) < rows;
+            if (hasMissing[c]) missingColumns++;
+        }
+        int words = (rows + 63) >>> 6;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + 8 * rows * columns + 8 * words * missingColumns)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(rows);
+        buffer.putInt(columns);
+        for (byte[] name : names) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        for (boolean missing : hasMissing) {
+            buffer.put((byte) (missing ? 1 : 0));
+        }
+        buffer.asDoubleBuffer().put(matrix.values(), 0, rows * columns);
+        buffer.position(buffer.position() + 8 * rows * columns);
+        for (int c = 0; c < columns; c++) {
+            if (hasMissing[c]) {
+                buffer.asLongBuffer().put(matrix.validity(c));
+                buffer.position(buffer.position() + 8 * words);
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or was not written by {@link #write(FeatureMatrix, File)}
+     */
+    public static FeatureMatrix read(File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large for a feature matrix");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+        }
+        buffer.flip();
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a feature matrix file");
+            }
+            int rows = buffer.getInt();
+            int columns = buffer.getInt();
+            String[] names = new String[columns];
+            for (int c = 0; c < columns; c++) {
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                names[c] = new String(name, StandardCharsets.UTF_8);
+            }
+            boolean[] hasMissing = new boolean[columns];
+            for (int c = 0; c < columns; c++) {
+                hasMissing[c] = buffer.get() != 0;
+            }
+            double[] values = new double[rows * columns];
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + 8 * values.length);
+            FeatureMatrix matrix = new FeatureMatrix(values, rows, columns, names);
+            long[] validity = new long[(rows + 63) >>> 6];
+            for (int c = 0; c < columns; c++) {
+                if (hasMissing[c]) {
+                    buffer.asLongBuffer().get(validity);
+                    buffer.position(buffer.position() + 8 * validity.length);
+                    for (int r = 0; r < rows; r++) {
+                        if (!FeatureMatrix.isSet(validity, r)) {
+                            matrix.setMissing(r, c);
+                        }
+                    }
+                }
+            }
+            return matrix;
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.nyu.cs.pa.metrics.Gauge;
+import edu.nyu.cs.pa.metrics.Metrics;
+
+/**
+ * A matrix of doubles kept outside the Java heap, for stars that are too many to hold in a
+ * {@link FeatureMatrix}.
+ * <p> Rows are appended, and the values go into direct buffers of up to 16 MB of whole rows,
+ * allocated as they fill up. The matrix can therefore grow past 2 GB and up to the memory of the
+ * machine, while the heap only holds one small object per chunk. The garbage collector never
+ * scans or copies the values.</p>
+ * <p> The memory is released by {@link #close()}, not when the matrix is garbage collected, so a
+ * matrix should be used in a try-with-resources block. The matrix must not be read after it is
+ * closed, and must not be closed while another thread is still reading it.</p>
+ * <p> Rows can be sorted and removed in place, so a matrix can also be deduplicated without a
+ * heap array the size of the matrix.</p>
+ * <p> Like a {@link StarCatalog}, it is a {@link RowSource}, so KNN, the {@link Standardizer} and
+ * {@link ColumnStatistics} read it directly. Missing values are stored as NaN.</p>
+ *
+ * @author ppeirce
+ */
+public final class OffHeapMatrix implements RowSource, Closeable {
+    /**
+     * The size of the buffers the matrix grows by. Large enough that a billion rows need only a
+     * few thousand, small enough that a small matrix does not allocate and zero much it does not
+     * use.
+     */
+    private static final int CHUNK_BYTES = 16 << 20;
+    private static final AtomicLong ALLOCATED = new AtomicLong();
+    private static final Gauge ALLOCATED_BYTES = Metrics.global().gauge("offheap_allocated_bytes",
+            "Bytes held outside the heap by open off-heap matrices");
+
+    private final int columns;
+    private final String[] columnNames;
+    private final DoubleChunks chunks;
+    private long allocated;
+    private long capacity;
+    private int rows;
+    private boolean closed;
+
+    /**
+     * Create an empty matrix. Nothing is allocated until the first row is added.
+     * @param columns
+     * @param columnNames optional, one per column
+     */
+    public OffHeapMatrix(int columns, String... columnNames) {
+        this(columns, DoubleChunks.rowsPerChunk(columns, CHUNK_BYTES), columnNames);
+    }
+
+    /**
+     * @param rowsPerChunk a power of two. Smaller chunks are useful for exercising chunk boundaries.
+     */
+    OffHeapMatrix(int columns, int rowsPerChunk, String... columnNames) {
+        if (columns < 1) {
+            throw new IllegalArgumentException("A matrix needs at least one column");
+        }
+        if (columnNames.length != 0 && columnNames.length != columns) {
+            throw new IllegalArgumentException("Expected " + columns + " column names but got " + columnNames.length);
+        }
+        this.columns = columns;
+        this.columnNames = columnNames.clone();
+        this.chunks = new DoubleChunks(new ByteBuffer[0], columns, rowsPerChunk);
+    }
+
+    /**
+     * Copy every row of a source, such as a {@link StarCatalog}, into a new off-heap matrix.
+     */
+    public static OffHeapMatrix copyOf(RowSource source) {
+        String[] names = new String[source.columns()];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = source.columnName(c);
+        }
+        OffHeapMatrix matrix = new OffHeapMatrix(source.columns(), names);
+        double[] row = new double[source.columns()];
+        for (int i = 0; i < source.rows(); i++) {
+            source.copyRow(i, row);
+            matrix.addRow(row);
+        }
+        return matrix;
+    }
+
+    /**
+     * Append a row.
+     * @param values one value per column, NaN where a value is missing
+     */
+    public void addRow(double... values) {
+        checkOpen();
+        if (values.length != columns) {
+            throw new IllegalArgumentException("Expected " + columns + " values but got " + values.length);
+        }
+        if (rows == Integer.MAX_VALUE) {
+            throw new IllegalStateException("The matrix cannot hold more than " + Integer.MAX_VALUE + " rows");
+        }
+        if (rows == capacity) {
+            long bytes = chunks.allocateChunk();
+            capacity += chunks.rowsPerChunk();
+            allocated += bytes;
+            ALLOCATED_BYTES.set(ALLOCATED.addAndGet(bytes));
+        }
+        chunks.setRow(rows++, values);
+    }
+
+    /**
+     * Drop the given rows and move the rest down in place, in the order they were, so no second
+     * copy of the matrix is needed.
+     * @param dropped ascending row indices in its first column, such as another off-heap matrix
+     * after {@link #sortRows()}. An index given more than once is dropped once.
+     */
+    public void removeRows(RowSource dropped) {
+        checkOpen();
+        double previous = 0;
+        for (int i = 0; i < dropped.rows(); i++) {
+            double row = dropped.get(i, 0);
+            if (!(row >= previous && row < rows) || row != Math.rint(row)) {
+                throw new IllegalArgumentException("Rows to drop must be ascending and below " + rows + ", not " + row);
+            }
+            previous = row;
+        }
+        double[] values = new double[columns];
+        int kept = 0;
+        int next = 0;
+        for (int from = 0; from < rows; from++) {
+            if (next < dropped.rows() && dropped.get(next, 0) == from) {
+                while (next < dropped.rows() && dropped.get(next, 0) == from) {
+                    next++;
+                }
+                continue;
+            }
+            if (from != kept) {
+                chunks.copyRow(from, values);
+                chunks.setRow(kept, values);
+            }
+            kept++;
+        }
+        rows = kept;
+    }
+
+    /**
+     * Sort the rows in place, in ascending order of their first column, then of their second,
+     * and so on, as {@link Double#compare(double, double)} orders values. Nothing the size of
+     * the matrix is allocated on the heap.
+     */
+    public void sortRows() {
+        checkOpen();
+        sortRows(0, rows - 1, new double[columns], new double[columns], new double[columns]);
+    }
+
+    /**
+     * Sort the rows [lo, hi].
+     */
+    private void sortRows(int lo, int hi, double[] pivot, double[] a, double[] b) {
+        while (hi - lo > 16) {
+            chunks.copyRow((lo + hi) >>> 1, pivot);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compareRow(i, pivot, a) < 0) i++;
+                while (compareRow(j, pivot, a) > 0) j--;
+                if (i <= j) {
+                    swapRows(i++, j--, a, b);
+                }
+            }
+            // recurse into the smaller side to bound the stack depth
+            if (j - lo < hi - i) {
+                sortRows(lo, j, pivot, a, b);
+                lo = i;
+            } else {
+                sortRows(i, hi, pivot, a, b);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            chunks.copyRow(i, pivot);
+            int j = i;
+            while (j > lo && compareRow(j - 1, pivot, a) > 0) {
+                chunks.copyRow(j - 1, a);
+                chunks.setRow(j, a);
+                j--;
+            }
+            if (j != i) {
+                chunks.setRow(j, pivot);
+            }
+        }
+    }
+
+    /**
+     * @param scratch receives the row
+     */
+    private int compareRow(int row, double[] values, double[] scratch) {
+        chunks.copyRow(row, scratch);
+        for (int c = 0; c < columns; c++) {
+            int order = Double.compare(scratch[c], values[c]);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    private void swapRows(int i, int j, double[] a, double[] b) {
+        chunks.copyRow(i, a);
+        chunks.copyRow(j, b);
+        chunks.setRow(i, b);
+        chunks.setRow(j, a);
+    }
+
+    public void set(int row, int column, double value) {
+        checkOpen();
+        checkRow(row);
+        chunks.set(row, column, value);
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public String columnName(int column) {
+        return (columnNames.length == 0) ? "column " + column : columnNames[column];
+    }
+
+    @Override
+    public double get(int row, int column) {
+        checkOpen();
+        checkRow(row);
+        return chunks.get(row, column);
+    }
+
+    @Override
+    public void copyRow(int row, double[] into) {
+        checkOpen();
+        checkRow(row);
+        chunks.copyRow(row, into);
+    }
+
+    /**
+     * @return the bytes this matrix holds outside the heap
+     */
+    public long allocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Release the memory. Closing a matrix twice does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        rows = 0;
+        capacity = 0;
+        chunks.freeAll();
+        ALLOCATED_BYTES.set(ALLOCATED.addAndGet(-allocated));
+        allocated = 0;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The matrix has been closed");
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapMatrix " + rows + " x " + columns + " " + Arrays.toString(columnNames);
+    }
+}
@@ -0,0 +1,171 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads selected numeric columns of a tab separated file.
+ * <p> Only the tabs up to the last selected column are found on each line, and only the selected
+ * fields are parsed, straight from the raw bytes into doubles. The other columns, which are the
+ * large majority of the NASA planet catalog, are never turned into Strings.</p>
+ * <p> Rows are streamed to a {@link RowHandler} together with a bit mask of which selected columns
+ * had a value, so that blank fields are reported explicitly instead of being replaced with a
+ * sentinel value. At most 64 columns can be selected.</p>
+ *
+ * @author ppeirce
+ */
+public class ProjectedTsvReader {
+    private static final ReaderMetrics METRICS = new ReaderMetrics("tsv");
+
+    private final int[] columns;
+    private final int[] slotOfColumn;
+    private final int lastColumn;
+    private final boolean skipHeader;
+
+    /**
+     * Receives the selected values of one row at a time.
+     */
+    public interface RowHandler {
+        /**
+         * @param values the selected values, in the order the columns were given. Blank fields are
+         * 0.0. The array is reused for every row.
+         * @param present bit i is set if the i-th selected column had a value
+         */
+        void row(double[] values, long present);
+    }
+
+    /**
+     * Select columns by index. Every line of the file is treated as data.
+     * @param columns zero-based column indices
+     */
+    public ProjectedTsvReader(int... columns) {
+        this(false, columns);
+    }
+
+    private ProjectedTsvReader(boolean skipHeader, int... columns) {
+        if (columns.length == 0 || columns.length > 64) {
+            throw new IllegalArgumentException("Between 1 and 64 columns must be selected");
+        }
+        this.skipHeader = skipHeader;
+        this.columns = columns.clone();
+        int last = 0;
+        for (int column : columns) {
+            if (column < 0) {
+                throw new IllegalArgumentException("Column indices cannot be negative");
+            }
+            last = Math.max(last, column);
+        }
+        this.lastColumn = last;
+        this.slotOfColumn = new int[lastColumn + 1];
+        Arrays.fill(slotOfColumn, -1);
+        for (int slot = 0; slot < columns.length; slot++) {
+            if (slotOfColumn[columns[slot]] >= 0) {
+                throw new IllegalArgumentException("Column " + columns[slot] + " is selected twice");
+            }
+            slotOfColumn[columns[slot]] = slot;
+        }
+    }
+
+    /**
+     * Select columns by the names on the first line of the file. The first line is then skipped
+     * when reading.
+     * @param file a tab separated file with a header line
+     * @param names column names from the header
+     * @return
+     * @throws IOException if the file cannot be read or a name is not in the header
+     */
+    public static ProjectedTsvReader forHeaderNames(File file, String... names) throws IOException {
+        String header;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            header = reader.readLine();
+        }
+        if (header == null) {
+            throw new IOException(file + " is empty");
+        }
+        String[] headerNames = header.split("\t");
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = -1;
+            for (int c = 0; c < headerNames.length; c++) {
+                if (headerNames[c].trim().equals(names[i])) {
+                    columns[i] = c;
+                    break;
+                }
+            }
+            if (columns[i] < 0) {
+                throw new IOException("Column " + names[i] + " is not in the header of " + file);
+            }
+        }
+        return new ProjectedTsvReader(true, columns);
+    }
+
+    /**
+     * @return the selected column indices, in the order their values are reported
+     */
+    public int[] columns() {
+        return columns.clone();
+    }
+
+    /**
+     * Stream every row of the file to the handler.
+     * @param file
+     * @param handler
+     * @return the number of rows read
+     * @throws IOException
+     * @throws NumberFormatException if a selected field is not blank and not a number
+     */
+    public long read(File file, final RowHandler handler) throws IOException {
+        final double[] values = new double[columns.length];
+        final boolean[] header = {skipHeader};
+        long lines;
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(file)) {
+            lines = ByteLines.forEachLine(in, new ByteLines.Handler() {
+                @Override
+                public void line(byte[] buffer, int from, int to) {
+                    if (header[0]) {
+                        header[0] = false;
+                        return;
+                    }
+                    handler.row(values, parseLine(buffer, from, to, values));
+                }
+            });
+        }
+        long rows = skipHeader ? Math.max(0, lines - 1) : lines;
+        METRICS.fileRead(rows, file.length(), System.nanoTime() - start);
+        return rows;
+    }
+
+    /**
+     * @return the mask of selected columns that had a value
+     */
+    private long parseLine(byte[] line, int from, int to, double[] values) {
+        long present = 0L;
+        int column = 0;
+        int start = from;
+        for (int i = from; i <= to && column <= lastColumn; i++) {
+            if (i == to || line[i] == '\t') {
+                int slot = slotOfColumn[column];
+                if (slot >= 0) {
+                    if (i > start) {
+                        values[slot] = ByteLines.parseDouble(line, start, i);
+                        present |= 1L << slot;
+                    } else {
+                        values[slot] = 0.0;
+                    }
+                }
+                column++;
+                start = i + 1;
+            }
+        }
+        // columns past the end of a short line are blank
+        for (; column <= lastColumn; column++) {
+            int slot = slotOfColumn[column];
+            if (slot >= 0) {
+                values[slot] = 0.0;
+            }
+        }
+        return present;
+    }
+}
@@ -0,0 +1,38 @@
+package edu.nyu.cs.pa.data;
+
+import edu.nyu.cs.pa.metrics.Counter;
+import edu.nyu.cs.pa.metrics.Gauge;
+import edu.nyu.cs.pa.metrics.Metrics;
+
+/**
+ * The metrics of one kind of catalog reader: the rows and bytes it has read, and the parse rate
+ * of the last file it read.
+ *
+ * @author ppeirce
+ */
+final class ReaderMetrics {
+    private final Counter rows;
+    private final Counter bytes;
+    private final Gauge rowsPerSecond;
+
+    /**
+     * @param reader the label value that tells the readers apart, such as tic
+     */
+    ReaderMetrics(String reader) {
+        Metrics metrics = Metrics.global();
+        this.rows = metrics.counter("parse_rows_total", "Rows read from catalog files", "reader", reader);
+        this.bytes = metrics.counter("parse_bytes_total", "Bytes read from catalog files", "reader", reader);
+        this.rowsPerSecond = metrics.gauge("parse_rows_per_second", "Rows per second parsed from the last catalog file read", "reader", reader);
+    }
+
+    /**
+     * Record one file that has been read.
+     */
+    void fileRead(long rowsRead, long bytesRead, long nanos) {
+        rows.add(rowsRead);
+        bytes.add(bytesRead);
+        if (nanos > 0) {
+            rowsPerSecond.set(rowsRead / (nanos / 1e9));
+        }
+    }
+}
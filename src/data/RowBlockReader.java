@@ -0,0 +1,225 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a star catalog a block of rows at a time, on a thread of its own, so that a catalog of
+ * any size can be processed in a fixed amount of memory.
+ * <p> The reader fills blocks of a fixed number of rows and hands them over through a queue of
+ * fixed length. While the caller works on one block the reader fills the next ones, so reading
+ * overlaps with the work, and when the queue is full the reader waits. At most the queued
+ * blocks, the one being filled and the one being worked on are held at a time, whatever the
+ * size of the catalog.</p>
+ * <p> Blocks are read either from a binary {@link StarCatalog} or from a comma separated file
+ * with one star per line and nothing but numbers in it, such as combined_tic.csv. Reading can
+ * start part way into the catalog, to pick up where an earlier run stopped.</p>
+ *
+ * @author ppeirce
+ */
+public final class RowBlockReader implements Closeable {
+    // marks the end of the catalog in the queue
+    private static final FeatureMatrix END = new FeatureMatrix(0, 1);
+
+    private final BlockingQueue<FeatureMatrix> queue;
+    private final Thread thread;
+    private final Closeable source;
+    private volatile Throwable failure;
+    private long rowsRead;
+    private boolean finished;
+
+    private RowBlockReader(final RowProducer producer, Closeable source, final int blockRows, int queueLength,
+                           final String[] columnNames, String name) {
+        this.queue = new ArrayBlockingQueue<>(queueLength);
+        this.source = source;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean closed = false;
+                try {
+                    int columns = columnNames.length;
+                    double[] row = new double[columns];
+                    double[] values = new double[blockRows * columns];
+                    int rows = 0;
+                    while (producer.next(row)) {
+                        System.arraycopy(row, 0, values, rows * columns, columns);
+                        if (++rows == blockRows) {
+                            queue.put(new FeatureMatrix(values, rows, columns, columnNames));
+                            values = new double[blockRows * columns];
+                            rows = 0;
+                        }
+                    }
+                    if (rows > 0) {
+                        queue.put(new FeatureMatrix(Arrays.copyOf(values, rows * columns), rows, columns, columnNames));
+                    }
+                } catch (InterruptedException e) {
+                    // closed before the end, so nobody is waiting for END
+                    closed = true;
+                } catch (Throwable e) {
+                    // anything else, even an Error such as running out of memory, must still
+                    // reach the caller, or next() would wait for a block that never comes
+                    failure = e;
+                } finally {
+                    if (!closed) {
+                        try {
+                            queue.put(END);
+                        } catch (InterruptedException e) {
+                            // closed before the end
+                        }
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read a binary catalog written by {@link StarCatalogWriter}.
+     * @param catalog
+     * @param firstRow the row to start at. The rows before it are skipped.
+     * @param blockRows the number of rows in every block but the last
+     * @param queueLength the number of blocks read ahead of the caller
+     */
+    public static RowBlockReader fromCatalog(File catalog, final long firstRow, int blockRows, int queueLength) throws IOException {
+        checkSizes(firstRow, blockRows, queueLength);
+        final StarCatalog stars = StarCatalog.open(catalog);
+        String[] columnNames = new String[stars.columns()];
+        for (int c = 0; c < columnNames.length; c++) {
+            columnNames[c] = stars.columnName(c);
+        }
+        RowProducer producer = new RowProducer() {
+            private long next = firstRow;
+
+            @Override
+            public boolean next(double[] row) {
+                if (next >= stars.rows()) {
+                    return false;
+                }
+                stars.copyRow((int) next++, row);
+                return true;
+            }
+        };
+        return new RowBlockReader(producer, stars, blockRows, queueLength, columnNames, "block reader " + catalog);
+    }
+
+    /**
+     * Read a comma separated file with one value per column on every line.
+     * @param csv
+     * @param firstRow the line to start at, counting from 0. The lines before it are read but
+     * not parsed.
+     * @param blockRows the number of rows in every block but the last
+     * @param queueLength the number of blocks read ahead of the caller
+     * @param columnNames one per column
+     */
+    public static RowBlockReader fromCsv(final File csv, final long firstRow, int blockRows, int queueLength,
+                                         String... columnNames) throws IOException {
+        checkSizes(firstRow, blockRows, queueLength);
+        final BufferedReader reader = new BufferedReader(new FileReader(csv), 1 << 16);
+        RowProducer producer = new RowProducer() {
+            private long line = 0;
+
+            @Override
+            public boolean next(double[] row) throws IOException {
+                while (line < firstRow) {
+                    if (reader.readLine() == null) {
+                        return false;
+                    }
+                    line++;
+                }
+                String text = reader.readLine();
+                if (text == null) {
+                    return false;
+                }
+                line++;
+                int start = 0;
+                for (int i = 0; i < row.length; i++) {
+                    int end = text.indexOf(',', start);
+                    if (end < 0) end = text.length();
+                    try {
+                        row[i] = Double.parseDouble(text.substring(start, end));
+                    } catch (NumberFormatException e) {
+                        throw new IOException(csv + " line " + line + " column " + (i + 1) + " is not a number", e);
+                    }
+                    start = end + 1;
+                }
+                return true;
+            }
+        };
+        return new RowBlockReader(producer, reader, blockRows, queueLength, columnNames, "block reader " + csv);
+    }
+
+    private static void checkSizes(long firstRow, int blockRows, int queueLength) {
+        if (firstRow < 0) {
+            throw new IllegalArgumentException("The first row cannot be negative");
+        }
+        if (blockRows < 1 || queueLength < 1) {
+            throw new IllegalArgumentException("Blocks and the queue must hold at least one entry");
+        }
+    }
+
+    /**
+     * Wait for the next block.
+     * @return the next block, or null after the last one
+     * @throws IOException if the catalog could not be read. The blocks before the failure have
+     * already been returned. An Error on the reader thread is rethrown as it is.
+     */
+    public FeatureMatrix next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        FeatureMatrix block;
+        try {
+            block = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        }
+        if (block == END) {
+            finished = true;
+            if (failure != null) {
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw (failure instanceof IOException) ? (IOException) failure : new IOException(failure);
+            }
+            return null;
+        }
+        rowsRead += block.rows();
+        return block;
+    }
+
+    /**
+     * @return the number of rows in the blocks returned so far, not counting the rows skipped
+     */
+    public long rowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * Stop reading, if the end has not been reached, and close the catalog.
+     */
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        source.close();
+    }
+
+    /**
+     * The rows of a catalog, one after the other.
+     */
+    private interface RowProducer {
+        /**
+         * @return false at the end of the catalog, otherwise true with the next row in row
+         */
+        boolean next(double[] row) throws IOException;
+    }
+}
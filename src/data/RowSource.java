@@ -0,0 +1,28 @@
+package edu.nyu.cs.pa.data;
+
+/**
+ * Read access to a table of doubles, one observation per row.
+ * <p> Implemented both by {@link FeatureMatrix}, which holds its values on the heap, and by
+ * {@link StarCatalog}, which reads them from a memory-mapped file, so that classification can
+ * run over either without copying a whole catalog onto the heap.</p>
+ * <p> Implementations must allow concurrent reads from several threads.</p>
+ *
+ * @author ppeirce
+ */
+public interface RowSource {
+
+    int rows();
+
+    int columns();
+
+    String columnName(int column);
+
+    double get(int row, int column);
+
+    /**
+     * Copy a row into a caller-provided array.
+     * @param row
+     * @param into must have at least {@link #columns()} elements
+     */
+    void copyRow(int row, double[] into);
+}
@@ -0,0 +1,342 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scales each column to zero mean and unit standard deviation, using the mean and standard
+ * deviation of the data it was fitted to.
+ * <p> (standardized feature) = ((feature) - (mean)) / (standard deviation)</p>
+ * <p> The mean and variance are accumulated in a single pass with Welford's algorithm, which does
+ * not lose precision the way summing squares does. Two partial fits can be merged, so rows can be
+ * fitted in parallel ranges or as they arrive, and the result is the same as one fit over all of
+ * them up to rounding.</p>
+ * <p> Once fitted, the parameters can be saved and loaded, and new rows, such as a batch of TIC
+ * stars, are standardized in place without going back to the data the scaler was fitted to.</p>
+ * <p> NaN values, which is how {@link FeatureMatrix} stores missing cells, are ignored when
+ * fitting and stay NaN when transformed. The standard deviation is the population one. A column
+ * whose values are all equal is only centered.</p>
+ *
+ * @author ppeirce
+ */
+public final class Standardizer {
+    private static final byte[] MAGIC = "EXOSCAL1".getBytes(StandardCharsets.US_ASCII);
+
+    private final long[] count;
+    private final double[] mean;
+    // sum of squared differences from the mean
+    private final double[] m2;
+
+    /**
+     * Create an empty scaler. Rows must be added before it can transform.
+     * @param columns
+     */
+    public Standardizer(int columns) {
+        if (columns < 1) {
+            throw new IllegalArgumentException("A scaler needs at least one column");
+        }
+        this.count = new long[columns];
+        this.mean = new double[columns];
+        this.m2 = new double[columns];
+    }
+
+    /**
+     * @return a scaler fitted to every row
+     */
+    public static Standardizer fit(RowSource rows) {
+        Standardizer scaler = new Standardizer(rows.columns());
+        scaler.addRows(rows, 0, rows.rows());
+        return scaler;
+    }
+
+    /**
+     * Fit ranges of rows on several threads and merge them. The ranges are merged in order, so
+     * the result does not depend on timing.
+     * @param rows
+     * @param parallelism the number of threads
+     * @return
+     */
+    public static Standardizer fitInParallel(RowSource rows, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        int total = rows.rows();
+        int parts = Math.max(1, Math.min(parallelism, total));
+        if (parts == 1) {
+            return fit(rows);
+        }
+        List<Future<Standardizer>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            for (int p = 0; p < parts; p++) {
+                int from = (int) ((long) total * p / parts);
+                int to = (int) ((long) total * (p + 1) / parts);
+                results.add(pool.submit(new PartialFit(rows, from, to)));
+            }
+            Standardizer scaler = new Standardizer(rows.columns());
+            for (Future<Standardizer> result : results) {
+                scaler.merge(result.get());
+            }
+            return scaler;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fitting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A partial fit failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class PartialFit implements Callable<Standardizer> {
+        private final RowSource rows;
+        private final int from;
+        private final int to;
+
+        PartialFit(RowSource rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Standardizer call() {
+            Standardizer scaler = new Standardizer(rows.columns());
+            scaler.addRows(rows, from, to);
+            return scaler;
+        }
+    }
+
+    public int columns() {
+        return mean.length;
+    }
+
+    /**
+     * Add one row to the fit.
+     * @param row must have at least {@link #columns()} elements
+     */
+    public void add(double[] row) {
+        for (int c = 0; c < mean.length; c++) {
+            double value = row[c];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            long n = ++count[c];
+            double delta = value - mean[c];
+            mean[c] += delta / n;
+            m2[c] += delta * (value - mean[c]);
+        }
+    }
+
+    /**
+     * Add the rows [from, to) to the fit.
+     */
+    public void addRows(RowSource rows, int from, int to) {
+        checkColumns(rows.columns());
+        double[] row = new double[mean.length];
+        for (int r = from; r < to; r++) {
+            rows.copyRow(r, row);
+            add(row);
+        }
+    }
+
+    /**
+     * Combine another partial fit into this one, as if its rows had been added here.
+     * @param other fitted to the same columns. It is not changed.
+     */
+    public void merge(Standardizer other) {
+        checkColumns(other.columns());
+        for (int c = 0; c < mean.length; c++) {
+            long n = count[c] + other.count[c];
+            if (other.count[c] == 0) {
+                continue;
+            }
+            double delta = other.mean[c] - mean[c];
+            mean[c] += delta * other.count[c] / n;
+            m2[c] += other.m2[c] + delta * delta * ((double) count[c] * other.count[c] / n);
+            count[c] = n;
+        }
+    }
+
+    /**
+     * @return the number of values seen in the column
+     */
+    public long count(int column) {
+        return count[column];
+    }
+
+    /**
+     * @return the mean of the column, or NaN if no values have been seen
+     */
+    public double mean(int column) {
+        return (count[column] > 0) ? mean[column] : Double.NaN;
+    }
+
+    /**
+     * @return the population standard deviation of the column, or NaN if no values have been seen
+     */
+    public double standardDeviation(int column) {
+        return (count[column] > 0) ? Math.sqrt(m2[column] / count[column]) : Double.NaN;
+    }
+
+    /**
+     * Standardize a row in place.
+     * @param row must have at least {@link #columns()} elements
+     */
+    public void transformInPlace(double[] row) {
+        transformInPlace(row, 0, 1);
+    }
+
+    /**
+     * Standardize consecutive rows of a row-major array in place.
+     * @param values
+     * @param offset the position of the first value of the first row
+     * @param rows the number of rows
+     * @throws IllegalStateException if a column has no values to scale by
+     */
+    public void transformInPlace(double[] values, int offset, int rows) {
+        double[] scale = scales();
+        int columns = mean.length;
+        for (int r = 0; r < rows; r++) {
+            int rowOffset = offset + r * columns;
+            for (int c = 0; c < columns; c++) {
+                values[rowOffset + c] = (values[rowOffset + c] - mean[c]) * scale[c];
+            }
+        }
+    }
+
+    /**
+     * Standardize every value of the matrix in place. Missing values stay missing.
+     */
+    public void transformInPlace(FeatureMatrix matrix) {
+        checkColumns(matrix.columns());
+        transformInPlace(matrix.values(), 0, matrix.rows());
+        matrix.valuesChanged();
+    }
+
+    /**
+     * @return a standardized copy of the matrix, with the same column names and missing values
+     */
+    public FeatureMatrix transform(FeatureMatrix matrix) {
+        int[] all = new int[matrix.rows()];
+        for (int r = 0; r < all.length; r++) {
+            all[r] = r;
+        }
+        FeatureMatrix copy = matrix.selectRows(all);
+        transformInPlace(copy);
+        return copy;
+    }
+
+    /**
+     * A view of the rows in which every row read is standardized on the fly. Nothing is copied up
+     * front, so this works for memory-mapped catalogs too.
+     */
+    public RowSource scaled(final RowSource rows) {
+        checkColumns(rows.columns());
+        final double[] scale = scales();
+        return new RowSource() {
+            @Override
+            public int rows() {
+                return rows.rows();
+            }
+
+            @Override
+            public int columns() {
+                return rows.columns();
+            }
+
+            @Override
+            public String columnName(int column) {
+                return rows.columnName(column);
+            }
+
+            @Override
+            public double get(int row, int column) {
+                return (rows.get(row, column) - mean[column]) * scale[column];
+            }
+
+            @Override
+            public void copyRow(int row, double[] into) {
+                rows.copyRow(row, into);
+                for (int c = 0; c < scale.length; c++) {
+                    into[c] = (into[c] - mean[c]) * scale[c];
+                }
+            }
+        };
+    }
+
+    /**
+     * @return 1 / standard deviation of each column, or 1 where the standard deviation is 0
+     */
+    private double[] scales() {
+        double[] scale = new double[mean.length];
+        for (int c = 0; c < scale.length; c++) {
+            if (count[c] == 0) {
+                throw new IllegalStateException("Column " + c + " has not been fitted");
+            }
+            double deviation = standardDeviation(c);
+            scale[c] = (deviation > 0) ? 1.0 / deviation : 1.0;
+        }
+        return scale;
+    }
+
+    private void checkColumns(int columns) {
+        if (columns != mean.length) {
+            throw new IllegalArgumentException("Expected " + mean.length + " columns but got " + columns);
+        }
+    }
+
+    /**
+     * Save the fitted state. The counts are kept, so a loaded scaler can go on fitting.
+     * <p> The layout is the magic string EXOSCAL1, the number of columns as an int, then for every
+     * column its count, mean and sum of squared differences, all little-endian.</p>
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 4 + 24 * mean.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(mean.length);
+        for (int c = 0; c < mean.length; c++) {
+            buffer.putLong(count[c]);
+            buffer.putDouble(mean[c]);
+            buffer.putDouble(m2[c]);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(buffer.array());
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or was not written by {@link #save(File)}
+     */
+    public static Standardizer load(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        if (bytes.length < MAGIC.length + 4) {
+            throw new IOException(file + " is truncated");
+        }
+        buffer.get(magic);
+        int columns = buffer.getInt();
+        if (!Arrays.equals(magic, MAGIC) || columns < 1 || buffer.remaining() != 24L * columns) {
+            throw new IOException(file + " is not a scaler file");
+        }
+        Standardizer scaler = new Standardizer(columns);
+        for (int c = 0; c < columns; c++) {
+            scaler.count[c] = buffer.getLong();
+            scaler.mean[c] = buffer.getDouble();
+            scaler.m2[c] = buffer.getDouble();
+        }
+        return scaler;
+    }
+}
@@ -0,0 +1,178 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A binary star catalog written by {@link StarCatalogWriter}, opened through a memory map.
+ * <p> Opening a catalog only reads its header. The values stay in the mapped file and are read
+ * by the operating system on demand, so there is no parsing and nothing the size of the catalog
+ * is allocated on the heap.</p>
+ * <p> The values are mapped in chunks of up to 1 GB of whole rows, so a catalog can be far larger
+ * than the 2 GB one mapping can cover.</p>
+ * <p> Reads use absolute positions, so one catalog can be shared between threads.</p>
+ *
+ * @author ppeirce
+ */
+public class StarCatalog implements RowSource, Closeable {
+    private final File file;
+    private final FileChannel channel;
+    private final DoubleChunks data;
+    private final int rows;
+    private final int columns;
+    private final String[] columnNames;
+    private final double[] min;
+    private final double[] max;
+    private final double[] mean;
+    private final double[] standardDeviation;
+
+    private StarCatalog(File file, FileChannel channel, DoubleChunks data, int rows, String[] columnNames,
+                        double[] min, double[] max, double[] mean, double[] standardDeviation) {
+        this.file = file;
+        this.channel = channel;
+        this.data = data;
+        this.rows = rows;
+        this.columns = columnNames.length;
+        this.columnNames = columnNames;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.standardDeviation = standardDeviation;
+    }
+
+    /**
+     * Map a catalog file.
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a star catalog
+     */
+    public static StarCatalog open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            ByteBuffer start = ByteBuffer.allocate(StarCatalogWriter.MAGIC.length + 4 + 8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, start, 0);
+            byte[] magic = new byte[StarCatalogWriter.MAGIC.length];
+            start.get(magic);
+            if (!Arrays.equals(magic, StarCatalogWriter.MAGIC)) {
+                throw new IOException(file + " is not a star catalog");
+            }
+            int columns = start.getInt();
+            long rows = start.getLong();
+
+            // the names come first and decide the size of the rest of the header
+            ByteBuffer names = ByteBuffer.allocate((int) Math.min(channel.size(), 1 << 20)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, names, start.capacity());
+            String[] columnNames = new String[columns];
+            for (int c = 0; c < columns; c++) {
+                byte[] name = new byte[names.getShort()];
+                names.get(name);
+                columnNames[c] = new String(name, StandardCharsets.UTF_8);
+            }
+            double[] min = new double[columns];
+            double[] max = new double[columns];
+            double[] mean = new double[columns];
+            double[] standardDeviation = new double[columns];
+            for (int c = 0; c < columns; c++) {
+                min[c] = names.getDouble();
+                max[c] = names.getDouble();
+                mean[c] = names.getDouble();
+                standardDeviation[c] = names.getDouble();
+            }
+
+            long dataOffset = StarCatalogWriter.headerSize(columnNames);
+            long dataSize = rows * columns * 8;
+            if (dataOffset + dataSize > channel.size()) {
+                throw new IOException(file + " is shorter than its header says");
+            }
+            if (rows > Integer.MAX_VALUE) {
+                throw new IOException(file + " has more rows than can be indexed");
+            }
+            int rowsPerChunk = DoubleChunks.rowsPerChunk(columns);
+            long chunkBytes = (long) rowsPerChunk * columns * 8;
+            ByteBuffer[] chunks = new ByteBuffer[DoubleChunks.chunkCount(rows, rowsPerChunk)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = i * chunkBytes;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + offset,
+                        Math.min(chunkBytes, dataSize - offset));
+                chunks[i] = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new StarCatalog(file, channel, new DoubleChunks(chunks, columns, rowsPerChunk), (int) rows, columnNames,
+                    min, max, mean, standardDeviation);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) break;
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public String columnName(int column) {
+        return columnNames[column];
+    }
+
+    @Override
+    public double get(int row, int column) {
+        return data.get(row, column);
+    }
+
+    @Override
+    public void copyRow(int row, double[] into) {
+        data.copyRow(row, into);
+    }
+
+    public double min(int column) {
+        return min[column];
+    }
+
+    public double max(int column) {
+        return max[column];
+    }
+
+    public double mean(int column) {
+        return mean[column];
+    }
+
+    public double standardDeviation(int column) {
+        return standardDeviation[column];
+    }
+
+    /**
+     * @return the file the catalog was opened from
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Close the file. The mapping itself is released when it is garbage collected,
+     * and the catalog must not be read after this.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
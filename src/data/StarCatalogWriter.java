@@ -0,0 +1,202 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Writes a binary star catalog that can be opened with {@link StarCatalog}.
+ * <p> Rows are streamed to the file as they are added and the header, which holds the row count
+ * and the per-column statistics, is written when the writer is closed. The layout is:</p>
+ * <code><ul>
+ *     <li>8 bytes - the magic string EXOSTAR1</li>
+ *     <li>int - number of columns</li>
+ *     <li>long - number of rows</li>
+ *     <li>for every column: short name length, then the name in UTF-8</li>
+ *     <li>for every column: double min, max, mean, standard deviation</li>
+ *     <li>padding up to a multiple of 8 bytes</li>
+ *     <li>the values, row-major</li>
+ * </ul></code>
+ * <p> All numbers are little-endian.</p>
+ *
+ * @author ppeirce
+ */
+public class StarCatalogWriter implements Closeable {
+    static final byte[] MAGIC = "EXOSTAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final String[] columnNames;
+    private final int columns;
+    private final int headerSize;
+    private final ByteBuffer buffer;
+    private long rows;
+
+    // running statistics, one entry per column
+    private final double[] min;
+    private final double[] max;
+    private final double[] mean;
+    private final double[] m2;
+
+    /**
+     * @param file the catalog file. Replaced if it exists.
+     * @param columnNames one name per column
+     * @throws IOException
+     */
+    public StarCatalogWriter(File file, String... columnNames) throws IOException {
+        if (columnNames.length == 0) {
+            throw new IllegalArgumentException("A catalog needs at least one column");
+        }
+        this.columnNames = columnNames.clone();
+        this.columns = columnNames.length;
+        this.headerSize = headerSize(this.columnNames);
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+        this.channel.position(headerSize);
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % (8 * columns)).order(ByteOrder.LITTLE_ENDIAN);
+        this.min = new double[columns];
+        this.max = new double[columns];
+        this.mean = new double[columns];
+        this.m2 = new double[columns];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Convert a combined TIC CSV file into a binary catalog with the given column names.
+     * <p> The catalog is written to a temporary file and renamed only once every line has been
+     * converted, so a line that cannot be parsed, or any other failure, never leaves a catalog
+     * holding part of the stars. On a failure an existing catalog is deleted as well, since it
+     * was converted from an earlier CSV file.</p>
+     * @param csv
+     * @param catalog
+     * @param columnNames one name per value on each line of the CSV file
+     * @return true if the catalog was written
+     */
+    public static boolean convertCsv(File csv, File catalog, String... columnNames) {
+        double[] star = new double[columnNames.length];
+        File partial = new File(catalog.getPath() + ".part");
+        long rows;
+        try (BufferedReader reader = new BufferedReader(new FileReader(csv), BUFFER_SIZE);
+             StarCatalogWriter writer = new StarCatalogWriter(partial, columnNames)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int start = 0;
+                for (int i = 0; i < star.length; i++) {
+                    int end = line.indexOf(',', start);
+                    if (end < 0) end = line.length();
+                    try {
+                        star[i] = Double.parseDouble(line.substring(start, end));
+                    } catch (NumberFormatException e) {
+                        throw new IOException(csv + " line " + lineNumber + " column " + (i + 1) + " is not a number", e);
+                    }
+                    start = end + 1;
+                }
+                writer.addRow(star);
+            }
+            rows = writer.rows();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            partial.delete();
+            catalog.delete();
+            return false;
+        }
+        try {
+            Files.move(partial.toPath(), catalog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            partial.delete();
+            catalog.delete();
+            return false;
+        }
+        System.out.println("Stars written to " + catalog + ": " + rows);
+        return true;
+    }
+
+    /**
+     * @param row must have one value per column
+     * @throws IOException
+     */
+    public void addRow(double... row) throws IOException {
+        if (row.length != columns) {
+            throw new IllegalArgumentException("Expected " + columns + " values but got " + row.length);
+        }
+        if (buffer.remaining() < 8 * columns) {
+            flush();
+        }
+        rows++;
+        for (int c = 0; c < columns; c++) {
+            double value = row[c];
+            buffer.putDouble(value);
+            if (value < min[c]) min[c] = value;
+            if (value > max[c]) max[c] = value;
+            double delta = value - mean[c];
+            mean[c] += delta / rows;
+            m2[c] += delta * (value - mean[c]);
+        }
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * Write any buffered rows and the header, then close the file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(columns);
+            header.putLong(rows);
+            for (String name : columnNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                header.putShort((short) bytes.length);
+                header.put(bytes);
+            }
+            for (int c = 0; c < columns; c++) {
+                header.putDouble(min[c]);
+                header.putDouble(max[c]);
+                header.putDouble(mean[c]);
+                header.putDouble((rows > 0) ? Math.sqrt(m2[c] / rows) : 0.0);
+            }
+            header.rewind();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the number of bytes before the first value, a multiple of 8
+     */
+    static int headerSize(String[] columnNames) {
+        int size = MAGIC.length + 4 + 8;
+        for (String name : columnNames) {
+            size += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        size += 4 * 8 * columnNames.length;
+        return (size + 7) & ~7;
+    }
+}
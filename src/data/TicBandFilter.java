@@ -0,0 +1,521 @@
+package edu.nyu.cs.pa.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads TESS Input Catalog band files and keeps only the stars that have a value for all seven
+ * stellar parameters of interest, writing those parameters to a single combined CSV file.
+ * <p> These are the indices of the parameters of interest in a TIC band file:</p>
+ * <code><ul>
+ *     <li>64 - Teff: Effective Temperature (K)</li>
+ *     <li>66 - logg: log of the Surface Gravity (cgs)</li>
+ *     <li>68 - M/H: Metallicity (dex)</li>
+ *     <li>70 - Rad: Radius (solar)</li>
+ *     <li>72 - Mass: Mass (solar)</li>
+ *     <li>77 - Lum: Stellar Luminosity (solar)</li>
+ *     <li>79 - d: Distance (pc)</li>
+ * </ul></code>
+ * <p> They are written in the order distance, temperature, mass, radius, gravity, luminosity,
+ * metallicity to match the NASA stellar parameter matrix.</p>
+ * <p> Lines are scanned as raw bytes. Only the comma positions up to column 79 are found and the
+ * bytes of the seven wanted fields are copied straight to the output, so no String or String[]
+ * is created per line and the values are never parsed and formatted again.</p>
+ * <p> {@link #readStars(File, StarHandler)} reads the same stars with their TIC IDs, the first
+ * column of a band file, for classifying bands as they arrive.</p>
+ *
+ * @author ppeirce
+ */
+public class TicBandFilter {
+    /**
+     * Source columns, in the order they are written.
+     */
+    private static final int[] SOURCE_COLUMNS = {79, 64, 72, 70, 66, 77, 68};
+    private static final Pattern BAND_NAME = Pattern.compile("(\\d+)([NS])_(\\d+)([NS])\\.csv");
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final ReaderMetrics METRICS = new ReaderMetrics("tic");
+
+    private final int[] slotOfColumn;
+    private final int lastColumn;
+
+    /**
+     * Receives the stars of a band one at a time.
+     */
+    public interface StarHandler {
+        /**
+         * @param ticId the star's TIC ID
+         * @param parameters the seven parameters, in the order they are written. The array is
+         * reused for every star.
+         */
+        void star(long ticId, double[] parameters) throws IOException;
+    }
+
+    public TicBandFilter() {
+        int last = 0;
+        for (int column : SOURCE_COLUMNS) {
+            last = Math.max(last, column);
+        }
+        lastColumn = last;
+        slotOfColumn = new int[lastColumn + 1];
+        Arrays.fill(slotOfColumn, -1);
+        for (int slot = 0; slot < SOURCE_COLUMNS.length; slot++) {
+            slotOfColumn[SOURCE_COLUMNS[slot]] = slot;
+        }
+    }
+
+    /**
+     * Find the TIC band files to read.
+     * <p> A directory selects every .csv file in it. Anything else is treated as a glob whose
+     * last path element is matched against the files of its parent directory, for example
+     * <code>data/tic/*S_*S.csv</code>.</p>
+     * <p> Files named after their declination band (such as 90S_88S.csv or 88N_90N.csv) are
+     * ordered from the south pole to the north pole. Other files follow in name order.</p>
+     * @param directoryOrGlob
+     * @return the band files in declination order
+     */
+    public static List<File> findBandFiles(String directoryOrGlob) {
+        File given = new File(directoryOrGlob);
+        File directory;
+        PathMatcher matcher;
+        if (given.isDirectory()) {
+            directory = given;
+            matcher = FileSystems.getDefault().getPathMatcher("glob:*.csv");
+        } else {
+            directory = (given.getParentFile() != null) ? given.getParentFile() : new File(".");
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + given.getName());
+        }
+        List<File> bands = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && matcher.matches(Paths.get(file.getName()))) {
+                    bands.add(file);
+                }
+            }
+        }
+        Collections.sort(bands, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int byDeclination = Double.compare(southernDeclination(a), southernDeclination(b));
+                return (byDeclination != 0) ? byDeclination : a.getName().compareTo(b.getName());
+            }
+        });
+        return bands;
+    }
+
+    /**
+     * @return the southern edge of the band in degrees (south is negative), or positive
+     * infinity if the file name does not describe a band
+     */
+    private static double southernDeclination(File band) {
+        Matcher m = BAND_NAME.matcher(band.getName());
+        if (!m.matches()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double first = Integer.parseInt(m.group(1)) * (m.group(2).equals("S") ? -1 : 1);
+        double second = Integer.parseInt(m.group(3)) * (m.group(4).equals("S") ? -1 : 1);
+        return Math.min(first, second);
+    }
+
+    /**
+     * Filter every band into a single combined file. The output file is replaced, so running
+     * this twice does not duplicate stars.
+     * <p> The stars are written to a .part file that only replaces the output once every band
+     * has been filtered, so a failure leaves the previous output as it was.</p>
+     * @param bands the band files, in the order their stars should be written
+     * @param output the combined CSV file
+     * @return true if every band was filtered and the output was written
+     */
+    public boolean filter(List<File> bands, File output) {
+        long start = System.nanoTime();
+        long totalRead = 0;
+        long totalKept = 0;
+        File partial = new File(output.getPath() + ".part");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), BUFFER_SIZE)) {
+                for (File band : bands) {
+                    long bandStart = System.nanoTime();
+                    long[] counts = filterBand(band, out);
+                    totalRead += counts[0];
+                    totalKept += counts[1];
+                    printProgress(band.toString(), counts[0], counts[1], System.nanoTime() - bandStart);
+                }
+            }
+            Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            partial.delete();
+            return false;
+        }
+        printProgress("all " + bands.size() + " bands", totalRead, totalKept, System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Filter the bands concurrently and then combine them.
+     * <p> Each band is filtered by one of a fixed number of workers into its own staging file in
+     * a directory next to the output. A band that fails is retried on its own, up to maxAttempts
+     * times, without affecting the other bands. Once every band has succeeded the staging files
+     * are concatenated into the output in the order of the bands list, so the result is the same
+     * as {@link #filter(List, File)} no matter which band finishes first.</p>
+     * <p> If a band still fails after its last attempt the output is left untouched and the
+     * staging files of the bands that succeeded are kept. Running again reuses a staging file if
+     * it was filtered from the same band file, unchanged since, with the same filter settings,
+     * so only the failed bands are filtered again. The counts of a reused band are read back
+     * from the .counts file written next to its staging file, so the totals cover every band.</p>
+     * @param bands the band files, in the order their stars should be written
+     * @param output the combined CSV file
+     * @param workers the maximum number of bands filtered at the same time
+     * @param maxAttempts how many times a band is tried before giving up
+     * @return true if every band was filtered and the output was written
+     */
+    public boolean filterInParallel(List<File> bands, File output, int workers, int maxAttempts) {
+        if (workers < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Workers and attempts must be at least 1");
+        }
+        long start = System.nanoTime();
+        File stagingDirectory = new File(output.getPath() + ".staging");
+        if (!stagingDirectory.isDirectory() && !stagingDirectory.mkdirs()) {
+            System.out.println("Could not create staging directory " + stagingDirectory);
+            return false;
+        }
+
+        List<File> stagingFiles = new ArrayList<>();
+        List<Future<long[]>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            for (int i = 0; i < bands.size(); i++) {
+                File staging = new File(stagingDirectory, String.format("%04d_%s", i, bands.get(i).getName()));
+                stagingFiles.add(staging);
+                results.add(pool.submit(new StageBand(bands.get(i), staging, maxAttempts)));
+            }
+
+            long totalRead = 0;
+            long totalKept = 0;
+            long filteredRead = 0;
+            int reused = 0;
+            List<File> failed = new ArrayList<>();
+            for (int i = 0; i < bands.size(); i++) {
+                try {
+                    long[] counts = results.get(i).get();
+                    totalRead += counts[0];
+                    totalKept += counts[1];
+                    if (counts[2] != 0) {
+                        reused++;
+                    } else {
+                        filteredRead += counts[0];
+                    }
+                } catch (ExecutionException e) {
+                    failed.add(bands.get(i));
+                    e.getCause().printStackTrace();
+                }
+            }
+            if (!failed.isEmpty()) {
+                System.out.println("Not combining, these bands failed: " + failed);
+                return false;
+            }
+
+            mergeInOrder(stagingFiles, output);
+            for (File staging : stagingFiles) {
+                staging.delete();
+                countsFile(staging).delete();
+            }
+            stagingDirectory.delete();
+            // the rate only counts the rows filtered in this run
+            printProgress("all " + bands.size() + " bands with " + workers + " workers"
+                            + ((reused > 0) ? " (" + reused + " staged before)" : ""),
+                    totalRead, totalKept, filteredRead, System.nanoTime() - start);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Concatenate the staging files into the output, replacing it.
+     */
+    private void mergeInOrder(List<File> stagingFiles, File output) throws IOException {
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            for (File staging : stagingFiles) {
+                try (FileChannel in = new FileInputStream(staging).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file holding the counts and settings of a staging file
+     */
+    private static File countsFile(File staging) {
+        return new File(staging.getPath() + ".counts");
+    }
+
+    /**
+     * Filters one band into its staging file, retrying on failure. The band is written to a
+     * temporary file that is only renamed to the staging file once it is complete, so a staging
+     * file that exists is always whole.
+     * <p> Before the rename, the band's counts are saved in a .counts file together with a key
+     * made of the band file's path, size and modification time and the filter settings. A staging
+     * file is only reused if its key matches, and then with its saved counts.</p>
+     */
+    private class StageBand implements Callable<long[]> {
+        // the result: {rows read, rows kept, 1 if the staging file was reused}
+        private final File band;
+        private final File staging;
+        private final int maxAttempts;
+
+        StageBand(File band, File staging, int maxAttempts) {
+            this.band = band;
+            this.staging = staging;
+            this.maxAttempts = maxAttempts;
+        }
+
+        @Override
+        public long[] call() throws IOException {
+            String key = band.getCanonicalPath() + "," + band.length() + "," + band.lastModified()
+                    + ",columns=" + Arrays.toString(SOURCE_COLUMNS);
+            long[] staged = stagedCounts(key);
+            if (staged != null) {
+                System.out.println("Reusing staged " + band);
+                return staged;
+            }
+            // a staging file left from other settings must not be paired with the new counts
+            Files.deleteIfExists(staging.toPath());
+            Files.deleteIfExists(countsFile(staging).toPath());
+            File partial = new File(staging.getPath() + ".part");
+            IOException lastFailure = null;
+            for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                long bandStart = System.nanoTime();
+                try {
+                    long[] counts;
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), BUFFER_SIZE)) {
+                        counts = filterBand(band, out);
+                    }
+                    saveCounts(key, counts);
+                    Files.move(partial.toPath(), staging.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    printProgress(band.toString(), counts[0], counts[1], System.nanoTime() - bandStart);
+                    return new long[] {counts[0], counts[1], 0};
+                } catch (IOException e) {
+                    lastFailure = e;
+                    System.out.println("Attempt " + attempt + " of " + maxAttempts + " failed for " + band + ": " + e);
+                }
+            }
+            partial.delete();
+            throw lastFailure;
+        }
+
+        /**
+         * @return the result for the staging file if it can be reused, otherwise null
+         */
+        private long[] stagedCounts(String key) {
+            File counts = countsFile(staging);
+            if (!staging.isFile() || !counts.isFile()) {
+                return null;
+            }
+            Properties saved = new Properties();
+            try (InputStream in = new FileInputStream(counts)) {
+                saved.load(in);
+                if (!key.equals(saved.getProperty("key"))) {
+                    return null;
+                }
+                return new long[] {Long.parseLong(saved.getProperty("read")), Long.parseLong(saved.getProperty("kept")), 1};
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private void saveCounts(String key, long[] counts) throws IOException {
+            Properties saved = new Properties();
+            saved.setProperty("key", key);
+            saved.setProperty("read", Long.toString(counts[0]));
+            saved.setProperty("kept", Long.toString(counts[1]));
+            File partial = new File(countsFile(staging).getPath() + ".part");
+            try (OutputStream out = new FileOutputStream(partial)) {
+                saved.store(out, "counts of " + staging.getName());
+            }
+            Files.move(partial.toPath(), countsFile(staging).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void printProgress(String what, long read, long kept, long nanos) {
+        printProgress(what, read, kept, read, nanos);
+    }
+
+    /**
+     * @param ratedRead the rows read in the time given, which the rate is computed from
+     */
+    private void printProgress(String what, long read, long kept, long ratedRead, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("Finished %s: %d stars read, %d kept, %.0f rows/s\n",
+                what, read, kept, (seconds > 0) ? ratedRead / seconds : 0.0);
+    }
+
+    /**
+     * Filter one band file, appending the kept stars to the output.
+     * @param band
+     * @param out
+     * @return {rows read, rows kept}
+     * @throws IOException
+     */
+    long[] filterBand(File band, final OutputStream out) throws IOException {
+        final long[] kept = new long[1];
+        final int[] fieldStart = new int[SOURCE_COLUMNS.length];
+        final int[] fieldEnd = new int[SOURCE_COLUMNS.length];
+        long read;
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(band)) {
+            read = ByteLines.forEachLine(in, new ByteLines.Handler() {
+                @Override
+                public void line(byte[] buffer, int from, int to) throws IOException {
+                    if (scanLine(buffer, from, to, fieldStart, fieldEnd)) {
+                        writeStar(buffer, fieldStart, fieldEnd, out);
+                        kept[0]++;
+                    }
+                }
+            });
+        }
+        METRICS.fileRead(read, band.length(), System.nanoTime() - start);
+        return new long[] {read, kept[0]};
+    }
+
+    /**
+     * Read the stars of one band file that have every parameter of interest.
+     * @param band
+     * @param handler
+     * @return {rows read, stars passed to the handler}
+     * @throws IOException
+     */
+    public long[] readStars(File band, final StarHandler handler) throws IOException {
+        final long[] kept = new long[1];
+        final int[] fieldStart = new int[SOURCE_COLUMNS.length];
+        final int[] fieldEnd = new int[SOURCE_COLUMNS.length];
+        final double[] parameters = new double[SOURCE_COLUMNS.length];
+        long read;
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(band)) {
+            read = ByteLines.forEachLine(in, new ByteLines.Handler() {
+                @Override
+                public void line(byte[] buffer, int from, int to) throws IOException {
+                    if (!scanLine(buffer, from, to, fieldStart, fieldEnd)) {
+                        return;
+                    }
+                    int idEnd = from;
+                    while (idEnd < to && buffer[idEnd] != ',') {
+                        idEnd++;
+                    }
+                    long id = parseId(buffer, from, idEnd);
+                    if (id < 0) {
+                        return;
+                    }
+                    // scanLine has already checked that every field parses
+                    for (int slot = 0; slot < parameters.length; slot++) {
+                        parameters[slot] = ByteLines.parseDouble(buffer, fieldStart[slot], fieldEnd[slot]);
+                    }
+                    handler.star(id, parameters);
+                    kept[0]++;
+                }
+            });
+        }
+        METRICS.fileRead(read, band.length(), System.nanoTime() - start);
+        return new long[] {read, kept[0]};
+    }
+
+    /**
+     * @return the non-negative integer in [from, to), or -1 if it is not one
+     */
+    private static long parseId(byte[] line, int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            id = id * 10 + (b - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Find the wanted fields of the line [from, to).
+     * @return true if every wanted field is present and numeric
+     */
+    private boolean scanLine(byte[] line, int from, int to, int[] fieldStart, int[] fieldEnd) {
+        int column = 0;
+        int start = from;
+        for (int i = from; i <= to && column <= lastColumn; i++) {
+            if (i == to || line[i] == ',') {
+                int slot = slotOfColumn[column];
+                if (slot >= 0) {
+                    if (!isNumber(line, start, i)) {
+                        return false;
+                    }
+                    fieldStart[slot] = start;
+                    fieldEnd[slot] = i;
+                }
+                column++;
+                start = i + 1;
+            }
+        }
+        return column > lastColumn;
+    }
+
+    /**
+     * Check that the field is a decimal number, so that blank or malformed values are dropped
+     * here instead of being copied into the combined file and failing when it is parsed.
+     * <p> A cheap scan rejects most bad fields, such as blanks and text, without parsing them.
+     * Fields made only of number characters can still be malformed, such as 1-2, e or .-, so
+     * those are parsed to be sure.</p>
+     */
+    private static boolean isNumber(byte[] line, int from, int to) {
+        if (from == to) {
+            return false;
+        }
+        boolean digit = false;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                digit = true;
+            } else if (b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E') {
+                return false;
+            }
+        }
+        if (!digit) {
+            return false;
+        }
+        try {
+            ByteLines.parseDouble(line, from, to);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void writeStar(byte[] line, int[] fieldStart, int[] fieldEnd, OutputStream out) throws IOException {
+        for (int slot = 0; slot < SOURCE_COLUMNS.length; slot++) {
+            if (slot > 0) {
+                out.write(',');
+            }
+            out.write(line, fieldStart[slot], fieldEnd[slot] - fieldStart[slot]);
+        }
+        out.write('\n');
+    }
+}
@@ -0,0 +1,37 @@
+package edu.nyu.cs.pa.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, such as rows parsed or queries answered.
+ * <p> Backed by a {@link LongAdder}, so threads that add to the same counter at the same time do
+ * not contend on a single memory location and never block. Reading the total is slower than
+ * adding, which suits counters that are added to in hot loops and read once per export.</p>
+ *
+ * @author ppeirce
+ */
+public final class Counter {
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * @param amount must not be negative
+     */
+    public void add(long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("A counter cannot go down");
+        }
+        count.add(amount);
+    }
+
+    public long sum() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package edu.nyu.cs.pa.metrics;
+
+/**
+ * A value that is set rather than added to, such as a rate or the heap in use at the end of a
+ * stage. The last value set is the one exported.
+ *
+ * @author ppeirce
+ */
+public final class Gauge {
+    private volatile double value = Double.NaN;
+
+    Gauge() {
+
+    }
+
+    public void set(double value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the last value set, or NaN if none has been
+     */
+    public double get() {
+        return value;
+    }
+}
@@ -0,0 +1,251 @@
+package edu.nyu.cs.pa.metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters and gauges of a run, and their export to a file.
+ * <p> A metric is looked up by name once, typically into a static field, and then updated
+ * without any further lookup. A metric can carry one label, such as the stage or reader it
+ * describes, with one counter or gauge per label value.</p>
+ * <p> Metrics are written either as JSON or in the Prometheus text exposition format, so the
+ * file can be read by a script or served to Prometheus by a node exporter's textfile
+ * collector. Metrics are written in name order, and the label values of a metric in the order
+ * they were first used.</p>
+ *
+ * @author ppeirce
+ */
+public final class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    private enum Type {
+        COUNTER, GAUGE
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    public Metrics() {
+
+    }
+
+    /**
+     * @return the metrics the analysis and the algorithms record to
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @param name such as knn_queries_total
+     * @param help one line describing the counter
+     * @return the counter with that name, created the first time it is asked for
+     */
+    public Counter counter(String name, String help) {
+        return (Counter) family(name, help, Type.COUNTER, null).child("");
+    }
+
+    /**
+     * @return the counter with that name for one value of its label
+     */
+    public Counter counter(String name, String help, String label, String labelValue) {
+        return (Counter) family(name, help, Type.COUNTER, label).child(labelValue);
+    }
+
+    /**
+     * @see #counter(String, String)
+     */
+    public Gauge gauge(String name, String help) {
+        return (Gauge) family(name, help, Type.GAUGE, null).child("");
+    }
+
+    /**
+     * @see #counter(String, String, String, String)
+     */
+    public Gauge gauge(String name, String help, String label, String labelValue) {
+        return (Gauge) family(name, help, Type.GAUGE, label).child(labelValue);
+    }
+
+    /**
+     * Stop exporting every label value of a metric, for a metric whose label values describe only
+     * the latest run of something, such as its iterations. Counters and gauges that were already
+     * handed out still work but are no longer exported.
+     * @param name
+     */
+    public void clearLabels(String name) {
+        Family family = families.get(name);
+        if (family != null && family.label != null) {
+            family.clear();
+        }
+    }
+
+    private Family family(String name, String help, Type type, String label) {
+        if (!name.matches("[a-zA-Z_][a-zA-Z0-9_]*") || (label != null && !label.matches("[a-zA-Z_][a-zA-Z0-9_]*"))) {
+            throw new IllegalArgumentException("Metric and label names must be letters, digits and underscores: " + name);
+        }
+        Family family = families.get(name);
+        if (family == null) {
+            Family created = new Family(name, help, type, label);
+            family = families.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+        if (family.type != type || !Objects.equals(family.label, label)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a "
+                    + family.type.name().toLowerCase(Locale.ROOT)
+                    + ((family.label != null) ? " labelled by " + family.label : ""));
+        }
+        return family;
+    }
+
+    /**
+     * Write the metrics to a file, as JSON if its name ends in .json and as Prometheus text
+     * otherwise. The file is written under a temporary name and then renamed, so a reader never
+     * sees it half written.
+     */
+    public void save(File file) throws IOException {
+        File partial = new File(file.getPath() + ".part");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial), StandardCharsets.UTF_8))) {
+            if (file.getName().endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writePrometheus(out);
+            }
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        for (Family family : sortedFamilies()) {
+            out.write("# HELP " + family.name + " " + family.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            out.write("# TYPE " + family.name + " " + family.type.name().toLowerCase(Locale.ROOT) + "\n");
+            for (Map.Entry<String, Object> child : family.children()) {
+                out.write(family.name);
+                if (family.label != null) {
+                    out.write("{" + family.label + "=\"" + child.getKey().replace("\\", "\\\\")
+                            .replace("\"", "\\\"").replace("\n", "\\n") + "\"}");
+                }
+                out.write(" " + prometheusNumber(value(child.getValue())) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Write every metric as a JSON object keyed by metric name. A metric with a label has an
+     * object of values keyed by label value.
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{");
+        boolean firstFamily = true;
+        for (Family family : sortedFamilies()) {
+            out.write(firstFamily ? "\n" : ",\n");
+            firstFamily = false;
+            out.write("  " + jsonString(family.name) + ": {\"type\": "
+                    + jsonString(family.type.name().toLowerCase(Locale.ROOT))
+                    + ", \"help\": " + jsonString(family.help));
+            if (family.label == null) {
+                List<Map.Entry<String, Object>> children = family.children();
+                out.write(", \"value\": " + jsonNumber(value(children.get(0).getValue())) + "}");
+                continue;
+            }
+            out.write(", \"label\": " + jsonString(family.label) + ", \"values\": {");
+            boolean firstChild = true;
+            for (Map.Entry<String, Object> child : family.children()) {
+                out.write(firstChild ? "" : ", ");
+                firstChild = false;
+                out.write(jsonString(child.getKey()) + ": " + jsonNumber(value(child.getValue())));
+            }
+            out.write("}}");
+        }
+        out.write("\n}\n");
+    }
+
+    private List<Family> sortedFamilies() {
+        List<Family> sorted = new ArrayList<>(families.values());
+        Collections.sort(sorted, new Comparator<Family>() {
+            @Override
+            public int compare(Family a, Family b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return sorted;
+    }
+
+    private static double value(Object metric) {
+        return (metric instanceof Counter) ? ((Counter) metric).sum() : ((Gauge) metric).get();
+    }
+
+    private static String prometheusNumber(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return (value > 0) ? "+Inf" : "-Inf";
+        }
+        return (value == Math.rint(value) && Math.abs(value) < 1e15) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String jsonNumber(double value) {
+        // JSON has no NaN or infinity
+        return (Double.isNaN(value) || Double.isInfinite(value)) ? "null" : prometheusNumber(value);
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * The counters or gauges that share a name, one per label value.
+     */
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final String label;
+        // label value -> Counter or Gauge, in the order they were first used
+        private final Map<String, Object> children = new LinkedHashMap<>();
+
+        Family(String name, String help, Type type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+
+        synchronized Object child(String labelValue) {
+            Object child = children.get(labelValue);
+            if (child == null) {
+                child = (type == Type.COUNTER) ? new Counter() : new Gauge();
+                children.put(labelValue, child);
+            }
+            return child;
+        }
+
+        synchronized void clear() {
+            children.clear();
+        }
+
+        synchronized List<Map.Entry<String, Object>> children() {
+            return new ArrayList<>(children.entrySet());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.nyu.cs.pa.data.ColumnStatistics;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.RowSource;
+import edu.nyu.cs.pa.data.Standardizer;
+
+/**
+ * The steps of the exoplanet analysis as {@link PipelineStage pipeline stages}, and the keys of
+ * the artifacts they pass to each other.
+ * <p> Every stage loads its inputs from the context into an {@link ExoplanetAnalyzer}, runs one
+ * step of it and puts its outputs back, so a stage does not depend on which stages ran before
+ * it in the same analyzer.</p>
+ * <p> Reading the planets, standardizing them, opening the stars and clustering are cacheable.
+ * Their fingerprints carry a version that must be bumped whenever the analyzer code behind the
+ * stage changes what it produces.</p>
+ *
+ * @author ppeirce
+ */
+public final class AnalysisStages {
+    public static final PipelineContext.Key<FeatureMatrix> MASS_RADIUS =
+            new PipelineContext.Key<>("planet mass/radius", FeatureMatrix.class);
+    public static final PipelineContext.Key<FeatureMatrix> STANDARDIZED_MASS_RADIUS =
+            new PipelineContext.Key<>("standardized planet mass/radius", FeatureMatrix.class);
+    public static final PipelineContext.Key<Standardizer> MASS_RADIUS_SCALER =
+            new PipelineContext.Key<>("planet mass/radius scaler", Standardizer.class);
+    public static final PipelineContext.Key<FeatureMatrix> PLANET_STELLAR_PARAMETERS =
+            new PipelineContext.Key<>("stellar parameters of planet hosts", FeatureMatrix.class);
+    public static final PipelineContext.Key<RowSource> STAR_PARAMETERS =
+            new PipelineContext.Key<>("TIC stellar parameters", RowSource.class);
+    public static final PipelineContext.Key<int[]> PLANET_LABELS =
+            new PipelineContext.Key<>("planet clusters", int[].class);
+    public static final PipelineContext.Key<ColumnStatistics> EARTH_LIKE_STARS =
+            new PipelineContext.Key<>("stars predicted to have Earth-like planets", ColumnStatistics.class);
+
+    /**
+     * The stages run when none are selected, matching a full analysis.
+     */
+    public static final List<String> DEFAULT_STAGES = Collections.unmodifiableList(Arrays.asList("classify-stars", "evaluate"));
+
+    private AnalysisStages() {
+
+    }
+
+    /**
+     * @param analyzer runs the steps. Its settings, such as the classification parallelism,
+     * apply to every stage.
+     * @return every stage, in the order of a full analysis
+     */
+    public static List<PipelineStage> create(final ExoplanetAnalyzer analyzer) {
+        return Arrays.<PipelineStage>asList(
+                new AnalyzerStage("filter-tic", "combine the TIC band files into the reduced star catalog",
+                        keys(), keys()) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.filterAndCombineStarData();
+                    }
+                },
+                new CachedAnalyzerStage("read-planets", "read the NASA planet catalog",
+                        keys(), keys(MASS_RADIUS, PLANET_STELLAR_PARAMETERS),
+                        "v1", ExoplanetAnalyzer.NASA_CLEAN) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.readPlanets();
+                        context.put(MASS_RADIUS, analyzer.getMassRadiusMatrix());
+                        context.put(PLANET_STELLAR_PARAMETERS, analyzer.getPlanetStellarParameters());
+                    }
+                },
+                new CachedAnalyzerStage("standardize", "standardize planet mass and radius",
+                        keys(MASS_RADIUS), keys(STANDARDIZED_MASS_RADIUS, MASS_RADIUS_SCALER),
+                        "v2") {
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.setMassRadiusMatrix(context.get(MASS_RADIUS));
+                        analyzer.standardizePlanets();
+                        context.put(STANDARDIZED_MASS_RADIUS, analyzer.getStandardizedMassRadiusMatrix());
+                        context.put(MASS_RADIUS_SCALER, analyzer.getMassRadiusScaler());
+                    }
+                },
+                new CachedAnalyzerStage("open-stars", "open the reduced TIC star catalog",
+                        keys(), keys(STAR_PARAMETERS),
+                        "v1") {
+                    /**
+                     * The file the stars are actually read from, which is the binary catalog
+                     * once it is at least as new as the CSV file.
+                     */
+                    @Override
+                    public List<File> sourceFiles() {
+                        return Collections.singletonList(ExoplanetAnalyzer.ticStellarParameterSource());
+                    }
+
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.openStars();
+                        context.put(STAR_PARAMETERS, analyzer.getStarParameters());
+                    }
+                },
+                new CachedAnalyzerStage("cluster", "cluster the planets with KMeans",
+                        keys(STANDARDIZED_MASS_RADIUS), keys(PLANET_LABELS),
+                        "v1 k=2 iterations=1000 seed=" + ExoplanetAnalyzer.KMEANS_SEED
+                                + " restarts=" + ExoplanetAnalyzer.KMEANS_RESTARTS) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.setStandardizedMassRadiusMatrix(context.get(STANDARDIZED_MASS_RADIUS));
+                        context.put(PLANET_LABELS, analyzer.clusterPlanets());
+                    }
+                },
+                new AnalyzerStage("graph", "plot the planet clusters",
+                        keys(MASS_RADIUS, PLANET_STELLAR_PARAMETERS, PLANET_LABELS), keys()) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        useClusters(analyzer, context);
+                        analyzer.setMassRadiusMatrix(context.get(MASS_RADIUS));
+                        analyzer.graphClusters();
+                    }
+                },
+                new AnalyzerStage("dbscan", "sweep DBSCAN parameters over the planets",
+                        keys(MASS_RADIUS, STANDARDIZED_MASS_RADIUS), keys()) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        analyzer.setMassRadiusMatrix(context.get(MASS_RADIUS));
+                        analyzer.setStandardizedMassRadiusMatrix(context.get(STANDARDIZED_MASS_RADIUS));
+                        analyzer.dbscanTesting();
+                    }
+                },
+                new AnalyzerStage("classify-stars", "predict which TIC stars have Earth-like planets",
+                        keys(PLANET_STELLAR_PARAMETERS, PLANET_LABELS, STAR_PARAMETERS), keys(EARTH_LIKE_STARS)) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        useClusters(analyzer, context);
+                        analyzer.setStarParameters(context.get(STAR_PARAMETERS));
+                        analyzer.classifyAndExamineSolarParameters();
+                        context.put(EARTH_LIKE_STARS, analyzer.getEarthLikeStarStatistics());
+                    }
+                },
+                new AnalyzerStage("classify-stream", "classify the TIC stars a block at a time in bounded memory",
+                        keys(PLANET_STELLAR_PARAMETERS, PLANET_LABELS), keys(EARTH_LIKE_STARS)) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        useClusters(analyzer, context);
+                        analyzer.classifyStarsInBlocks();
+                        context.put(EARTH_LIKE_STARS, analyzer.getEarthLikeStarStatistics());
+                    }
+                },
+                new AnalyzerStage("classify-bands", "classify only the stars of new TIC band files",
+                        keys(PLANET_STELLAR_PARAMETERS, PLANET_LABELS), keys()) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        useClusters(analyzer, context);
+                        analyzer.classifyNewStarBands();
+                    }
+                },
+                new AnalyzerStage("evaluate", "score the classifier on held out planets",
+                        keys(PLANET_STELLAR_PARAMETERS, PLANET_LABELS), keys()) {
+                    @Override
+                    public void run(PipelineContext context) {
+                        useClusters(analyzer, context);
+                        analyzer.clusterAndClassifyPortionOfDataForTesting();
+                    }
+                });
+    }
+
+    private static void useClusters(ExoplanetAnalyzer analyzer, PipelineContext context) {
+        analyzer.setPlanetStellarParameters(context.get(PLANET_STELLAR_PARAMETERS));
+        analyzer.useClusterLabels(context.get(PLANET_LABELS));
+    }
+
+    private static List<PipelineContext.Key<?>> keys(PipelineContext.Key<?>... keys) {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    private abstract static class AnalyzerStage implements PipelineStage {
+        private final String name;
+        private final String description;
+        private final List<PipelineContext.Key<?>> inputs;
+        private final List<PipelineContext.Key<?>> outputs;
+
+        AnalyzerStage(String name, String description, List<PipelineContext.Key<?>> inputs, List<PipelineContext.Key<?>> outputs) {
+            this.name = name;
+            this.description = description;
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String description() {
+            return description;
+        }
+
+        @Override
+        public List<PipelineContext.Key<?>> inputs() {
+            return inputs;
+        }
+
+        @Override
+        public List<PipelineContext.Key<?>> outputs() {
+            return outputs;
+        }
+    }
+
+    private abstract static class CachedAnalyzerStage extends AnalyzerStage implements CacheableStage {
+        private final String fingerprint;
+        private final List<File> sourceFiles;
+
+        CachedAnalyzerStage(String name, String description, List<PipelineContext.Key<?>> inputs, List<PipelineContext.Key<?>> outputs,
+                            String fingerprint, File... sourceFiles) {
+            super(name, description, inputs, outputs);
+            this.fingerprint = fingerprint;
+            this.sourceFiles = Collections.unmodifiableList(Arrays.asList(sourceFiles));
+        }
+
+        @Override
+        public String fingerprint() {
+            return fingerprint;
+        }
+
+        @Override
+        public List<File> sourceFiles() {
+            return sourceFiles;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.FeatureMatrixFile;
+import edu.nyu.cs.pa.data.RowSource;
+import edu.nyu.cs.pa.data.StarCatalog;
+import edu.nyu.cs.pa.data.StarCatalogWriter;
+import edu.nyu.cs.pa.data.Standardizer;
+
+/**
+ * Stores the outputs of {@link CacheableStage cacheable stages} on disk, addressed by a hash of
+ * everything that determines them: the stage, its fingerprint, the contents of the files it reads
+ * and the origins of its input artifacts. A later run that would compute the same outputs loads
+ * them instead, and a change to any file or parameter gives a new key, so stale results are never
+ * used.
+ * <p> Artifacts are stored in binary files that load with bulk reads: feature matrices as
+ * {@link FeatureMatrixFile}s, int arrays as raw little-endian ints, fitted scalers with
+ * {@link Standardizer#save(File)}, and row sources as star catalogs that are memory-mapped again
+ * when loaded. A row source that already is a star catalog on disk is not copied: only a
+ * reference to its file is stored, with the file's size and modification time, and the
+ * reference is not used once either has changed. A stage that passes on a catalog it opened
+ * lists the catalog among its source files, so its key changes with the catalog anyway.</p>
+ * <p> Hashing a large file takes time, so the hash of each source file is remembered together
+ * with its size and modification time and only recomputed when either changes.</p>
+ *
+ * @author ppeirce
+ */
+public class ArtifactCache {
+    private static final byte[] INTS_MAGIC = "EXOINTS1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REFERENCE_MAGIC = "EXOCREF1".getBytes(StandardCharsets.US_ASCII);
+    private static final String FILE_HASHES = "file-hashes.properties";
+
+    private final File directory;
+    private Properties fileHashes;
+
+    /**
+     * @param directory where the artifacts are kept. Created when the first artifact is stored.
+     */
+    public ArtifactCache(File directory) {
+        this.directory = directory;
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * @return the key of the stage's outputs given the current inputs, or null if an input has an
+     * unknown origin or a source file cannot be read
+     */
+    public String key(CacheableStage stage, PipelineContext context) {
+        if (!canStore(stage)) {
+            return null;
+        }
+        MessageDigest digest = sha256();
+        update(digest, stage.name());
+        update(digest, stage.fingerprint());
+        for (PipelineContext.Key<?> input : stage.inputs()) {
+            String origin = context.provenance(input);
+            if (origin == null) {
+                return null;
+            }
+            update(digest, input.name());
+            update(digest, origin);
+        }
+        for (File file : stage.sourceFiles()) {
+            try {
+                update(digest, file.getName());
+                update(digest, fileHash(file));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Load every output of the stage stored under the key into the context.
+     * @return false if any output is missing or unreadable, in which case the context is unchanged
+     */
+    public boolean load(CacheableStage stage, String key, PipelineContext context) {
+        Object[] values = new Object[stage.outputs().size()];
+        for (int i = 0; i < values.length; i++) {
+            File file = artifactFile(key, stage.outputs().get(i));
+            if (!file.isFile()) {
+                return false;
+            }
+            try {
+                values[i] = read(stage.outputs().get(i).type(), file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            putLoaded(context, stage.outputs().get(i), values[i], origin(key, stage.outputs().get(i)));
+        }
+        return true;
+    }
+
+    /**
+     * Record the origin of the stage's outputs in the context and write them to the cache.
+     * A failure to write is reported but does not stop the run.
+     */
+    public void store(CacheableStage stage, String key, PipelineContext context) {
+        for (PipelineContext.Key<?> output : stage.outputs()) {
+            markOrigin(context, output, origin(key, output));
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Could not create cache directory " + directory);
+            return;
+        }
+        for (PipelineContext.Key<?> output : stage.outputs()) {
+            File file = artifactFile(key, output);
+            File partial = new File(file.getPath() + ".part");
+            try {
+                write(output.type(), context.get(output), partial);
+                Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
+                partial.delete();
+            }
+        }
+    }
+
+    /**
+     * @return true if every output of the stage has a type the cache can store
+     */
+    private static boolean canStore(PipelineStage stage) {
+        for (PipelineContext.Key<?> output : stage.outputs()) {
+            Class<?> type = output.type();
+            if (type != FeatureMatrix.class && type != int[].class && type != Standardizer.class
+                    && type != RowSource.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> void putLoaded(PipelineContext context, PipelineContext.Key<T> key, Object value, String origin) {
+        context.put(key, key.type().cast(value), origin);
+    }
+
+    private static <T> void markOrigin(PipelineContext context, PipelineContext.Key<T> key, String origin) {
+        context.put(key, context.get(key), origin);
+    }
+
+    private static String origin(String key, PipelineContext.Key<?> output) {
+        return key + "/" + output.name();
+    }
+
+    private File artifactFile(String key, PipelineContext.Key<?> output) {
+        String slug = output.name().replaceAll("[^A-Za-z0-9]+", "-");
+        String extension = (output.type() == FeatureMatrix.class) ? ".fmat"
+                : (output.type() == int[].class) ? ".ints"
+                : (output.type() == Standardizer.class) ? ".scale" : ".bin";
+        return new File(directory, key + "-" + slug + extension);
+    }
+
+    private static Object read(Class<?> type, File file) throws IOException {
+        if (type == FeatureMatrix.class) {
+            return FeatureMatrixFile.read(file);
+        } else if (type == int[].class) {
+            return readInts(file);
+        } else if (type == Standardizer.class) {
+            return Standardizer.load(file);
+        } else if (isReference(file)) {
+            return StarCatalog.open(readReference(file));
+        } else {
+            return StarCatalog.open(file);
+        }
+    }
+
+    /**
+     * @param type decides the format, so that a FeatureMatrix stored as a RowSource is written as a
+     * star catalog
+     */
+    private static void write(Class<?> type, Object value, File file) throws IOException {
+        if (type == FeatureMatrix.class) {
+            FeatureMatrixFile.write((FeatureMatrix) value, file);
+        } else if (type == int[].class) {
+            writeInts((int[]) value, file);
+        } else if (type == Standardizer.class) {
+            ((Standardizer) value).save(file);
+        } else if (value instanceof StarCatalog) {
+            writeReference(((StarCatalog) value).file(), file);
+        } else {
+            RowSource rows = (RowSource) value;
+            String[] names = new String[rows.columns()];
+            for (int c = 0; c < names.length; c++) {
+                names[c] = rows.columnName(c);
+            }
+            double[] row = new double[rows.columns()];
+            try (StarCatalogWriter writer = new StarCatalogWriter(file, names)) {
+                for (int r = 0; r < rows.rows(); r++) {
+                    rows.copyRow(r, row);
+                    writer.addRow(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the path, size and modification time of a catalog file instead of its rows.
+     */
+    private static void writeReference(File catalog, File file) throws IOException {
+        byte[] path = catalog.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(REFERENCE_MAGIC.length + 4 + path.length + 8 + 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(REFERENCE_MAGIC);
+        buffer.putInt(path.length);
+        buffer.put(path);
+        buffer.putLong(catalog.length());
+        buffer.putLong(catalog.lastModified());
+        Files.write(file.toPath(), buffer.array());
+    }
+
+    private static boolean isReference(File file) throws IOException {
+        byte[] magic = new byte[REFERENCE_MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(magic, REFERENCE_MAGIC);
+    }
+
+    /**
+     * @return the catalog file the reference points to
+     * @throws IOException if the catalog has been changed or removed since the reference was stored
+     */
+    private static File readReference(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.position(REFERENCE_MAGIC.length);
+            byte[] path = new byte[buffer.getInt()];
+            buffer.get(path);
+            File catalog = new File(new String(path, StandardCharsets.UTF_8));
+            if (catalog.length() != buffer.getLong() || catalog.lastModified() != buffer.getLong()) {
+                throw new IOException(catalog + " has changed since " + file + " was stored");
+            }
+            return catalog;
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is not a catalog reference", e);
+        }
+    }
+
+    private static void writeInts(int[] values, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INTS_MAGIC.length + 4 + 4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(INTS_MAGIC);
+        buffer.putInt(values.length);
+        buffer.asIntBuffer().put(values);
+        buffer.rewind();
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static int[] readInts(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[INTS_MAGIC.length];
+        if (bytes.length < INTS_MAGIC.length + 4) {
+            throw new IOException(file + " is truncated");
+        }
+        buffer.get(magic);
+        int length = buffer.getInt();
+        if (!Arrays.equals(magic, INTS_MAGIC) || buffer.remaining() != 4 * (long) length) {
+            throw new IOException(file + " is not an int array file");
+        }
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * @return the SHA-256 of the file's contents, reusing the remembered hash if the file's size
+     * and modification time have not changed
+     * @throws IOException if the file cannot be read
+     */
+    String fileHash(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        Properties hashes = fileHashes();
+        String path = file.getCanonicalPath();
+        String stamp = file.length() + "," + file.lastModified() + ",";
+        String remembered = hashes.getProperty(path);
+        if (remembered != null && remembered.startsWith(stamp)) {
+            return remembered.substring(stamp.length());
+        }
+
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        String hash = hex(digest.digest());
+        hashes.setProperty(path, stamp + hash);
+        if (directory.isDirectory() || directory.mkdirs()) {
+            try (OutputStream out = new FileOutputStream(new File(directory, FILE_HASHES))) {
+                hashes.store(out, "size,modified,sha256 of source files");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return hash;
+    }
+
+    private Properties fileHashes() {
+        if (fileHashes == null) {
+            fileHashes = new Properties();
+            File file = new File(directory, FILE_HASHES);
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    fileHashes.load(in);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return fileHashes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
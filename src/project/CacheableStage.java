@@ -0,0 +1,23 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A stage whose outputs depend only on its inputs, the files it reads and its parameters, so they
+ * can be stored in an {@link ArtifactCache} and reused by later runs.
+ *
+ * @author ppeirce
+ */
+public interface CacheableStage extends PipelineStage {
+    /**
+     * @return everything other than the inputs and files that changes the outputs, such as the
+     * parameters and a version that is bumped when the stage's code changes
+     */
+    String fingerprint();
+
+    /**
+     * @return the files the stage reads
+     */
+    List<File> sourceFiles();
+}
@@ -0,0 +1,152 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import edu.nyu.cs.pa.data.ColumnStatistics;
+
+/**
+ * Records how far a classification of the whole star catalog has got, so that a run that is
+ * stopped part way can be resumed instead of started over.
+ * <ul>
+ *     <li>The number of stars classified, counted from the start of the catalog. Stars are
+ *     classified in order, so these are exactly the first stars of the catalog.</li>
+ *     <li>The length of the labels file when those stars' labels had been written. Anything
+ *     after it was written after the checkpoint and is cut off on resuming.</li>
+ *     <li>The running Earth-like summary: the {@link ColumnStatistics} of the parameters of the
+ *     stars predicted to have Earth-like planets so far.</li>
+ *     <li>A fingerprint of the classifier, the catalog and the block size. A checkpoint written
+ *     with any of them different is discarded, since resuming from it would not give the result
+ *     of an uninterrupted run.</li>
+ * </ul>
+ * <p> The layout of the file is the magic string EXOCHKP1, the fingerprint, the number of
+ * stars, the length of the labels file and then the summary, all little-endian.</p>
+ *
+ * @author ppeirce
+ */
+public final class ClassificationCheckpoint {
+    private static final byte[] MAGIC = "EXOCHKP1".getBytes(StandardCharsets.US_ASCII);
+
+    private final String fingerprint;
+    private long stars;
+    private long labelsLength;
+    private ColumnStatistics earthLike;
+
+    /**
+     * Create a checkpoint at the start of the catalog.
+     * @param fingerprint identifies the classifier, the catalog and the block size
+     * @param columnNames the parameters of a star
+     */
+    public ClassificationCheckpoint(String fingerprint, String... columnNames) {
+        this.fingerprint = fingerprint;
+        this.earthLike = new ColumnStatistics(columnNames);
+    }
+
+    /**
+     * Load the checkpoint, or start at the beginning of the catalog if the file does not exist,
+     * cannot be read, or was written for a different fingerprint.
+     * @param file
+     * @param fingerprint identifies the classifier, the catalog and the block size
+     * @param columnNames the parameters of a star
+     * @return
+     */
+    public static ClassificationCheckpoint load(File file, String fingerprint, String... columnNames) {
+        if (!file.isFile()) {
+            System.out.println("No checkpoint in " + file + ", classifying every star");
+            return new ClassificationCheckpoint(fingerprint, columnNames);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a classification checkpoint");
+            }
+            byte[] written = new byte[buffer.getInt()];
+            buffer.get(written);
+            if (!new String(written, StandardCharsets.UTF_8).equals(fingerprint)) {
+                System.out.println("The classifier or the catalog has changed since " + file + " was written, classifying every star");
+                return new ClassificationCheckpoint(fingerprint, columnNames);
+            }
+            ClassificationCheckpoint checkpoint = new ClassificationCheckpoint(fingerprint, columnNames);
+            checkpoint.stars = buffer.getLong();
+            checkpoint.labelsLength = buffer.getLong();
+            checkpoint.earthLike = ColumnStatistics.readFrom(buffer);
+            if (checkpoint.earthLike.columns() != columnNames.length) {
+                throw new IOException(file + " has " + checkpoint.earthLike.columns() + " parameters per star");
+            }
+            return checkpoint;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read " + file + ", classifying every star: " + e);
+            return new ClassificationCheckpoint(fingerprint, columnNames);
+        }
+    }
+
+    /**
+     * Write the checkpoint to a temporary file, force it to the disk and then rename it, so a
+     * crash at any point leaves either the previous checkpoint or this one intact.
+     * <p> The labels it counts must already be on the disk.</p>
+     */
+    public void save(File file) throws IOException {
+        byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 4 + fingerprintBytes.length + 8 + 8
+                + earthLike.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(fingerprintBytes.length);
+        buffer.put(fingerprintBytes);
+        buffer.putLong(stars);
+        buffer.putLong(labelsLength);
+        earthLike.writeTo(buffer);
+        buffer.rewind();
+        File partial = new File(file.getPath() + ".part");
+        try (FileChannel channel = new FileOutputStream(partial).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Add the next block of the catalog.
+     * @param blockStars the number of stars in the block
+     * @param earthLikeStars the statistics of the stars of the block predicted to have
+     * Earth-like planets
+     */
+    public void addClassified(long blockStars, ColumnStatistics earthLikeStars) {
+        stars += blockStars;
+        earthLike.merge(earthLikeStars);
+    }
+
+    /**
+     * @return the number of stars at the start of the catalog that have been classified
+     */
+    public long stars() {
+        return stars;
+    }
+
+    /**
+     * @return the length of the labels file that holds the labels of {@link #stars()}
+     */
+    public long labelsLength() {
+        return labelsLength;
+    }
+
+    public void setLabelsLength(long length) {
+        labelsLength = length;
+    }
+
+    /**
+     * @return the statistics of every star predicted to have Earth-like planets so far
+     */
+    public ColumnStatistics earthLikeStatistics() {
+        return earthLike;
+    }
+}
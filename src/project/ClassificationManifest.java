@@ -0,0 +1,234 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.nyu.cs.pa.data.ColumnStatistics;
+import edu.nyu.cs.pa.data.RowSource;
+
+/**
+ * Records what incremental classification of the TIC bands has done so far, so that a later run
+ * only classifies what is new.
+ * <ul>
+ *     <li>The bands that have been classified, each with the size and modification time it had.
+ *     A band that has changed since is read again.</li>
+ *     <li>The TIC ID of every star that has been classified, kept sorted, so a star that appears
+ *     in a second band or in a changed band is not classified or counted twice.</li>
+ *     <li>The running Earth-like summary: the number of stars examined, and the
+ *     {@link ColumnStatistics} of the parameters of the stars predicted to have Earth-like
+ *     planets.</li>
+ *     <li>A fingerprint of the classifier. A manifest written by a different classifier, such as
+ *     one trained on other planet clusters, is discarded and every band is classified again.</li>
+ * </ul>
+ * <p> The layout of the file is the magic string EXOMANI2, the fingerprint, the bands, the
+ * summary and then the star IDs, all little-endian.</p>
+ *
+ * @author ppeirce
+ */
+public final class ClassificationManifest {
+    private static final byte[] MAGIC = "EXOMANI2".getBytes(StandardCharsets.US_ASCII);
+
+    private final String fingerprint;
+    // canonical path -> "size,mtime"
+    private final Map<String, String> bands = new LinkedHashMap<>();
+    private long[] starIds = new long[0];
+    private long examined;
+    private ColumnStatistics earthLike;
+
+    /**
+     * Create an empty manifest.
+     * @param fingerprint identifies the classifier
+     * @param columnNames the parameters of a star
+     */
+    public ClassificationManifest(String fingerprint, String... columnNames) {
+        this.fingerprint = fingerprint;
+        this.earthLike = new ColumnStatistics(columnNames);
+    }
+
+    /**
+     * Load the manifest, or start an empty one if the file does not exist, cannot be read, or was
+     * written for a different classifier.
+     * @param file
+     * @param fingerprint identifies the classifier
+     * @param columnNames the parameters of a star
+     * @return
+     */
+    public static ClassificationManifest load(File file, String fingerprint, String... columnNames) {
+        if (!file.isFile()) {
+            return new ClassificationManifest(fingerprint, columnNames);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a classification manifest");
+            }
+            String written = getString(buffer);
+            if (!written.equals(fingerprint)) {
+                System.out.println("The classifier has changed since " + file + " was written, classifying every band again");
+                return new ClassificationManifest(fingerprint, columnNames);
+            }
+            ClassificationManifest manifest = new ClassificationManifest(fingerprint, columnNames);
+            int bandCount = buffer.getInt();
+            for (int i = 0; i < bandCount; i++) {
+                manifest.bands.put(getString(buffer), getString(buffer));
+            }
+            manifest.examined = buffer.getLong();
+            manifest.earthLike = ColumnStatistics.readFrom(buffer);
+            if (manifest.earthLike.columns() != columnNames.length) {
+                throw new IOException(file + " has " + manifest.earthLike.columns() + " parameters per star");
+            }
+            manifest.starIds = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(manifest.starIds);
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read " + file + ", classifying every band again: " + e);
+            return new ClassificationManifest(fingerprint, columnNames);
+        }
+    }
+
+    /**
+     * Write the manifest to a temporary file and then rename it, so a run that is stopped part
+     * way leaves the previous manifest intact. The star IDs are written a piece at a time, so
+     * saving does not need a second copy of them.
+     */
+    public void save(File file) throws IOException {
+        byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+        int size = MAGIC.length + 4 + fingerprintBytes.length + 4 + 8
+                + earthLike.serializedSize() + 4;
+        for (Map.Entry<String, String> band : bands.entrySet()) {
+            size += 8 + band.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + band.getValue().getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        putString(buffer, fingerprint);
+        buffer.putInt(bands.size());
+        for (Map.Entry<String, String> band : bands.entrySet()) {
+            putString(buffer, band.getKey());
+            putString(buffer, band.getValue());
+        }
+        buffer.putLong(examined);
+        earthLike.writeTo(buffer);
+        buffer.putInt(starIds.length);
+        buffer.rewind();
+        File partial = new File(file.getPath() + ".part");
+        try (FileChannel channel = new FileOutputStream(partial).getChannel()) {
+            write(channel, buffer);
+            ByteBuffer ids = ByteBuffer.allocate(8 << 13).order(ByteOrder.LITTLE_ENDIAN);
+            for (int from = 0; from < starIds.length; from += 1 << 13) {
+                int count = Math.min(1 << 13, starIds.length - from);
+                ids.clear();
+                ids.asLongBuffer().put(starIds, from, count);
+                ids.limit(8 * count);
+                write(channel, ids);
+            }
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return true if the band was classified and has not changed since
+     */
+    public boolean isClassified(File band) throws IOException {
+        return stamp(band).equals(bands.get(band.getCanonicalPath()));
+    }
+
+    public void markClassified(File band) throws IOException {
+        bands.put(band.getCanonicalPath(), stamp(band));
+    }
+
+    private static String stamp(File band) {
+        return band.length() + "," + band.lastModified();
+    }
+
+    /**
+     * @return true if the star has been classified
+     */
+    public boolean contains(long starId) {
+        return Arrays.binarySearch(starIds, starId) >= 0;
+    }
+
+    /**
+     * Record stars as classified.
+     * @param newIds the IDs in the first column, in ascending order and none of them already
+     * recorded. An ID given more than once is recorded once.
+     */
+    public void addStars(RowSource newIds) {
+        int unique = 0;
+        for (int j = 0; j < newIds.rows(); j++) {
+            if (j == 0 || newIds.get(j, 0) != newIds.get(j - 1, 0)) {
+                unique++;
+            }
+        }
+        long[] merged = new long[starIds.length + unique];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (j < newIds.rows()) {
+            long id = (long) newIds.get(j++, 0);
+            while (j < newIds.rows() && (long) newIds.get(j, 0) == id) {
+                j++;
+            }
+            while (i < starIds.length && starIds[i] < id) {
+                merged[k++] = starIds[i++];
+            }
+            merged[k++] = id;
+        }
+        while (i < starIds.length) merged[k++] = starIds[i++];
+        starIds = merged;
+    }
+
+    public int stars() {
+        return starIds.length;
+    }
+
+    /**
+     * Add the stars of a classified batch to the summary.
+     * @param stars the number of stars in the batch
+     * @param earthLikeStars the statistics of the stars of the batch predicted to have Earth-like
+     * planets
+     */
+    public void addClassified(long stars, ColumnStatistics earthLikeStars) {
+        examined += stars;
+        earthLike.merge(earthLikeStars);
+    }
+
+    public long examined() {
+        return examined;
+    }
+
+    /**
+     * @return the statistics of every star predicted to have Earth-like planets so far
+     */
+    public ColumnStatistics earthLikeStatistics() {
+        return earthLike;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
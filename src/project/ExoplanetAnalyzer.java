@@ -1,41 +1,85 @@
 package edu.nyu.cs.pa.project;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.nyu.cs.pa.algorithms.Dbscan;
+import edu.nyu.cs.pa.algorithms.KdTree;
 import edu.nyu.cs.pa.algorithms.KMeans;
 import edu.nyu.cs.pa.algorithms.KNN;
+import edu.nyu.cs.pa.algorithms.TrainingTiles;
+import edu.nyu.cs.pa.data.ColumnStatistics;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.OffHeapMatrix;
+import edu.nyu.cs.pa.data.ProjectedTsvReader;
+import edu.nyu.cs.pa.data.RowBlockReader;
+import edu.nyu.cs.pa.data.RowSource;
+import edu.nyu.cs.pa.data.Standardizer;
+import edu.nyu.cs.pa.data.StarCatalog;
+import edu.nyu.cs.pa.data.StarCatalogWriter;
+import edu.nyu.cs.pa.data.TicBandFilter;
 import edu.nyu.cs.pa.plotting.twoDimensionalScatterPlot;
 
 public class ExoplanetAnalyzer {
-    private static final File NASA_CLEAN = new File("data/nasa_exoplanet_catalog2.tsv");
-
-    private Double[][] npcMassRadiusMatrix;
-    private Double[][] npcStandardizedMassRadiusMatrix;
-    private Double[][] npcStellarParameterMatrix;
-    private List<Double[]> combinedStellarParameterMatrix;
-    private List<Double[]> planetsSubsetTraining;
-    private List<Double[]> planetsSubsetTesting;
-    private List<Double[]> parametersOfStarsPredictedToHaveEarthLikePlanets;
+    static final File NASA_CLEAN = new File("data/nasa_exoplanet_catalog2.tsv");
+    static final File COMBINED_TIC = new File("data/combined_tic.csv");
+    private static final File COMBINED_TIC_CATALOG = new File("data/combined_tic.bin");
+    private static final File CLASSIFICATION_MANIFEST = new File("data/tic_manifest.bin");
+    private static final File STAR_LABELS = new File("data/tic_labels.txt");
+    private static final File STAR_LABELS_CHECKPOINT = new File("data/tic_labels.checkpoint");
+    private static final String[] MASS_RADIUS_COLUMNS = {"mass", "radius"};
+    private static final String[] STELLAR_PARAMETER_COLUMNS =
+            {"distance", "temperature", "mass", "radius", "gravity", "luminosity", "metallicity"};
+    static final long KMEANS_SEED = 20181204L;
+    static final int KMEANS_RESTARTS = 16;
+    // stars per range when summarizing; fixed so the summary does not depend on the thread count
+    private static final int SUMMARY_RANGE_ROWS = 10000;
+    // stars of a band classified at a time, a whole number of summary ranges
+    private static final int BAND_BLOCK_ROWS = 16 * SUMMARY_RANGE_ROWS;
+    private static final long MAX_EXACT_ID = 1L << 53;
+
+    private FeatureMatrix npcMassRadiusMatrix;
+    private FeatureMatrix npcStandardizedMassRadiusMatrix;
+    private Standardizer massRadiusScaler;
+    private Standardizer stellarScaler;
+    private FeatureMatrix npcStellarParameterMatrix;
+    private RowSource combinedStellarParameterMatrix;
+    private FeatureMatrix planetsSubsetTraining;
+    private FeatureMatrix planetsSubsetTesting;
+    private ColumnStatistics earthLikeStarStatistics;
     private int[] planetLabelArray;
     private List<Integer> labelsOfPlanetsWithAllStellarProperties;
     private List<Integer> labelsWithStellarPropertiesSubset;
     private List<Integer> labelsOfRemainingTenPercentForComparison;
     private int earthLikeClusterId;
     private int jupiterLikeClusterId;
+    private boolean verifyIndexedClassification = false;
+    private boolean scaleStellarParameters = false;
+    private boolean classifyInTiles = false;
+    private int classificationParallelism = Runtime.getRuntime().availableProcessors();
+    private int blockRows = 1 << 16;
+    private int blockQueueLength = 2;
+    private int checkpointIntervalSeconds = 60;
+    private boolean resume = false;
+    private int filterWorkers = 0;
 
     /**
      * <p>
      *     List where each row represents a planet and each parameter is a stellar property of the
      *     star the planet orbits. Every planet in this list has a value for every stellar property.
-     *     There are no empty, null or Double.MIN_VALUE entries.
+     *     There are no missing entries.
      * </p>
      * <p>
      *     This list is based off of the npcStellarParameterMatrix.
      * </p>
      */
-    private List<Double[]> npcStellarParameterList;
+    private FeatureMatrix npcStellarParameterList;
 
     public ExoplanetAnalyzer() {
 
@@ -63,20 +107,22 @@ public class ExoplanetAnalyzer {
      * </ol>
      */
     public void prepData() {
-        List<String[]> npcPlanetsWithMassAndRadius = generateNpcPlanetsWithMassAndRadius();
-        npcStandardizedMassRadiusMatrix = generateStandardizedNpcMatrix(npcPlanetsWithMassAndRadius);
-        npcStellarParameterMatrix = generateNpcStellarParameterMatrix(npcPlanetsWithMassAndRadius);
-        combinedStellarParameterMatrix = generateTicStellarParameterMatrix(new File("data/combined_tic.csv"));
+        readPlanets();
+        standardizePlanets();
+        openStars();
     }
 
-    private List<String[]> generateNpcPlanetsWithMassAndRadius() {
-        List<String[]> npcPlanets = readTsvToListOfArrays(NASA_CLEAN);
-        return filterPlanetsWithoutMassAndRadius(npcPlanets);
+    void readPlanets() {
+        readNpcPlanetsWithMassAndRadius();
     }
 
-    private Double[][] generateStandardizedNpcMatrix(List<String[]> planetList) {
-        npcMassRadiusMatrix = generateMassRadiusMatrix(planetList);
-        return standardizeMatrix(npcMassRadiusMatrix);
+    void standardizePlanets() {
+        massRadiusScaler = Standardizer.fit(npcMassRadiusMatrix);
+        npcStandardizedMassRadiusMatrix = massRadiusScaler.transform(npcMassRadiusMatrix);
+    }
+
+    void openStars() {
+        combinedStellarParameterMatrix = openTicStellarParameters();
     }
 
     /**
@@ -88,10 +134,26 @@ public class ExoplanetAnalyzer {
      * </ol>
      */
     public void clusterData() {
-        planetLabelArray = generateLabelArray();
+        useClusterLabels(generateLabelArray());
+    }
+
+    /**
+     * @return the cluster of every planet in the mass/radius matrix, with the Earth-like
+     * planets in cluster 0
+     */
+    int[] clusterPlanets() {
+        return generateLabelArray();
+    }
+
+    /**
+     * Use the given planet clusters for the graphs and classifications that follow. The planet
+     * stellar parameters must already be set.
+     * @param labels the cluster of every planet, as returned by {@link #clusterPlanets()}
+     */
+    void useClusterLabels(int[] labels) {
+        planetLabelArray = labels;
         setClusterLabels(planetLabelArray);
         npcStellarParameterList = generateListOfPlanetsWithAllStellarParameters();
-
     }
     
     public void graphClusters() {
@@ -117,14 +179,20 @@ public class ExoplanetAnalyzer {
 
     /**
      * Ensure the earth-like cluster has id 0
+     * <p> The clusters are renumbered so that planet 1, which is Earth-like, is in cluster 0.</p>
      * @return
      */
     private int[] generateLabelArray() {
-        int[] labelArray;
-        do {
-            KMeans km = runKMeans(npcStandardizedMassRadiusMatrix);
-            labelArray = km.getLabelArray();
-        } while (labelArray[1] == 1);
+        KMeans km = runKMeans(npcStandardizedMassRadiusMatrix);
+        int[] labelArray = km.getLabelArray().clone();
+        int earthLike = labelArray[1];
+        for (int i = 0; i < labelArray.length; i++) {
+            if (labelArray[i] == earthLike) {
+                labelArray[i] = 0;
+            } else if (labelArray[i] == 0) {
+                labelArray[i] = earthLike;
+            }
+        }
         return labelArray;
     }
 
@@ -137,7 +205,14 @@ public class ExoplanetAnalyzer {
     }
 
     private int[] performClusteringForTesting() {
-        int[] classificationLabels = new KNN().classify(3, planetsSubsetTesting, planetsSubsetTraining, labelsWithStellarPropertiesSubset);
+        FeatureMatrix training = planetsSubsetTraining;
+        FeatureMatrix testing = planetsSubsetTesting;
+        if (scaleStellarParameters) {
+            Standardizer scaler = Standardizer.fit(training);
+            training = scaler.transform(training);
+            testing = scaler.transform(testing);
+        }
+        int[] classificationLabels = new KNN().classify(3, testing, training, labelsWithStellarPropertiesSubset);
         System.out.println("\nActual labels:     " + labelsOfRemainingTenPercentForComparison.toString());
         System.out.println("Predicted labels:  " + Arrays.toString(classificationLabels));
         return classificationLabels;
@@ -228,33 +303,389 @@ public class ExoplanetAnalyzer {
      * to predict which stars harbor Earth-like planets
      */
     public void classifyAndExamineSolarParameters() {
-        // This removes all planets that do not have data for every stellar parameter. This ensures
-        // that when the new stars are classified, they are being compared to the highest quality data.
-        List<Double[]> stellarParametersOfEarthLikePlanets = generateListOfPlanetsWithAllStellarParameters(earthLikeClusterId);
-        List<Double[]> stellarParametersOfJupiterLikePlanets = generateListOfPlanetsWithAllStellarParameters(jupiterLikeClusterId);
-
-        int[] classifiedLabels = new KNN().classify(3, combinedStellarParameterMatrix, npcStellarParameterList, labelsOfPlanetsWithAllStellarProperties);
-        parametersOfStarsPredictedToHaveEarthLikePlanets = new ArrayList<>();
-        for (int i = 0; i < classifiedLabels.length; i++) {
-            if (classifiedLabels[i] == earthLikeClusterId) {
-                parametersOfStarsPredictedToHaveEarthLikePlanets.add(combinedStellarParameterMatrix.get(i));
+        KNN knn = new KNN();
+        FeatureMatrix training = stellarTrainingSet();
+        if (verifyIndexedClassification) {
+            knn.compareIndexedWithBruteForce(3, scaledStars(combinedStellarParameterMatrix), training, labelsOfPlanetsWithAllStellarProperties);
+        }
+        KdTree trainingIndex = knn.buildIndex(training);
+        TrainingTiles trainingTiles = classifyInTiles ? knn.buildTiles(training) : null;
+        int[] classifiedLabels = classifyStars(knn, combinedStellarParameterMatrix, trainingIndex, trainingTiles);
+        earthLikeStarStatistics = summarizeStarsWithLabel(combinedStellarParameterMatrix, classifiedLabels, earthLikeClusterId);
+        System.out.println("Number of stars examined: " + combinedStellarParameterMatrix.rows());
+        System.out.println("Number of star predicted to have Earth-like planets: " + earthLikeStarStatistics.count(0));
+        System.out.println("\nProperties of stars predicted to have Earth-like planets.");
+        printResults(earthLikeStarStatistics);
+
+    }
+
+    /**
+     * Classify the TIC stars a block at a time, writing every star's label to
+     * data/tic_labels.txt and checkpointing to data/tic_labels.checkpoint.
+     * @see #classifyStarsInBlocks(File, File)
+     */
+    public void classifyStarsInBlocks() {
+        classifyStarsInBlocks(STAR_LABELS, STAR_LABELS_CHECKPOINT);
+    }
+
+    /**
+     * Same as {@link #classifyAndExamineSolarParameters()}, but in a fixed amount of memory
+     * however large the catalog is, and able to resume after being stopped.
+     * <p> The stars are read from the reduced catalog in blocks of {@link #setBlockRows(int)}
+     * rows, on a separate thread that reads up to {@link #setBlockQueueLength(int)} blocks ahead.
+     * Each block is classified against the training set and summarized, and its labels are
+     * appended to the labels file, before the next block is taken. Only the blocks and the
+     * summary are held, never the whole catalog or all of its labels.</p>
+     * <p> Every {@link #setCheckpointInterval(int)} seconds, at the end of a block, the labels
+     * are forced to the disk and a {@link ClassificationCheckpoint} is saved. With
+     * {@link #setResume(boolean)} set, a run starts from the checkpoint: the labels file is cut
+     * back to the checkpoint, the stars before it are skipped and the summary carries on from
+     * the one saved, so the labels and the summary come out as they would from an uninterrupted
+     * run. The checkpoint is deleted when every star has been classified.</p>
+     * @param labelsFile gets the cluster of every star, one per line in catalog order
+     * @param checkpointFile
+     * @throws UncheckedIOException if the catalog cannot be read or the labels or checkpoint
+     * cannot be written. Nothing is reported and the statistics are not updated, since they
+     * would only cover part of the catalog; the last checkpoint is kept for resuming.
+     */
+    public void classifyStarsInBlocks(File labelsFile, File checkpointFile) {
+        classifyStarsInBlocks(ticStellarParameterSource(), labelsFile, checkpointFile);
+    }
+
+    /**
+     * @param source the reduced catalog, either combined_tic.bin or a CSV file of stellar
+     * parameters
+     * @see #classifyStarsInBlocks(File, File)
+     */
+    void classifyStarsInBlocks(File source, File labelsFile, File checkpointFile) {
+        KNN knn = new KNN();
+        FeatureMatrix training = stellarTrainingSet();
+        KdTree trainingIndex = knn.buildIndex(training);
+        TrainingTiles trainingTiles = classifyInTiles ? knn.buildTiles(training) : null;
+        String fingerprint = classifierFingerprint(training) + " blockRows=" + blockRows
+                + " catalog=" + source.getAbsolutePath() + "," + source.length() + "," + source.lastModified();
+        ClassificationCheckpoint checkpoint = resume
+                ? ClassificationCheckpoint.load(checkpointFile, fingerprint, STELLAR_PARAMETER_COLUMNS)
+                : new ClassificationCheckpoint(fingerprint, STELLAR_PARAMETER_COLUMNS);
+        if (checkpoint.stars() > 0 && labelsFile.length() < checkpoint.labelsLength()) {
+            System.out.println(labelsFile + " is shorter than the checkpoint says, classifying every star");
+            checkpoint = new ClassificationCheckpoint(fingerprint, STELLAR_PARAMETER_COLUMNS);
+        }
+        if (checkpoint.stars() > 0) {
+            System.out.println("Resuming after star " + checkpoint.stars());
+        }
+        try (RowBlockReader blocks = openTicStellarParameterBlocks(source, checkpoint.stars());
+             FileOutputStream labelsStream = new FileOutputStream(labelsFile, checkpoint.stars() > 0);
+             Writer labelsOut = new BufferedWriter(new OutputStreamWriter(labelsStream, StandardCharsets.US_ASCII))) {
+            // drop the labels written after the checkpoint
+            labelsStream.getChannel().truncate(checkpoint.labelsLength());
+            long lastCheckpoint = System.nanoTime();
+            FeatureMatrix block;
+            while ((block = blocks.next()) != null) {
+                int[] labels = classifyStars(knn, block, trainingIndex, trainingTiles);
+                ColumnStatistics earthLike = summarizeStarsWithLabel(block, labels, earthLikeClusterId);
+                for (int label : labels) {
+                    labelsOut.write(Integer.toString(label));
+                    labelsOut.write('\n');
+                }
+                checkpoint.addClassified(block.rows(), earthLike);
+                if (System.nanoTime() - lastCheckpoint >= checkpointIntervalSeconds * 1000000000L) {
+                    labelsOut.flush();
+                    labelsStream.getFD().sync();
+                    checkpoint.setLabelsLength(labelsStream.getChannel().size());
+                    checkpoint.save(checkpointFile);
+                    lastCheckpoint = System.nanoTime();
+                }
             }
+        } catch (IOException e) {
+            // the stars after the failure were not classified, so there is no summary to report
+            throw new UncheckedIOException("Classification stopped after star " + checkpoint.stars()
+                    + (checkpointFile.isFile() ? ", the last checkpoint is in " + checkpointFile : ""), e);
+        }
+        if (checkpointFile.isFile() && !checkpointFile.delete()) {
+            System.out.println("Could not delete " + checkpointFile);
         }
-        System.out.println("Number of stars examined: " + combinedStellarParameterMatrix.size());
-        System.out.println("Number of star predicted to have Earth-like planets: " + parametersOfStarsPredictedToHaveEarthLikePlanets.size());
+        earthLikeStarStatistics = checkpoint.earthLikeStatistics();
+        System.out.println("Number of stars examined: " + checkpoint.stars());
+        System.out.println("Number of star predicted to have Earth-like planets: " + earthLikeStarStatistics.count(0));
+        System.out.println("Labels written to " + labelsFile);
         System.out.println("\nProperties of stars predicted to have Earth-like planets.");
-        double[] averages = new double[7];
-        for (Double[] star : parametersOfStarsPredictedToHaveEarthLikePlanets) {
-            for (int i = 0; i < star.length; i++) {
-                averages[i] += star[i];
+        printResults(earthLikeStarStatistics);
+    }
+
+    /**
+     * Summarize the stars given a label, reading each star once and without collecting them.
+     * <p> The stars are summarized in ranges of {@link #SUMMARY_RANGE_ROWS} rows, on separate
+     * threads when the classification is parallel, and the ranges are merged in order. The
+     * ranges do not depend on the number of threads, so neither does the result, and a
+     * classification resumed on a machine with a different number of cores gives the same
+     * quantiles.</p>
+     */
+    private ColumnStatistics summarizeStarsWithLabel(RowSource stars, int[] labels, int label) {
+        return summarizeStarsWithLabel(stars, labels, label, new ColumnStatistics(STELLAR_PARAMETER_COLUMNS));
+    }
+
+    /**
+     * @param statistics the ranges are merged into these, in order
+     * @return statistics
+     */
+    private ColumnStatistics summarizeStarsWithLabel(RowSource stars, int[] labels, int label, ColumnStatistics statistics) {
+        int ranges = (stars.rows() + SUMMARY_RANGE_ROWS - 1) / SUMMARY_RANGE_ROWS;
+        int threads = Math.max(1, Math.min(classificationParallelism, ranges));
+        if (threads == 1) {
+            for (int r = 0; r < ranges; r++) {
+                statistics.merge(summarizeRange(stars, labels, label, r).call());
             }
+            return statistics;
         }
-        for (int i = 0; i < averages.length; i++) {
-            averages[i] = averages[i] / parametersOfStarsPredictedToHaveEarthLikePlanets.size();
+        List<Future<ColumnStatistics>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int r = 0; r < ranges; r++) {
+                results.add(pool.submit(summarizeRange(stars, labels, label, r)));
+            }
+            for (Future<ColumnStatistics> result : results) {
+                statistics.merge(result.get());
+            }
+            return statistics;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while summarizing stars", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Summarizing stars failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        printResults(averages);
+    private static SummarizeRange summarizeRange(RowSource stars, int[] labels, int label, int range) {
+        int from = range * SUMMARY_RANGE_ROWS;
+        return new SummarizeRange(stars, labels, label, from, Math.min(stars.rows(), from + SUMMARY_RANGE_ROWS));
+    }
 
+    private static class SummarizeRange implements Callable<ColumnStatistics> {
+        private final RowSource stars;
+        private final int[] labels;
+        private final int label;
+        private final int from;
+        private final int to;
+
+        SummarizeRange(RowSource stars, int[] labels, int label, int from, int to) {
+            this.stars = stars;
+            this.labels = labels;
+            this.label = label;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ColumnStatistics call() {
+            ColumnStatistics statistics = new ColumnStatistics(STELLAR_PARAMETER_COLUMNS);
+            double[] star = new double[stars.columns()];
+            for (int i = from; i < to; i++) {
+                if (labels[i] == label) {
+                    stars.copyRow(i, star);
+                    statistics.add(star);
+                }
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Classify the stars of the TIC band files in data/tic that have not been classified before,
+     * recording them in data/tic_manifest.bin.
+     * @see #classifyNewStarBands(String, File)
+     */
+    public void classifyNewStarBands() {
+        classifyNewStarBands("data/tic", CLASSIFICATION_MANIFEST);
+    }
+
+    /**
+     * Classify only the stars of TIC band files that have not been classified before, and print
+     * the Earth-like summary over every star classified so far.
+     * <p> What has been classified is kept in a {@link ClassificationManifest}. Bands that are
+     * unchanged since they were classified are skipped, and stars whose TIC ID has already been
+     * classified, in another band or earlier in the same band, are not classified or counted
+     * again. The rest are classified against the same training index as
+     * {@link #classifyAndExamineSolarParameters()}, and the summary is updated with them. The
+     * manifest is saved after every band, so an interrupted run loses at most one band.</p>
+     * <p> The stars of a band, their IDs and the sort that finds repeated IDs are all kept
+     * outside the heap, and the stars are classified in blocks, so the heap a band needs does
+     * not grow with its size. What grows is the manifest's sorted list of classified IDs, at
+     * 8 bytes a star.</p>
+     * <p> The manifest records which planet clusters it was built with, and is started over if
+     * they change.</p>
+     * @param directoryOrGlob a directory of band files, or a glob such as data/tic/*S_*S.csv
+     * @param manifestFile
+     * @throws UncheckedIOException naming the band that could not be read or saved. No summary
+     * is printed, and running again picks up at that band.
+     */
+    public void classifyNewStarBands(String directoryOrGlob, File manifestFile) {
+        KNN knn = new KNN();
+        FeatureMatrix training = stellarTrainingSet();
+        KdTree trainingIndex = knn.buildIndex(training);
+        TrainingTiles trainingTiles = classifyInTiles ? knn.buildTiles(training) : null;
+        ClassificationManifest manifest = ClassificationManifest.load(manifestFile,
+                classifierFingerprint(training), STELLAR_PARAMETER_COLUMNS);
+        TicBandFilter reader = new TicBandFilter();
+        for (File band : TicBandFilter.findBandFiles(directoryOrGlob)) {
+            try {
+                if (manifest.isClassified(band)) {
+                    System.out.println("Already classified " + band);
+                    continue;
+                }
+                classifyBand(reader, band, knn, trainingIndex, trainingTiles, manifest);
+                manifest.markClassified(band);
+                manifest.save(manifestFile);
+            } catch (IOException e) {
+                // the bands before this one are already saved in the manifest
+                throw new UncheckedIOException("Could not classify " + band, e);
+            }
+        }
+        System.out.println("Number of stars examined: " + manifest.examined());
+        System.out.println("Number of star predicted to have Earth-like planets: " + manifest.earthLikeStatistics().count(0));
+        System.out.println("\nProperties of stars predicted to have Earth-like planets.");
+        printResults(manifest.earthLikeStatistics());
+    }
+
+    private void classifyBand(TicBandFilter reader, File band, KNN knn, KdTree trainingIndex,
+                              TrainingTiles trainingTiles, final ClassificationManifest manifest) throws IOException {
+        // a band can hold more stars than fit in the heap, so they and their IDs are collected
+        // outside it. The IDs are stored as doubles, which hold every ID below 2^53 exactly.
+        try (final OffHeapMatrix stars = new OffHeapMatrix(7, STELLAR_PARAMETER_COLUMNS);
+             final OffHeapMatrix ids = new OffHeapMatrix(2, "tic id", "row");
+             OffHeapMatrix repeats = new OffHeapMatrix(1, "row")) {
+            long[] counts = reader.readStars(band, new TicBandFilter.StarHandler() {
+                @Override
+                public void star(long ticId, double[] parameters) {
+                    if (manifest.contains(ticId)) {
+                        return;
+                    }
+                    if (ticId < 0 || ticId > MAX_EXACT_ID) {
+                        throw new IllegalArgumentException("TIC ID " + ticId + " is out of range");
+                    }
+                    ids.addRow(ticId, stars.rows());
+                    stars.addRow(parameters);
+                }
+            });
+
+            // keep the first row of each star that appears more than once in the band
+            ids.sortRows();
+            for (int i = 1; i < ids.rows(); i++) {
+                if (ids.get(i, 0) == ids.get(i - 1, 0)) {
+                    repeats.addRow(ids.get(i, 1));
+                }
+            }
+            repeats.sortRows();
+            stars.removeRows(repeats);
+
+            // a block at a time, so no array the size of the band is needed for the labels. The
+            // blocks are whole summary ranges, so the summary is the same as in one piece.
+            ColumnStatistics earthLike = new ColumnStatistics(STELLAR_PARAMETER_COLUMNS);
+            for (int from = 0; from < stars.rows(); from += BAND_BLOCK_ROWS) {
+                RowSource block = rowRange(stars, from, Math.min(stars.rows(), from + BAND_BLOCK_ROWS));
+                int[] labels = classifyStars(knn, block, trainingIndex, trainingTiles);
+                summarizeStarsWithLabel(block, labels, earthLikeClusterId, earthLike);
+            }
+            manifest.addClassified(stars.rows(), earthLike);
+            manifest.addStars(ids);
+            System.out.printf("Classified %s: %d stars with all parameters, %d new, %d Earth-like\n",
+                    band, counts[1], stars.rows(), earthLike.count(0));
+        }
+    }
+
+    /**
+     * @return the rows [from, to) of the source, read in place
+     */
+    private static RowSource rowRange(final RowSource rows, final int from, final int to) {
+        return new RowSource() {
+            @Override
+            public int rows() {
+                return to - from;
+            }
+
+            @Override
+            public int columns() {
+                return rows.columns();
+            }
+
+            @Override
+            public String columnName(int column) {
+                return rows.columnName(column);
+            }
+
+            @Override
+            public double get(int row, int column) {
+                return rows.get(from + row, column);
+            }
+
+            @Override
+            public void copyRow(int row, double[] into) {
+                rows.copyRow(from + row, into);
+            }
+        };
+    }
+
+    /**
+     * @return the stellar parameters of the planets with all of them, standardized if
+     * {@link #setScaleStellarParameters(boolean)} is set. The scaler is kept for the stars.
+     */
+    private FeatureMatrix stellarTrainingSet() {
+        if (!scaleStellarParameters) {
+            stellarScaler = null;
+            return npcStellarParameterList;
+        }
+        stellarScaler = Standardizer.fit(npcStellarParameterList);
+        return stellarScaler.transform(npcStellarParameterList);
+    }
+
+    /**
+     * @return the stars as the classifier compares them. They are scaled as they are read, with
+     * the parameters of the planet hosts.
+     */
+    private RowSource scaledStars(RowSource stars) {
+        return (stellarScaler != null) ? stellarScaler.scaled(stars) : stars;
+    }
+
+    /**
+     * @param trainingTiles if not null, the stars are classified a tile at a time against these
+     * instead of with the index
+     */
+    private int[] classifyStars(KNN knn, RowSource stars, KdTree trainingIndex, TrainingTiles trainingTiles) {
+        RowSource compared = scaledStars(stars);
+        if (trainingTiles != null) {
+            return (classificationParallelism > 1)
+                    ? knn.classifyInParallel(3, compared, trainingTiles, labelsOfPlanetsWithAllStellarProperties, classificationParallelism)
+                    : knn.classify(3, compared, trainingTiles, labelsOfPlanetsWithAllStellarProperties);
+        }
+        return (classificationParallelism > 1)
+                ? knn.classifyInParallel(3, compared, trainingIndex, labelsOfPlanetsWithAllStellarProperties, classificationParallelism)
+                : knn.classify(3, compared, trainingIndex, labelsOfPlanetsWithAllStellarProperties);
+    }
+
+    /**
+     * @return a string that changes whenever the classifier would label a star differently
+     */
+    private String classifierFingerprint(FeatureMatrix training) {
+        return "knn k=3 scaled=" + scaleStellarParameters
+                + " training=" + training.rows() + ":" + Arrays.hashCode(training.values())
+                + " labels=" + labelsOfPlanetsWithAllStellarProperties.hashCode()
+                + " earthLike=" + earthLikeClusterId;
+    }
+
+    private void printResults(ColumnStatistics statistics) {
+        double[] averages = new double[statistics.columns()];
+        for (int i = 0; i < averages.length; i++) {
+            averages[i] = statistics.mean(i);
+        }
+        printResults(averages);
+        System.out.printf("\n%-12s %10s %10s %10s %10s %10s %10s\n", "", "stdev", "min", "5%", "median", "95%", "max");
+        for (int i = 0; i < statistics.columns(); i++) {
+            System.out.printf("%-12s %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f\n", statistics.columnName(i),
+                    statistics.standardDeviation(i), statistics.min(i), statistics.quantile(i, 0.05),
+                    statistics.quantile(i, 0.5), statistics.quantile(i, 0.95), statistics.max(i));
+        }
     }
 
     private void printResults(double[] averages) {
@@ -269,62 +700,25 @@ public class ExoplanetAnalyzer {
 
     /**
      * <p>Calculate the average of each column of the matrix.</p>
-     * <p>The calculations ignore values of Double.MIN_VALUE</p>
+     * <p>The calculations ignore missing values, and every statistic is gathered in one pass</p>
      * <p>In addition, print the standard deviations, min values, and max values</p>
      * @param matrix
      * @return an array of the average values for each parameter
      */
-    private double[] calculateAverages(Double[][] matrix) {
-        double[] avgs = new double[matrix[0].length];
-        double[] sums = new double[matrix[0].length];
-        double[] maxs = newMinDoubleArray(matrix[0].length);
-        double[] mins = newMaxDoubleArray(matrix[0].length);
-        int[] cts = new int[matrix[0].length];
-
-        for (Double[] row : matrix) {
-            for (int i = 0; i < row.length; i++) {
-                if (row[i] != Double.MIN_VALUE) {
-                    sums[i] += row[i];
-                    if (maxs[i] < row[i]) maxs[i] = row[i];
-                    if (mins[i] > row[i]) mins[i] = row[i];
-                    cts[i]++;
-                }
-            }
+    private double[] calculateAverages(FeatureMatrix matrix) {
+        ColumnStatistics statistics = new ColumnStatistics(matrix.columnNames());
+        statistics.addRows(matrix, 0, matrix.rows());
+        double[] avgs = new double[matrix.columns()];
+        double[] stdevs = new double[matrix.columns()];
+        double[] maxs = new double[matrix.columns()];
+        double[] mins = new double[matrix.columns()];
+        for (int i = 0; i < matrix.columns(); i++) {
+            avgs[i] = statistics.mean(i);
+            stdevs[i] = statistics.standardDeviation(i);
+            maxs[i] = statistics.max(i);
+            mins[i] = statistics.min(i);
         }
 
-        for (int i = 0; i < sums.length; i++) {
-            avgs[i] = sums[i] / cts[i];
-        }
-
-        double[][] squaredDifferences = new double[matrix.length][];
-
-        for (int i = 0; i < matrix.length; i++) {
-            squaredDifferences[i] = new double[matrix[i].length];
-            for (int j = 0; j < matrix[i].length; j++) {
-                if (matrix[i][j] != Double.MIN_VALUE) {
-                    squaredDifferences[i][j] = (matrix[i][j] - avgs[j]) * (matrix[i][j] - avgs[j]);
-                } else {
-                    squaredDifferences[i][j] = Double.MIN_VALUE;
-                }
-            }
-        }
-
-        double[] squaredDifferenceMeans = new double[squaredDifferences[0].length];
-        for (double[] row : squaredDifferences) {
-            for (int i = 0; i < row.length; i++) {
-                if (row[i] != Double.MIN_VALUE) {
-                    squaredDifferenceMeans[i] += row[i];
-                }
-            }
-        }
-        double[] stdevs = new double[squaredDifferenceMeans.length];
-        for (int i = 0; i < sums.length; i++) {
-            squaredDifferenceMeans[i] = squaredDifferenceMeans[i] / cts[i];
-            stdevs[i] = Math.sqrt(squaredDifferenceMeans[i]);
-        }
-
-//        System.out.println("Totals: " + Arrays.toString(sums));
-//        System.out.println("Counts: " + Arrays.toString(cts));
         System.out.println("Means: " + Arrays.toString(avgs));
         System.out.println("Stdevs: " + Arrays.toString(stdevs));
         System.out.println("Max Values: " + Arrays.toString(maxs));
@@ -332,55 +726,40 @@ public class ExoplanetAnalyzer {
         return avgs;
     }
 
-    private double[] newMinDoubleArray(int size) {
-        double[] x = new double[size];
-        for (int i = 0; i < size; i++) {
-            x[i] = Double.MIN_VALUE;
-        }
-        return x;    }
-
-    private double[] newMaxDoubleArray(int size) {
-        double[] x = new double[size];
-        for (int i = 0; i < size; i++) {
-            x[i] = Double.MAX_VALUE;
-        }
-        return x;
-    }
-
-    private List<Double[]> generateListOfPlanetsWithAllStellarParameters() {
+    private FeatureMatrix generateListOfPlanetsWithAllStellarParameters() {
         labelsWithStellarPropertiesSubset = new ArrayList<>();
-        planetsSubsetTraining = new ArrayList<>();
-        planetsSubsetTesting = new ArrayList<>();
+        List<Integer> trainingRows = new ArrayList<>();
+        List<Integer> testingRows = new ArrayList<>();
         labelsOfRemainingTenPercentForComparison = new ArrayList<>();
-        List<Double[]> planets = new ArrayList<>();
         labelsOfPlanetsWithAllStellarProperties = new ArrayList<>();
-        for (int i = 0; i < npcStellarParameterMatrix.length; i++) {
-            if (allStellarParametersExist(npcStellarParameterMatrix[i])) {
-                labelsOfPlanetsWithAllStellarProperties.add(planetLabelArray[i]);
-                planets.add(npcStellarParameterMatrix[i]);
-
-                // for testing
-                if (i < 363) {
-                    labelsWithStellarPropertiesSubset.add(planetLabelArray[i]);
-                    planetsSubsetTraining.add(npcStellarParameterMatrix[i]);
-                } else {
-                    labelsOfRemainingTenPercentForComparison.add(planetLabelArray[i]);
-                    planetsSubsetTesting.add(npcStellarParameterMatrix[i]);
+        int[] planets = npcStellarParameterMatrix.completeRows();
+        for (int i : planets) {
+            labelsOfPlanetsWithAllStellarProperties.add(planetLabelArray[i]);
+
+            // for testing
+            if (i < 363) {
+                labelsWithStellarPropertiesSubset.add(planetLabelArray[i]);
+                trainingRows.add(i);
+            } else {
+                labelsOfRemainingTenPercentForComparison.add(planetLabelArray[i]);
+                testingRows.add(i);
 
-                }
             }
         }
-        return planets;
+        planetsSubsetTraining = npcStellarParameterMatrix.selectRows(trainingRows);
+        planetsSubsetTesting = npcStellarParameterMatrix.selectRows(testingRows);
+        return npcStellarParameterMatrix.selectRows(planets);
     }
 
-    private List<Double[]> generateListOfPlanetsWithAllStellarParameters(int id) {
-        List<Double[]> planets = new ArrayList<Double[]>();
+    private FeatureMatrix generateListOfPlanetsWithAllStellarParameters(int id) {
+        long[] complete = npcStellarParameterMatrix.completeRowMask();
+        List<Integer> planets = new ArrayList<>();
         for (int i = 0; i < planetLabelArray.length; i++) {
-            if (planetLabelArray[i] == id && allStellarParametersExist(npcStellarParameterMatrix[i])) {
-                planets.add(npcStellarParameterMatrix[i]);
+            if (planetLabelArray[i] == id && FeatureMatrix.isSet(complete, i)) {
+                planets.add(i);
             }
         }
-        return planets;
+        return npcStellarParameterMatrix.selectRows(planets);
     }
 
     private Double[][] generatePlanetArraySubsetByCluster(int id) {
@@ -389,71 +768,61 @@ public class ExoplanetAnalyzer {
         int index = 0;
         for (int i = 0; i < planetLabelArray.length; i++) {
             if (planetLabelArray[i] == id) {
-                planets[index++] = npcStellarParameterMatrix[i];
+                planets[index++] = npcStellarParameterMatrix.toBoxedRow(i);
             }
         }
         return planets;
     }
 
-    private boolean allStellarParametersExist(Double[] planet) {
-        boolean allExist = true;
-        for (Double parameter : planet) {
-            if (parameter == Double.MIN_VALUE) {
-                allExist = false;
-            }
-        }
-        return allExist;
-    }
-
-    private void splitIntoTwoClustersAndGraph(Double[][] m, int[] labels) {
+    private void splitIntoTwoClustersAndGraph(FeatureMatrix m, int[] labels) {
         List<Double[]> m1 = new ArrayList<>();
         List<Double[]> m2 = new ArrayList<>();
         for (int i = 0; i < labels.length; i++) {
             if (labels[i] == 0) {
-                m1.add(m[i]);
+                m1.add(m.toBoxedRow(i));
             } else if (labels[i] == 1) {
-                m2.add(m[i]);
+                m2.add(m.toBoxedRow(i));
             }
         }
         new twoDimensionalScatterPlot().twoListDataSources(m1, m2, "Mass (Jupiter)", "Radius (Jupiter)");
     }
 
-    private void splitIntoThreeClustersAndGraph(Double[][] m, int[] labels) {
+    private void splitIntoThreeClustersAndGraph(FeatureMatrix m, int[] labels) {
         List<Double[]> m1 = new ArrayList<>();
         List<Double[]> m2 = new ArrayList<>();
         List<Double[]> m3 = new ArrayList<>();
         for (int i = 0; i < labels.length; i++) {
             if (labels[i] == 0) {
-                m1.add(m[i]);
+                m1.add(m.toBoxedRow(i));
             } else if (labels[i] == 1) {
-                m2.add(m[i]);
+                m2.add(m.toBoxedRow(i));
             } else if (labels[i] == 2) {
-                m3.add(m[i]);
+                m3.add(m.toBoxedRow(i));
             }
         }
         new twoDimensionalScatterPlot().threeListDataSources(m1, m2, m3);
     }
 
-    private void splitIntoFourClustersAndGraph(Double[][] m, int[] labels) {
+    private void splitIntoFourClustersAndGraph(FeatureMatrix m, int[] labels) {
         List<Double[]> m1 = new ArrayList<>();
         List<Double[]> m2 = new ArrayList<>();
         List<Double[]> m3 = new ArrayList<>();
         List<Double[]> m4 = new ArrayList<>();
         for (int i = 0; i < labels.length; i++) {
             if (labels[i] == 0) {
-                m1.add(m[i]);
+                m1.add(m.toBoxedRow(i));
             } else if (labels[i] == 1) {
-                m2.add(m[i]);
+                m2.add(m.toBoxedRow(i));
             } else if (labels[i] == 2) {
-                m3.add(m[i]);
+                m3.add(m.toBoxedRow(i));
             } else if (labels[i] == 3) {
-                m4.add(m[i]);
+                m4.add(m.toBoxedRow(i));
             }
         }
         new twoDimensionalScatterPlot().fourListDataSources(m1, m2, m3, m4);
     }
 
-    private void splitIntoFiveClustersAndGraph(Double[][] m, int[] labels) {
+    private void splitIntoFiveClustersAndGraph(FeatureMatrix m, int[] labels) {
         List<Double[]> m1 = new ArrayList<>();
         List<Double[]> m2 = new ArrayList<>();
         List<Double[]> m3 = new ArrayList<>();
@@ -461,26 +830,26 @@ public class ExoplanetAnalyzer {
         List<Double[]> m5 = new ArrayList<>();
         for (int i = 0; i < labels.length; i++) {
             if (labels[i] == 0) {
-                m1.add(m[i]);
+                m1.add(m.toBoxedRow(i));
             } else if (labels[i] == 1) {
-                m2.add(m[i]);
+                m2.add(m.toBoxedRow(i));
             } else if (labels[i] == 2) {
-                m3.add(m[i]);
+                m3.add(m.toBoxedRow(i));
             } else if (labels[i] == 3) {
-                m4.add(m[i]);
+                m4.add(m.toBoxedRow(i));
             } else if (labels[i] == 4) {
-                m5.add(m[i]);
+                m5.add(m.toBoxedRow(i));
             }
         }
         new twoDimensionalScatterPlot().fiveListDataSources(m1, m2, m3, m4, m5);
     }
 
     public Double[][] getStandardizedMassRadiusData() {
-        return npcStandardizedMassRadiusMatrix;
+        return npcStandardizedMassRadiusMatrix.toBoxedArray();
     }
 
     public Double[][] getMassRadiusData() {
-        return npcMassRadiusMatrix;
+        return npcMassRadiusMatrix.toBoxedArray();
     }
 
     private int numDiscoveredByKepler(List<String[]> pl) {
@@ -539,76 +908,11 @@ public class ExoplanetAnalyzer {
     }
 
     /**
-     * Standardize a 2 dimensional matrix of doubles using the formula
-     * <p> (standardized feature) = ((feature) - (mean)) / (standard deviation)
-     * This only works on a matrix with two columns, in other words it must be
-     * a matrix that adheres to the following structure:
-     * <p><code> { {2,3}, {4,5}, {6,7} } </code>
-     * <p> It might be worth generalizing this method to work on 2 dimensional
-     * matrices of arbitrary size
-     * <p> In addition, it should be possible to standardize new values to a
-     * previous set of data. Look at the second-to-last for-loop, if the mean
-     * and stdev of the old data is known, new data can be fed in and standardized
-     * to the same level.</p>
-     * @param m 2D matrix of Doubles
-     * @return the standardized matrix
-     */
-    private Double[][] standardizeMatrix(Double[][] m) {
-        Double mean0 = 0.0;
-        Double mean1 = 0.0;
-        for (Double[] point : m) {
-            mean0 += point[0];
-            mean1 += point[1];
-        }
-        mean0 = mean0 / m.length;
-        mean1 = mean1 / m.length;
-
-        Double[] diffSquared0 = new Double[m.length];
-        Double[] diffSquared1 = new Double[m.length];
-        for (int i = 0; i < m.length; i++) {
-            diffSquared0[i] = (m[i][0]-mean0) * (m[i][0]-mean0);
-            diffSquared1[i] = (m[i][1]-mean1) * (m[i][1]-mean1);
-        }
-
-        Double diffSquaredMean0 = 0.0;
-        Double diffSquaredMean1 = 0.0;
-        for (int i = 0; i < diffSquared0.length; i++) {
-            diffSquaredMean0 += diffSquared0[i];
-            diffSquaredMean1 += diffSquared1[i];
-        }
-        diffSquaredMean0 = diffSquaredMean0 / diffSquared0.length;
-        diffSquaredMean1 = diffSquaredMean1 / diffSquared1.length;
-        Double stdev0 = Math.sqrt(diffSquaredMean0);
-        Double stdev1 = Math.sqrt(diffSquaredMean1);
-
-        Double[] standardized0 = new Double[m.length];
-        Double[] standardized1 = new Double[m.length];
-        for (int i = 0; i < m.length; i++) {
-            standardized0[i] = (m[i][0] - mean0) / stdev0;
-            standardized1[i] = (m[i][1] - mean1) / stdev1;
-        }
-        Double[][] st = new Double[standardized0.length][];
-        for (int i = 0; i < st.length; i++) {
-            st[i] = new Double[2];
-            st[i][0] = standardized0[i];
-            st[i][1] = standardized1[i];
-        }
-        return st;
-    }
-
-    private Double[][] generateMassRadiusMatrix(List<String[]> l) {
-        Double[][] matrix = new Double[l.size()][];
-        int i = 0;
-        for (String[] planet : l) {
-            Double[] s = {Double.parseDouble(planet[10]), Double.parseDouble(planet[12])};
-            matrix[i++] = s;
-        }
-        return matrix;
-    }
-
-    /**
-     * Reads in a list of planets as strings and pulls out the stellar parameters of interest.
-     * <p> These are the indices of the parameters of interest from the list:</p>
+     * Reads the NASA planet catalog in a single pass, parsing only the columns that are used, and
+     * keeps the planets that have a mass(10), radius(12) and orbital period(6).
+     * <p> Fills npcMassRadiusMatrix with the mass and radius of those planets and
+     * npcStellarParameterMatrix with the stellar parameters of interest of the stars they orbit.
+     * These are the indices of the stellar parameters in the catalog:</p>
      * <code><ul>
      *     <li>22 - st_dist: Distance [pc]</li>
      *     <li>26 - st_teff: Effective Temperature [K]</li>
@@ -618,140 +922,148 @@ public class ExoplanetAnalyzer {
      *     <li>91 - st_lum: Stellar Luminosity</li>
      *     <li>93 - st_metfe: Stellar Metallicity [dex]</li>
      * </ul></code>
-     * <p>Blank values are replaced with Double.MIN_VALUE</p>
-     * @param l
-     * @return
+     * <p>Blank stellar parameters are recorded as missing in npcStellarParameterMatrix</p>
      */
-    private Double[][] generateNpcStellarParameterMatrix(List<String[]> l) {
-        int i = 0;
-        Double[][] matrix = new Double[l.size()][];
-
-        for (String[] planet : l) {
-            matrix[i] = new Double[7];
-            matrix[i][0] = (!planet[22].equals("")) ? Double.parseDouble(planet[22]) : Double.MIN_VALUE;
-            matrix[i][1] = (!planet[26].equals("")) ? Double.parseDouble(planet[26]) : Double.MIN_VALUE;
-            matrix[i][2] = (!planet[27].equals("")) ? Double.parseDouble(planet[27]) : Double.MIN_VALUE;
-            matrix[i][3] = (!planet[28].equals("")) ? Double.parseDouble(planet[28]) : Double.MIN_VALUE;
-            matrix[i][4] = (!planet[90].equals("")) ? Double.parseDouble(planet[90]) : Double.MIN_VALUE;
-            matrix[i][5] = (!planet[91].equals("")) ? Double.parseDouble(planet[91]) : Double.MIN_VALUE;
-            matrix[i][6] = (!planet[93].equals("")) ? Double.parseDouble(planet[93]) : Double.MIN_VALUE;
-            i++;
+    private void readNpcPlanetsWithMassAndRadius() {
+        final int[] columns = {10, 12, 6, 22, 26, 27, 28, 90, 91, 93};
+        final long massRadiusAndPeriod = 0b111L;
+        final FeatureMatrix.Builder massRadius = new FeatureMatrix.Builder(2, MASS_RADIUS_COLUMNS);
+        final FeatureMatrix.Builder stellarParameters = new FeatureMatrix.Builder(7, STELLAR_PARAMETER_COLUMNS);
+        final double[] planet = new double[2];
+        final double[] star = new double[7];
+        try {
+            new ProjectedTsvReader(columns).read(NASA_CLEAN, new ProjectedTsvReader.RowHandler() {
+                @Override
+                public void row(double[] values, long present) {
+                    if ((present & massRadiusAndPeriod) != massRadiusAndPeriod) {
+                        return;
+                    }
+                    planet[0] = values[0];
+                    planet[1] = values[1];
+                    massRadius.addRow(planet);
+                    System.arraycopy(values, 3, star, 0, star.length);
+                    stellarParameters.addRow(star, present >>> 3);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return matrix;
+        npcMassRadiusMatrix = massRadius.build();
+        npcStellarParameterMatrix = stellarParameters.build();
     }
 
 
+    /**
+     * Read every TIC band file in data/tic, covering the whole sky from 90S to 90N, and write
+     * the stars that have all seven parameters of interest to data/combined_tic.csv.
+     * <p> The bands are filtered one after another, or by the number of workers given to
+     * {@link #setFilterWorkers(int)}.</p>
+     */
     public void filterAndCombineStarData() {
-        List<File> tics = new ArrayList<>();
-        tics.add(new File("data/tic/90S_88S.csv"));
-        tics.add(new File("data/tic/88S_86S.csv"));
-        tics.add(new File("data/tic/86S_84S.csv"));
-        tics.add(new File("data/tic/84S_82S.csv"));
-        tics.add(new File("data/tic/82S_80S.csv"));
-        tics.add(new File("data/tic/80S_78S.csv"));
-        tics.add(new File("data/tic/78S_76S.csv"));
-        tics.add(new File("data/tic/76S_74S.csv"));
-        tics.add(new File("data/tic/74S_72S.csv"));
-        tics.add(new File("data/tic/72S_70S.csv"));
-        for (File file : tics) {
-            filterStarData(file);
-            System.out.println("Finished reading, cleaning, and writing file: " + file.toString());
+        if (filterWorkers > 0) {
+            filterAndCombineStarDataInParallel("data/tic", filterWorkers);
+        } else {
+            filterAndCombineStarData("data/tic");
         }
     }
 
     /**
-     * <p> These are the indices of the parameters of interest from the list:</p>
-     * <code><ul>
-     *     <li>64 - Teff: Effective Temperature (K)</li>
-     *     <li>66 - logg: log of the Surface Gravity (cgs)</li>
-     *     <li>68 - M/H: Metallicity (dex)</li>
-     *     <li>70 - Rad: Radius (solar)</li>
-     *     <li>72 - Mass: Mass (solar)</li>
-     *     <li>77 - Lum: Stellar Luminosity (solar)</li>
-     *     <li>79 - d: Distance (pc)</li>
-     * </ul></code>
-     * @param file
+     * Read the selected TIC band files and write the stars that have all seven parameters of
+     * interest to data/combined_tic.csv.
+     * @param directoryOrGlob a directory of band files, or a glob such as data/tic/*S_*S.csv
      */
-    private void filterStarData(File file) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter("data/combined_tic.csv", true))) {
-            try (Scanner scanner = new Scanner(file)) {
-                int numStars = 0;
-                while (scanner.hasNextLine()) {
-                    numStars++;
-                    String[] line = scanner.nextLine().split(",");
-                    Double[] star = new Double[7];
-                    if (!line[64].equals("") && !line[66].equals("") && !line[68].equals("") && !line[70].equals("") &&
-                            !line[72].equals("") && !line[77].equals("") && !line[79].equals("")) {
-                        star[0] = Double.parseDouble(line[79]);
-                        star[1] = Double.parseDouble(line[64]);
-                        star[2] = Double.parseDouble(line[72]);
-                        star[3] = Double.parseDouble(line[70]);
-                        star[4] = Double.parseDouble(line[66]);
-                        star[5] = Double.parseDouble(line[77]);
-                        star[6] = Double.parseDouble(line[68]);
-                        bw.write(star[0] + "," +
-                                star[1] + "," +
-                                star[2] + "," +
-                                star[3] + "," +
-                                star[4] + "," +
-                                star[5] + "," +
-                                star[6] + "\n");
-                    }
-                }
-                System.out.println("Num stars in file: " + numStars);
-            } catch (FileNotFoundException e) {
+    public void filterAndCombineStarData(String directoryOrGlob) {
+        List<File> tics = TicBandFilter.findBandFiles(directoryOrGlob);
+        if (!new TicBandFilter().filter(tics, COMBINED_TIC)) {
+            throw new IllegalStateException("Could not filter the TIC bands into " + COMBINED_TIC);
+        }
+        convertCombinedTic();
+    }
+
+    /**
+     * Same as {@link #filterAndCombineStarData(String)}, but filters several band files at once.
+     * Each band is retried up to three times if it fails.
+     * @param directoryOrGlob a directory of band files, or a glob such as data/tic/*S_*S.csv
+     * @param workers the maximum number of band files filtered at the same time
+     */
+    public void filterAndCombineStarDataInParallel(String directoryOrGlob, int workers) {
+        List<File> tics = TicBandFilter.findBandFiles(directoryOrGlob);
+        if (!new TicBandFilter().filterInParallel(tics, COMBINED_TIC, workers, 3)) {
+            throw new IllegalStateException("Could not filter the TIC bands into " + COMBINED_TIC);
+        }
+        convertCombinedTic();
+    }
+
+    private void convertCombinedTic() {
+        if (!StarCatalogWriter.convertCsv(COMBINED_TIC, COMBINED_TIC_CATALOG, STELLAR_PARAMETER_COLUMNS)) {
+            throw new IllegalStateException("Could not convert " + COMBINED_TIC + " to " + COMBINED_TIC_CATALOG);
+        }
+    }
+
+    /**
+     * Open the stellar parameters of the filtered TIC stars. The binary catalog written by
+     * {@link #filterAndCombineStarData()} is memory-mapped if it is at least as new as
+     * combined_tic.csv; otherwise the CSV file is parsed onto the heap.
+     * @return
+     */
+    private RowSource openTicStellarParameters() {
+        if (COMBINED_TIC_CATALOG.isFile() && COMBINED_TIC_CATALOG.lastModified() >= COMBINED_TIC.lastModified()) {
+            try {
+                StarCatalog catalog = StarCatalog.open(COMBINED_TIC_CATALOG);
+                System.out.println("Stars in the reduced catalog: " + catalog.rows());
+                return catalog;
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return generateTicStellarParameterMatrix(COMBINED_TIC);
+    }
+
+    /**
+     * @return the binary catalog if it is at least as new as combined_tic.csv, otherwise the CSV
+     * file
+     */
+    static File ticStellarParameterSource() {
+        if (COMBINED_TIC_CATALOG.isFile() && COMBINED_TIC_CATALOG.lastModified() >= COMBINED_TIC.lastModified()) {
+            return COMBINED_TIC_CATALOG;
+        }
+        return COMBINED_TIC;
+    }
+
+    /**
+     * Same as {@link #openTicStellarParameters()}, but reads the stars a block at a time.
+     * @param source the binary catalog, or any other file as a CSV file
+     * @param firstRow the star to start at
+     */
+    RowBlockReader openTicStellarParameterBlocks(File source, long firstRow) throws IOException {
+        if (source.equals(COMBINED_TIC_CATALOG)) {
+            return RowBlockReader.fromCatalog(source, firstRow, blockRows, blockQueueLength);
+        }
+        return RowBlockReader.fromCsv(source, firstRow, blockRows, blockQueueLength, STELLAR_PARAMETER_COLUMNS);
     }
 
     /**
      * @param file
      * @return
      */
-    private List<Double[]> generateTicStellarParameterMatrix(File file) {
-        List<Double[]> stars = new ArrayList<>();
+    private FeatureMatrix generateTicStellarParameterMatrix(File file) {
+        FeatureMatrix.Builder stars = new FeatureMatrix.Builder(7, STELLAR_PARAMETER_COLUMNS);
+        double[] star = new double[7];
         int numberOfStars = 0;
         try (Scanner scanner = new Scanner(file)) {
             while (scanner.hasNextLine()) {
                 numberOfStars++;
                 String[] line = scanner.nextLine().split(",");
-                Double[] star = new Double[7];
-                star[0] = Double.parseDouble(line[0]);
-                star[1] = Double.parseDouble(line[1]);
-                star[2] = Double.parseDouble(line[2]);
-                star[3] = Double.parseDouble(line[3]);
-                star[4] = Double.parseDouble(line[4]);
-                star[5] = Double.parseDouble(line[5]);
-                star[6] = Double.parseDouble(line[6]);
-                stars.add(star);
+                for (int i = 0; i < star.length; i++) {
+                    star[i] = Double.parseDouble(line[i]);
+                }
+                stars.addRow(star);
             }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
         System.out.println("Stars in the reduced file: " + numberOfStars);
-        return stars;
-    }
-
-    /**
-     * Creates a new list of planets that have non-empty values for
-     * mass(10), radius(12)
-     * @param l the old list
-     * @return the new list
-     */
-    private List<String[]> filterPlanetsWithoutMassAndRadius(List<String[]> l) {
-        List<String[]> newList = new ArrayList<>();
-        for (String[] planet : l) {
-            if (!planet[10].equals("") &&                   // mass (in units of Jupiter mass)
-                    !planet[12].equals("") &&               // radius (in units of Jupiter radius)
-                    !planet[6].equals(""))                  // orbital period (in units of days)
-            {
-                newList.add(planet);
-            }
-        }
-        return newList;
+        return stars.build();
     }
 
     /**
@@ -799,45 +1111,42 @@ public class ExoplanetAnalyzer {
 
 
     private void printStandarizedMRMatrix() {
-        for (Double[] p : npcStandardizedMassRadiusMatrix) {
-            System.out.printf("%10.3f %10.3f\n", p[0], p[1]);
+        for (int p = 0; p < npcStandardizedMassRadiusMatrix.rows(); p++) {
+            System.out.printf("%10.3f %10.3f\n", npcStandardizedMassRadiusMatrix.get(p, 0), npcStandardizedMassRadiusMatrix.get(p, 1));
         }
     }
 
     /**
-     * This runs KMeans on the planet data until an acceptable cluster is found.
-     * <p>This is necessary because KMeans will occasionally choose initial centroids that result in poor
-     * performance of the algorithm.
-     * <p> Repeated testing of this data has found that two clusters of size 244 and 371 are found in the vast majority of cases,
-     * with occasional runs finding a cluster that contains nearly all of the data and another that is made up of outliers.
-     * <p> This step prevents that second outcome from occurring.
+     * This runs KMeans on the planet data with several k-means++ restarts and keeps the best one.
+     * <p>A single run will occasionally choose initial centroids that lead to a cluster that contains
+     * nearly all of the data and another that is made up of outliers. That split has a much higher
+     * inertia than the usual split into clusters of 244 and 371 planets, so keeping the restart with
+     * the lowest inertia prevents it without relying on the expected cluster sizes.
+     * <p> The seed is fixed, so every run of the analysis produces the same clusters.
      * @param data
      * @return
      */
-    private KMeans runKMeans(Double[][] data) {
-        int validClusterSize = 244;
+    private KMeans runKMeans(FeatureMatrix data) {
         KMeans km = new KMeans(data);
-
-        boolean correctClusters = false;
-        while (!correctClusters) {
-            km.cluster(2, 1000);
-            int[] clusterCount = km.getClusterCount();
-            correctClusters = (clusterCount[0] == validClusterSize || clusterCount[1] == validClusterSize);
-        }
+        km.setSeed(KMEANS_SEED);
+        km.setRestarts(KMEANS_RESTARTS);
+        km.setParallelism(Runtime.getRuntime().availableProcessors());
+        km.cluster(2, 1000);
 //        km.printResults();
         return km;
     }
 
-    private void tryMultipleDbscanParameters(Double[][] data) {
+    private void tryMultipleDbscanParameters(FeatureMatrix data) {
         System.out.println("DBSCAN");
-        for (int clusterSize = 2; clusterSize <= 6; clusterSize++) {
-            for (double minDistance = 0.1; minDistance < 1; minDistance += .1) {
-                dbscanWith(data, clusterSize, minDistance);
-            }
+        int[] clusterSizes = {2, 3, 4, 5, 6};
+        double[] minDistances = new double[9];
+        for (int i = 0; i < minDistances.length; i++) {
+            minDistances[i] = (i + 1) / 10.0;
         }
+        Dbscan.printSweep(Dbscan.sweep(data, clusterSizes, minDistances));
     }
 
-    private void dbscanWith(Double[][] data, int clusterSize, double minDistance) {
+    private void dbscanWith(FeatureMatrix data, int clusterSize, double minDistance) {
         Dbscan db = new Dbscan(data, clusterSize, minDistance);
         List<List<Double[]>> clusters = db.cluster();
         System.out.printf("\n\nClustering with minClusterSize = %d and eps = %.2f", clusterSize, minDistance);
@@ -847,6 +1156,50 @@ public class ExoplanetAnalyzer {
     }
 
 
+    FeatureMatrix getMassRadiusMatrix() {
+        return npcMassRadiusMatrix;
+    }
+
+    void setMassRadiusMatrix(FeatureMatrix matrix) {
+        npcMassRadiusMatrix = matrix;
+    }
+
+    FeatureMatrix getStandardizedMassRadiusMatrix() {
+        return npcStandardizedMassRadiusMatrix;
+    }
+
+    void setStandardizedMassRadiusMatrix(FeatureMatrix matrix) {
+        npcStandardizedMassRadiusMatrix = matrix;
+    }
+
+    Standardizer getMassRadiusScaler() {
+        return massRadiusScaler;
+    }
+
+    void setMassRadiusScaler(Standardizer scaler) {
+        massRadiusScaler = scaler;
+    }
+
+    FeatureMatrix getPlanetStellarParameters() {
+        return npcStellarParameterMatrix;
+    }
+
+    void setPlanetStellarParameters(FeatureMatrix matrix) {
+        npcStellarParameterMatrix = matrix;
+    }
+
+    RowSource getStarParameters() {
+        return combinedStellarParameterMatrix;
+    }
+
+    void setStarParameters(RowSource stars) {
+        combinedStellarParameterMatrix = stars;
+    }
+
+    ColumnStatistics getEarthLikeStarStatistics() {
+        return earthLikeStarStatistics;
+    }
+
     public void setEarthLikeClusterId(int i) {
         earthLikeClusterId = i;
     }
@@ -855,4 +1208,102 @@ public class ExoplanetAnalyzer {
         jupiterLikeClusterId = i;
     }
 
+    /**
+     * When set, the TIC classification is also run with a full scan of the training set
+     * and the number of stars labelled differently is printed.
+     * @param verify
+     */
+    public void setVerifyIndexedClassification(boolean verify) {
+        verifyIndexedClassification = verify;
+    }
+
+    /**
+     * When set, KNN compares the stellar parameters after standardizing them with the mean and
+     * standard deviation of the training planets' hosts, so that distance in light years does not
+     * outweigh the other parameters. Off by default, which keeps the published predictions.
+     * @param scale
+     */
+    public void setScaleStellarParameters(boolean scale) {
+        scaleStellarParameters = scale;
+    }
+
+    /**
+     * When set, the TIC stars are classified a tile at a time against every training planet rather
+     * than one at a time with a k-d tree. The labels are the same either way.
+     * @param tiles
+     */
+    public void setClassifyInTiles(boolean tiles) {
+        classifyInTiles = tiles;
+    }
+
+    /**
+     * Set how many stars {@link #classifyStarsInBlocks()} reads and classifies at a time.
+     * Defaults to 65536.
+     * @param rows
+     */
+    public void setBlockRows(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("A block must hold at least one star");
+        }
+        blockRows = rows;
+    }
+
+    /**
+     * Set how many blocks {@link #classifyStarsInBlocks()} reads ahead of the classification.
+     * Defaults to 2. More blocks smooth out uneven reads at the cost of memory.
+     * @param blocks
+     */
+    public void setBlockQueueLength(int blocks) {
+        if (blocks < 1) {
+            throw new IllegalArgumentException("The queue must hold at least one block");
+        }
+        blockQueueLength = blocks;
+    }
+
+    /**
+     * Set how often {@link #classifyStarsInBlocks()} saves a checkpoint, in seconds. Defaults to
+     * 60. At 0 a checkpoint is saved after every block.
+     * @param seconds
+     */
+    public void setCheckpointInterval(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("The checkpoint interval cannot be negative");
+        }
+        checkpointIntervalSeconds = seconds;
+    }
+
+    /**
+     * When set, {@link #classifyStarsInBlocks()} continues from its last checkpoint, if there is
+     * one for the same classifier, catalog and block size. Otherwise it starts over.
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Set how many band files {@link #filterAndCombineStarData()} filters at the same time, with
+     * {@link #filterAndCombineStarDataInParallel(String, int)}. Unless this is called the bands
+     * are filtered one after another.
+     * @param workers
+     */
+    public void setFilterWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
+        filterWorkers = workers;
+    }
+
+    /**
+     * Set how many threads are used to classify the TIC stars. Defaults to the number of
+     * available processors. A value of 1 classifies on the calling thread.
+     * @param threads
+     */
+    public void setClassificationParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        classificationParallelism = threads;
+    }
+
 }
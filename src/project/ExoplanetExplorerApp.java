@@ -1,28 +1,177 @@
 package edu.nyu.cs.pa.project;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import edu.nyu.cs.pa.metrics.Metrics;
+
+/**
+ * Runs the analysis from the command line.
+ * <p> Usage: <code>ExoplanetExplorerApp [--list] [--config=file] [--stages=a,b,...] [--cache=dir | --no-cache] [--scale-stars] [--tiled-knn] [--filter-workers=n] [--block-rows=n] [--block-queue=n] [--checkpoint-interval=s] [--resume] [--metrics=file] [stage ...]</code></p>
+ * <ul>
+ *     <li>Stages can be named as arguments, as a comma separated --stages list, or with a
+ *     <code>stages</code> property in a config file. The stages they depend on run too.</li>
+ *     <li>With no stages selected the full analysis runs: the planets are clustered, the TIC stars
+ *     are classified and the classifier is evaluated.</li>
+ *     <li>Outputs of the expensive early stages are cached in data/cache, or the directory given
+ *     with --cache or a <code>cache</code> property, and reused while their inputs are unchanged.
+ *     --no-cache turns this off.</li>
+ *     <li>--scale-stars standardizes the stellar parameters before KNN compares them.</li>
+ *     <li>--tiled-knn classifies the TIC stars a tile at a time against every training planet
+ *     instead of with a k-d tree. The predictions are the same.</li>
+ *     <li>--filter-workers, or a <code>filter-workers</code> property in a config file, makes
+ *     <code>filter-tic</code> filter that many band files at the same time. Each band is staged
+ *     in its own file and retried if it fails, and a rerun reuses the bands that were staged.
+ *     The combined file is the same as when the bands are filtered one after another.</li>
+ *     <li>--block-rows and --block-queue set how many stars <code>classify-stream</code> reads
+ *     at a time and how many blocks it reads ahead, as do <code>block-rows</code> and
+ *     <code>block-queue</code> properties in a config file. It holds about
+ *     (queue + 2) * rows * 56 bytes of stars, whatever the size of the catalog.</li>
+ *     <li><code>classify-stream</code> saves a checkpoint every 60 seconds, or as often as
+ *     --checkpoint-interval or a <code>checkpoint-interval</code> property says. --resume, or a
+ *     <code>resume=true</code> property, continues from the last checkpoint of a run that was
+ *     stopped, and gives the same labels and summary as a run that was not.</li>
+ *     <li>--metrics writes the run's metrics, such as rows parsed per second, KNN queries per
+ *     second, KMeans convergence and the time and heap of each stage, to a file when the run
+ *     finishes. A file ending in .json gets JSON, anything else Prometheus text. A
+ *     <code>metrics</code> property in a config file does the same.</li>
+ *     <li>--list prints the available stages.</li>
+ * </ul>
+ * <p> For example, <code>filter-tic</code> rebuilds the reduced star catalog from the TIC band
+ * files, <code>dbscan</code> only reads the planets before sweeping DBSCAN parameters, and
+ * <code>classify-bands</code> classifies only the stars of band files added to data/tic since it
+ * last ran. <code>classify-stream</code> classifies the whole reduced catalog like
+ * <code>classify-stars</code>, but a block at a time, and writes every star's label to
+ * data/tic_labels.txt.</p>
+ */
 public class ExoplanetExplorerApp {
 
-    private void run() {
-        ExoplanetAnalyzer necAnalyzer = new ExoplanetAnalyzer();
-        necAnalyzer.prepData();
-        necAnalyzer.clusterData();
-//        necAnalyzer.graphClusters();
-        necAnalyzer.classifyAndExamineSolarParameters();
-        necAnalyzer.clusterAndClassifyPortionOfDataForTesting();
+    private static final File DEFAULT_CACHE = new File("data/cache");
+
+    private void run(ExoplanetAnalyzer necAnalyzer, List<String> stageNames, File cacheDirectory, File metricsFile) {
+        PipelineRunner runner = new PipelineRunner(AnalysisStages.create(necAnalyzer));
+        if (cacheDirectory != null) {
+            runner.setCache(new ArtifactCache(cacheDirectory));
+        }
+        List<String> selected = stageNames.isEmpty() ? AnalysisStages.DEFAULT_STAGES : stageNames;
+        try (PipelineContext context = new PipelineContext()) {
+            try {
+                runner.resolve(selected, context);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage() + ". The available stages are:");
+                listStages();
+                return;
+            }
+            PipelineRunner.printReport(runner.run(selected, context));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (metricsFile != null) {
+            try {
+                Metrics.global().save(metricsFile);
+                System.out.println("Metrics written to " + metricsFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("\nFinished");
     }
 
-    /**
-     * Read in data from multiple TIC files. Combine and reduce data so that
-     * only stars with all seven parameters of interest are retained.
-     */
-    private void generateFilteredStarData() {
-        ExoplanetAnalyzer necAnalyzer = new ExoplanetAnalyzer();
-        necAnalyzer.filterAndCombineStarData();
+    private void listStages() {
+        for (PipelineStage stage : AnalysisStages.create(new ExoplanetAnalyzer())) {
+            System.out.printf("%-16s %s\n", stage.name(), stage.description());
+        }
     }
 
     public static void main(String[] args) {
-//        new ExoplanetExplorerApp().generateFilteredStarData();
-        new ExoplanetExplorerApp().run();
+        ExoplanetAnalyzer analyzer = new ExoplanetAnalyzer();
+        List<String> stageNames = new ArrayList<>();
+        File cacheDirectory = DEFAULT_CACHE;
+        File metricsFile = null;
+        for (String arg : args) {
+            try {
+                if (arg.equals("--list")) {
+                    new ExoplanetExplorerApp().listStages();
+                    return;
+                } else if (arg.startsWith("--stages=")) {
+                    stageNames.addAll(split(arg.substring("--stages=".length())));
+                } else if (arg.startsWith("--config=")) {
+                    Properties config = new Properties();
+                    try (InputStream in = new FileInputStream(arg.substring("--config=".length()))) {
+                        config.load(in);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    stageNames.addAll(split(config.getProperty("stages", "")));
+                    if (config.getProperty("cache") != null) {
+                        cacheDirectory = new File(config.getProperty("cache"));
+                    }
+                    if (config.getProperty("metrics") != null) {
+                        metricsFile = new File(config.getProperty("metrics"));
+                    }
+                    if (config.getProperty("filter-workers") != null) {
+                        analyzer.setFilterWorkers(Integer.parseInt(config.getProperty("filter-workers").trim()));
+                    }
+                    if (config.getProperty("block-rows") != null) {
+                        analyzer.setBlockRows(Integer.parseInt(config.getProperty("block-rows").trim()));
+                    }
+                    if (config.getProperty("block-queue") != null) {
+                        analyzer.setBlockQueueLength(Integer.parseInt(config.getProperty("block-queue").trim()));
+                    }
+                    if (config.getProperty("checkpoint-interval") != null) {
+                        analyzer.setCheckpointInterval(Integer.parseInt(config.getProperty("checkpoint-interval").trim()));
+                    }
+                    if (config.getProperty("resume") != null) {
+                        analyzer.setResume(Boolean.parseBoolean(config.getProperty("resume").trim()));
+                    }
+                } else if (arg.startsWith("--cache=")) {
+                    cacheDirectory = new File(arg.substring("--cache=".length()));
+                } else if (arg.startsWith("--metrics=")) {
+                    metricsFile = new File(arg.substring("--metrics=".length()));
+                } else if (arg.equals("--no-cache")) {
+                    cacheDirectory = null;
+                } else if (arg.equals("--scale-stars")) {
+                    analyzer.setScaleStellarParameters(true);
+                } else if (arg.equals("--tiled-knn")) {
+                    analyzer.setClassifyInTiles(true);
+                } else if (arg.startsWith("--filter-workers=")) {
+                    analyzer.setFilterWorkers(Integer.parseInt(arg.substring("--filter-workers=".length())));
+                } else if (arg.startsWith("--block-rows=")) {
+                    analyzer.setBlockRows(Integer.parseInt(arg.substring("--block-rows=".length())));
+                } else if (arg.startsWith("--block-queue=")) {
+                    analyzer.setBlockQueueLength(Integer.parseInt(arg.substring("--block-queue=".length())));
+                } else if (arg.startsWith("--checkpoint-interval=")) {
+                    analyzer.setCheckpointInterval(Integer.parseInt(arg.substring("--checkpoint-interval=".length())));
+                } else if (arg.equals("--resume")) {
+                    analyzer.setResume(true);
+                } else if (arg.startsWith("--")) {
+                    System.out.println("Unknown option " + arg);
+                    return;
+                } else {
+                    stageNames.add(arg);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid option " + arg + ": " + e.getMessage());
+                return;
+            }
+        }
+        new ExoplanetExplorerApp().run(analyzer, stageNames, cacheDirectory, metricsFile);
+    }
+
+    private static List<String> split(String list) {
+        List<String> names = new ArrayList<>();
+        for (String name : Arrays.asList(list.split(","))) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
     }
 }
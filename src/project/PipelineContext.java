@@ -0,0 +1,127 @@
+package edu.nyu.cs.pa.project;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The artifacts passed between {@link PipelineStage pipeline stages}.
+ * <p> Each artifact is stored under a typed {@link Key}, so a stage reads exactly the type that
+ * another stage wrote. Artifacts can also be put in before a run, which lets the runner skip the
+ * stages that would have produced them.</p>
+ * <p> Alongside each artifact the context can record where it came from, as a hash of the stage,
+ * parameters and inputs that produced it. The {@link ArtifactCache} uses this to recognise
+ * results it has already stored.</p>
+ * <p> The context owns its artifacts: closing it closes every artifact that holds a file or
+ * memory, such as a memory-mapped {@link edu.nyu.cs.pa.data.StarCatalog}, whichever stage or
+ * cache put it there.</p>
+ *
+ * @author ppeirce
+ */
+public class PipelineContext implements Closeable {
+    private final Map<Key<?>, Object> artifacts = new LinkedHashMap<>();
+    private final Map<Key<?>, String> provenance = new HashMap<>();
+
+    /**
+     * Names an artifact and its type. Keys are compared by identity, so each artifact should be
+     * described by a single shared constant.
+     * @param <T> the type of the artifact
+     */
+    public static final class Key<T> {
+        private final String name;
+        private final Class<T> type;
+
+        public Key(String name, Class<T> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Class<T> type() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Store an artifact whose origin is not known, so it will not be looked up in a cache.
+     */
+    public <T> void put(Key<T> key, T value) {
+        put(key, value, null);
+    }
+
+    /**
+     * @param origin a hash identifying how the artifact was produced, or null if unknown
+     */
+    public <T> void put(Key<T> key, T value, String origin) {
+        if (value == null) {
+            throw new IllegalArgumentException("No value for " + key);
+        }
+        artifacts.put(key, value);
+        if (origin == null) {
+            provenance.remove(key);
+        } else {
+            provenance.put(key, origin);
+        }
+    }
+
+    /**
+     * @return the hash identifying how the artifact was produced, or null if unknown
+     */
+    public String provenance(Key<?> key) {
+        return provenance.get(key);
+    }
+
+    /**
+     * @throws IllegalStateException if no stage has produced the artifact
+     */
+    public <T> T get(Key<T> key) {
+        Object value = artifacts.get(key);
+        if (value == null) {
+            throw new IllegalStateException("Nothing has produced " + key + " yet");
+        }
+        return key.type().cast(value);
+    }
+
+    public boolean contains(Key<?> key) {
+        return artifacts.containsKey(key);
+    }
+
+    public Set<Key<?>> keys() {
+        return Collections.unmodifiableSet(artifacts.keySet());
+    }
+
+    /**
+     * Close every artifact that is {@link Closeable}. All of them are closed even if one fails.
+     * @throws IOException the first failure
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Object artifact : artifacts.values()) {
+            if (artifact instanceof Closeable) {
+                try {
+                    ((Closeable) artifact).close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
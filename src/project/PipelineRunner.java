@@ -0,0 +1,236 @@
+package edu.nyu.cs.pa.project;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+import edu.nyu.cs.pa.metrics.Metrics;
+
+/**
+ * Runs a selection of {@link PipelineStage pipeline stages} and reports how long each took.
+ * <p> Stages are registered in the order they would run in a full analysis. When stages are
+ * selected by name, every stage that produces a missing input of a selected stage is added as
+ * well, unless the input is already in the context, and the selection runs in the registered
+ * order.</p>
+ * <p> Besides the wall time, the report shows the bytes allocated by the thread that ran the
+ * stage, where the JVM can measure it. Work a stage hands to a thread pool is not included.</p>
+ * <p> The same figures, and the heap in use when the stage finished, are recorded as
+ * {@link Metrics} labelled by stage.</p>
+ * <p> With an {@link ArtifactCache}, a {@link CacheableStage} whose outputs are already in the
+ * cache for the current inputs is not run; its outputs are loaded instead.</p>
+ *
+ * @author ppeirce
+ */
+public class PipelineRunner {
+    private final List<PipelineStage> stages;
+    private ArtifactCache cache;
+
+    /**
+     * @param stages every available stage, in the order they run
+     */
+    public PipelineRunner(List<PipelineStage> stages) {
+        Set<String> names = new HashSet<>();
+        for (PipelineStage stage : stages) {
+            if (!names.add(stage.name())) {
+                throw new IllegalArgumentException("Two stages are named " + stage.name());
+            }
+        }
+        this.stages = new ArrayList<>(stages);
+    }
+
+    /**
+     * @param cache where outputs of cacheable stages are looked up and stored, or null for none
+     */
+    public void setCache(ArtifactCache cache) {
+        this.cache = cache;
+    }
+
+    public List<PipelineStage> stages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Work out which stages have to run for the selected ones.
+     * @param names the selected stage names
+     * @param context artifacts that are already available
+     * @return the selected stages and the stages they depend on, in registered order
+     * @throws IllegalArgumentException if a name is unknown or an input has no producer
+     */
+    public List<PipelineStage> resolve(Collection<String> names, PipelineContext context) {
+        Set<PipelineStage> needed = new HashSet<>();
+        Deque<PipelineStage> pending = new ArrayDeque<>();
+        for (String name : names) {
+            PipelineStage stage = stage(name);
+            if (needed.add(stage)) {
+                pending.add(stage);
+            }
+        }
+        while (!pending.isEmpty()) {
+            PipelineStage stage = pending.poll();
+            for (PipelineContext.Key<?> input : stage.inputs()) {
+                if (context.contains(input)) {
+                    continue;
+                }
+                PipelineStage producer = producerOf(input, stage);
+                if (needed.add(producer)) {
+                    pending.add(producer);
+                }
+            }
+        }
+        List<PipelineStage> ordered = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            if (needed.contains(stage)) {
+                ordered.add(stage);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Run the selected stages and the stages they depend on.
+     * @param names the selected stage names
+     * @param context receives the artifacts of every stage that runs
+     * @return the timing of each stage that ran
+     */
+    public List<StageReport> run(Collection<String> names, PipelineContext context) {
+        List<StageReport> reports = new ArrayList<>();
+        for (PipelineStage stage : resolve(names, context)) {
+            for (PipelineContext.Key<?> input : stage.inputs()) {
+                if (!context.contains(input)) {
+                    throw new IllegalStateException("Stage " + stage.name() + " needs " + input + ", which no earlier stage produced");
+                }
+            }
+            System.out.println("\n== " + stage.name() + ": " + stage.description());
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            boolean cached = runOrLoad(stage, context);
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes();
+            long allocated = (allocatedBefore < 0 || allocatedAfter < 0) ? -1 : allocatedAfter - allocatedBefore;
+            reports.add(new StageReport(stage.name(), elapsed, allocated, cached));
+            recordMetrics(stage.name(), elapsed, allocated, cached);
+        }
+        return reports;
+    }
+
+    private static void recordMetrics(String stage, long elapsed, long allocated, boolean cached) {
+        Metrics metrics = Metrics.global();
+        metrics.gauge("stage_seconds", "Wall time of the stage", "stage", stage).set(elapsed / 1e9);
+        metrics.gauge("stage_heap_used_bytes", "Heap in use when the stage finished", "stage", stage)
+                .set(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        if (allocated >= 0) {
+            metrics.gauge("stage_allocated_bytes", "Bytes allocated by the thread that ran the stage", "stage", stage).set(allocated);
+        }
+        metrics.gauge("stage_cached", "1 if the stage's outputs were loaded from the cache", "stage", stage).set(cached ? 1 : 0);
+    }
+
+    /**
+     * @return true if the outputs were loaded from the cache instead of running the stage
+     */
+    private boolean runOrLoad(PipelineStage stage, PipelineContext context) {
+        String key = null;
+        if (cache != null && stage instanceof CacheableStage) {
+            key = cache.key((CacheableStage) stage, context);
+            if (key != null && cache.load((CacheableStage) stage, key, context)) {
+                System.out.println("Loaded from the cache");
+                return true;
+            }
+        }
+        stage.run(context);
+        if (key != null) {
+            cache.store((CacheableStage) stage, key, context);
+        }
+        return false;
+    }
+
+    public static void printReport(List<StageReport> reports) {
+        System.out.println("\nStage                      time (ms)   allocated (MB)");
+        for (StageReport report : reports) {
+            String allocated = (report.getAllocatedBytes() < 0)
+                    ? "n/a" : String.format("%.1f", report.getAllocatedBytes() / (1024.0 * 1024.0));
+            System.out.printf("%-24s %11.1f %16s%s\n", report.getStage(), report.getNanos() / 1e6, allocated,
+                    report.isCached() ? "   (cached)" : "");
+        }
+    }
+
+    private PipelineStage stage(String name) {
+        for (PipelineStage stage : stages) {
+            if (stage.name().equals(name)) {
+                return stage;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stage " + name);
+    }
+
+    /**
+     * @return the last stage registered before the consumer that produces the artifact
+     */
+    private PipelineStage producerOf(PipelineContext.Key<?> artifact, PipelineStage consumer) {
+        PipelineStage producer = null;
+        for (PipelineStage stage : stages) {
+            if (stage == consumer) {
+                break;
+            }
+            if (stage.outputs().contains(artifact)) {
+                producer = stage;
+            }
+        }
+        if (producer == null) {
+            throw new IllegalArgumentException("No stage before " + consumer.name() + " produces " + artifact);
+        }
+        return producer;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if it cannot be measured
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                return allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * How long one stage took.
+     */
+    public static class StageReport {
+        private final String stage;
+        private final long nanos;
+        private final long allocatedBytes;
+        private final boolean cached;
+
+        StageReport(String stage, long nanos, long allocatedBytes, boolean cached) {
+            this.stage = stage;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.cached = cached;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return bytes allocated by the thread that ran the stage, or -1 if unknown
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return true if the stage's outputs were loaded from the cache
+         */
+        public boolean isCached() {
+            return cached;
+        }
+    }
+}
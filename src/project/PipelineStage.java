@@ -0,0 +1,34 @@
+package edu.nyu.cs.pa.project;
+
+import java.util.List;
+
+/**
+ * One step of the analysis, such as reading the planet catalog or clustering the planets.
+ * <p> A stage declares the artifacts it reads and writes, so the {@link PipelineRunner} can work
+ * out which other stages have to run before it.</p>
+ *
+ * @author ppeirce
+ */
+public interface PipelineStage {
+    /**
+     * @return the name used to select the stage, e.g. on the command line
+     */
+    String name();
+
+    /**
+     * @return a one line description for listings
+     */
+    String description();
+
+    /**
+     * @return the artifacts that must be in the context before the stage runs
+     */
+    List<PipelineContext.Key<?>> inputs();
+
+    /**
+     * @return the artifacts the stage puts in the context
+     */
+    List<PipelineContext.Key<?>> outputs();
+
+    void run(PipelineContext context);
+}
@@ -0,0 +1,151 @@
+package edu.nyu.cs.pa.algorithms;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks every distance kernel against a plain sum of squared differences over the compared
+ * columns in ascending order.
+ * <p> The kernels promise the same result as that sum, bit for bit, so the comparisons are
+ * exact. The lengths cover the unrolled loop with and without a remainder, and the masks cover
+ * contiguous and scattered columns.</p>
+ *
+ * @author ppeirce
+ */
+public class DistancesTest {
+    private static final int COLUMNS = 13;
+    private static final int ROWS = 37;
+    private static final FeatureMask[] MASKS = {
+            FeatureMask.all(COLUMNS),
+            FeatureMask.range(2, 7),
+            FeatureMask.range(5, 6),
+            FeatureMask.of(0, 2, 3, 9, 12),
+            FeatureMask.of(11, 1),
+    };
+
+    private final Random random = new Random(42);
+    private final double[] values = randomValues(ROWS * COLUMNS);
+
+    private double[] randomValues(int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextGaussian() * Math.pow(10, random.nextInt(7) - 3);
+        }
+        return values;
+    }
+
+    private static double reference(double[] a, int aOffset, double[] b, int bOffset, FeatureMask features) {
+        double sum = 0.0;
+        for (int i = 0; i < features.size(); i++) {
+            double d = a[aOffset + features.column(i)] - b[bOffset + features.column(i)];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Test
+    public void rangeKernelMatchesReference() {
+        for (int length = 1; length <= COLUMNS; length++) {
+            FeatureMask mask = FeatureMask.range(0, length);
+            for (int a = 0; a < ROWS; a++) {
+                for (int b = 0; b < ROWS; b++) {
+                    assertEquals(reference(values, a * COLUMNS, values, b * COLUMNS, mask),
+                            Distances.squaredDistance(values, a * COLUMNS, values, b * COLUMNS, length), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangeKernelReadsAtUnalignedOffsets() {
+        for (int length = 1; length <= COLUMNS; length++) {
+            for (int offset = 0; offset + length <= values.length; offset += 7) {
+                int other = values.length - length - offset;
+                double expected = 0.0;
+                for (int i = 0; i < length; i++) {
+                    double d = values[offset + i] - values[other + i];
+                    expected += d * d;
+                }
+                assertEquals(expected, Distances.squaredDistance(values, offset, values, other, length), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void maskedKernelMatchesReference() {
+        for (FeatureMask mask : MASKS) {
+            for (int a = 0; a < ROWS; a++) {
+                for (int b = 0; b < ROWS; b++) {
+                    assertEquals(mask.toString(), reference(values, a * COLUMNS, values, b * COLUMNS, mask),
+                            Distances.squaredDistance(values, a * COLUMNS, values, b * COLUMNS, mask), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packedKernelMatchesReference() {
+        for (FeatureMask mask : MASKS) {
+            double[] packed = new double[ROWS * mask.size()];
+            for (int r = 0; r < ROWS; r++) {
+                for (int i = 0; i < mask.size(); i++) {
+                    packed[r * mask.size() + i] = values[r * COLUMNS + mask.column(i)];
+                }
+            }
+            for (int a = 0; a < ROWS; a++) {
+                for (int b = 0; b < ROWS; b++) {
+                    assertEquals(mask.toString(), reference(values, a * COLUMNS, values, b * COLUMNS, mask),
+                            Distances.squaredDistanceToPacked(values, a * COLUMNS, mask, packed, b * mask.size()), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void columnMajorKernelMatchesReference() {
+        double[] columnMajor = new double[ROWS * COLUMNS];
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLUMNS; c++) {
+                columnMajor[c * ROWS + r] = values[r * COLUMNS + c];
+            }
+        }
+        double[] out = new double[ROWS];
+        for (FeatureMask mask : MASKS) {
+            for (int q = 0; q < ROWS; q++) {
+                for (int from = 0; from < ROWS; from += 9) {
+                    int to = Math.min(ROWS, from + 16);
+                    // stale values from the previous query must not leak into this one
+                    Arrays.fill(out, Double.NaN);
+                    Distances.squaredDistances(values, q * COLUMNS, mask, columnMajor, ROWS, from, to, out);
+                    for (int r = from; r < to; r++) {
+                        assertEquals(mask.toString(), reference(values, q * COLUMNS, values, r * COLUMNS, mask),
+                                out[r - from], 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void kernelsAgreeWithEachOther() {
+        for (FeatureMask mask : MASKS) {
+            if (mask.isContiguous()) {
+                assertEquals(Distances.squaredDistance(values, 0, values, COLUMNS, mask),
+                        Distances.squaredDistance(values, mask.first(), values, COLUMNS + mask.first(), mask.size()), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void distanceToItselfIsZero() {
+        for (FeatureMask mask : MASKS) {
+            for (int r = 0; r < ROWS; r++) {
+                assertEquals(0.0, Distances.squaredDistance(values, r * COLUMNS, values, r * COLUMNS, mask), 0.0);
+            }
+        }
+    }
+}
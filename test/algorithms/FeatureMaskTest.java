@@ -0,0 +1,88 @@
+package edu.nyu.cs.pa.algorithms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks how a {@link FeatureMask} orders, validates and describes its columns.
+ *
+ * @author ppeirce
+ */
+public class FeatureMaskTest {
+
+    @Test
+    public void columnsAreSortedAscending() {
+        FeatureMask mask = FeatureMask.of(6, 2, 4);
+        assertArrayEquals(new int[]{2, 4, 6}, mask.columns);
+        assertEquals(3, mask.size());
+        assertEquals(2, mask.first());
+        assertEquals(6, mask.last());
+        assertEquals(4, mask.column(1));
+    }
+
+    @Test
+    public void rangeCoversFromInclusiveToExclusive() {
+        FeatureMask mask = FeatureMask.range(2, 7);
+        assertArrayEquals(new int[]{2, 3, 4, 5, 6}, mask.columns);
+        assertTrue(mask.isContiguous());
+        assertEquals(FeatureMask.range(0, 4), FeatureMask.all(4));
+    }
+
+    @Test
+    public void contiguityIgnoresTheOrderGiven() {
+        assertTrue(FeatureMask.of(4, 3, 5).isContiguous());
+        assertTrue(FeatureMask.of(9).isContiguous());
+        assertFalse(FeatureMask.of(1, 3).isContiguous());
+    }
+
+    @Test
+    public void containsOnlyTheGivenColumns() {
+        FeatureMask mask = FeatureMask.of(1, 5);
+        assertTrue(mask.contains(1));
+        assertTrue(mask.contains(5));
+        assertFalse(mask.contains(3));
+        assertFalse(mask.contains(0));
+    }
+
+    @Test
+    public void equalMasksHaveEqualHashCodes() {
+        assertEquals(FeatureMask.of(3, 1, 2), FeatureMask.range(1, 4));
+        assertEquals(FeatureMask.of(3, 1, 2).hashCode(), FeatureMask.range(1, 4).hashCode());
+        assertNotEquals(FeatureMask.of(1, 2), FeatureMask.of(1, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoColumns() {
+        FeatureMask.of();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyRange() {
+        FeatureMask.range(3, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeColumns() {
+        FeatureMask.of(-1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateColumns() {
+        FeatureMask.of(2, 4, 2);
+    }
+
+    @Test
+    public void checkAcceptsRowsWithEveryColumn() {
+        FeatureMask.range(2, 7).check(7);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkRejectsRowsMissingAColumn() {
+        FeatureMask.range(2, 7).check(6);
+    }
+}
@@ -0,0 +1,91 @@
+package edu.nyu.cs.pa.algorithms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * Checks that Hamerly's and Elkan's algorithms give exactly the clusters Lloyd's does.
+ * <p> Most rows are repeated, and many lie exactly as far from two centroids. Those ties must
+ * go to the lower centroid index with every strategy, so labels, centroids and inertia are
+ * compared exactly.</p>
+ *
+ * @author ppeirce
+ */
+public class KMeansTest {
+    private static final KMeans.Strategy[] BOUNDED = {KMeans.Strategy.HAMERLY, KMeans.Strategy.ELKAN};
+
+    private static KMeans cluster(FeatureMatrix rows, KMeans.Strategy strategy, int k, long seed) {
+        KMeans kMeans = new KMeans(rows);
+        kMeans.setStrategy(strategy);
+        kMeans.setSeed(seed);
+        kMeans.cluster(k, 100);
+        return kMeans;
+    }
+
+    /**
+     * Many small data sets of integers from a narrow range, so most rows are repeated and a row
+     * often lies exactly half way between two centroids.
+     */
+    @Test
+    public void boundedStrategiesMatchLloyd() {
+        for (long seed = 0; seed < 3000; seed++) {
+            Random random = new Random(seed);
+            int rows = 6 + random.nextInt(30);
+            int columns = 1 + random.nextInt(3);
+            int range = 2 + random.nextInt(6);
+            int k = 2 + random.nextInt(Math.min(5, rows - 1));
+            double[] values = new double[rows * columns];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(range);
+            }
+            FeatureMatrix data = new FeatureMatrix(values, rows, columns);
+
+            KMeans lloyd = cluster(data, KMeans.Strategy.LLOYD, k, seed);
+            for (KMeans.Strategy strategy : BOUNDED) {
+                KMeans bounded = cluster(data, strategy, k, seed);
+                String what = strategy + " seed=" + seed;
+                assertArrayEquals(what, lloyd.getLabelArray(), bounded.getLabelArray());
+                for (int c = 0; c < k; c++) {
+                    assertArrayEquals(what, lloyd.getCentroids()[c], bounded.getCentroids()[c], 0.0);
+                }
+                assertEquals(what, lloyd.getInertia(), bounded.getInertia(), 0.0);
+                assertArrayEquals(what, lloyd.getConvergenceHistory(), bounded.getConvergenceHistory(), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Larger data sets of Gaussian blobs, with every row repeated, clustered to convergence.
+     */
+    @Test
+    public void boundedStrategiesMatchLloydOnBlobs() {
+        for (long seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            int rows = 1000;
+            int columns = 4;
+            double[] values = new double[rows * columns];
+            for (int i = 0; i < rows; i += 2) {
+                int blob = random.nextInt(6);
+                for (int j = 0; j < columns; j++) {
+                    values[i * columns + j] = 3 * ((blob + j) % 3) + random.nextGaussian();
+                }
+                System.arraycopy(values, i * columns, values, (i + 1) * columns, columns);
+            }
+            FeatureMatrix data = new FeatureMatrix(values, rows, columns);
+
+            KMeans lloyd = cluster(data, KMeans.Strategy.LLOYD, 6, seed);
+            for (KMeans.Strategy strategy : BOUNDED) {
+                KMeans bounded = cluster(data, strategy, 6, seed);
+                String what = strategy + " seed=" + seed;
+                assertArrayEquals(what, lloyd.getLabelArray(), bounded.getLabelArray());
+                assertArrayEquals(what, lloyd.getConvergenceHistory(), bounded.getConvergenceHistory(), 0.0);
+            }
+        }
+    }
+}
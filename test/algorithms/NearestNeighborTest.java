@@ -0,0 +1,216 @@
+package edu.nyu.cs.pa.algorithms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.nyu.cs.pa.data.FeatureMatrix;
+
+/**
+ * Checks every nearest neighbor search against a brute force reference.
+ * <p> The points are small integers from a narrow range, so most of them are repeated and many
+ * neighbors are exactly as far from a query as each other. The searches promise the same
+ * neighbors, distances and tie breaks as a full scan, so the comparisons are exact. The masks
+ * cover the default columns, a single column and scattered columns in any order.</p>
+ *
+ * @author ppeirce
+ */
+public class NearestNeighborTest {
+    private static final int COLUMNS = 6;
+    private static final int TRAINING_ROWS = 700;
+    // more than one chunk of the parallel classifier
+    private static final int QUERY_ROWS = 2100;
+    // the queries searched one at a time
+    private static final int SEARCHED_ROWS = 300;
+    private static final int CLUSTERS = 4;
+    private static final int[] KS = {1, 4, 9};
+    private static final FeatureMask[] MASKS = {
+            FeatureMask.range(KNN.FIRST_COMPARED_PARAMETER, COLUMNS),
+            FeatureMask.range(3, 4),
+            FeatureMask.of(0, 3, 5),
+            FeatureMask.of(4, 1),
+    };
+
+    private final Random random = new Random(7);
+    private final FeatureMatrix training = randomRows(TRAINING_ROWS);
+    private final FeatureMatrix queries = randomRows(QUERY_ROWS);
+    private final List<Integer> labels = randomLabels(TRAINING_ROWS);
+
+    private FeatureMatrix randomRows(int rows) {
+        double[] values = new double[rows * COLUMNS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(4) - 1;
+        }
+        return new FeatureMatrix(values, rows, COLUMNS);
+    }
+
+    private List<Integer> randomLabels(int rows) {
+        List<Integer> labels = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            labels.add(random.nextInt(CLUSTERS));
+        }
+        return labels;
+    }
+
+    /**
+     * @return the squared distance added up in ascending column order
+     */
+    private static double squaredDistance(FeatureMatrix a, int aRow, FeatureMatrix b, int bRow, FeatureMask mask) {
+        double sum = 0.0;
+        for (int column = 0; column < COLUMNS; column++) {
+            if (!mask.contains(column)) {
+                continue;
+            }
+            double d = a.get(aRow, column) - b.get(bRow, column);
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the indices of the nearest training points to each of the first queryRows queries,
+     * enough for the largest k, closest first and the lower index first on a tie
+     */
+    private int[][] bruteForce(int queryRows, FeatureMask mask) {
+        int maxK = KS[KS.length - 1];
+        int[][] nearest = new int[queryRows][];
+        final double[] distances = new double[TRAINING_ROWS];
+        Integer[] order = new Integer[TRAINING_ROWS];
+        Comparator<Integer> closestFirst = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byDistance = Double.compare(distances[a], distances[b]);
+                return (byDistance != 0) ? byDistance : Integer.compare(a, b);
+            }
+        };
+        for (int query = 0; query < queryRows; query++) {
+            for (int i = 0; i < TRAINING_ROWS; i++) {
+                distances[i] = squaredDistance(queries, query, training, i, mask);
+                order[i] = i;
+            }
+            Arrays.sort(order, closestFirst);
+            nearest[query] = new int[maxK];
+            for (int i = 0; i < maxK; i++) {
+                nearest[query][i] = order[i];
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return the most common label of the k nearest neighbors, the lowest label on a tie
+     */
+    private int vote(int[] nearest, int k) {
+        int[] counts = new int[CLUSTERS];
+        for (int i = 0; i < k; i++) {
+            counts[labels.get(nearest[i])]++;
+        }
+        int best = 0;
+        for (int label = 1; label < CLUSTERS; label++) {
+            if (counts[label] > counts[best]) {
+                best = label;
+            }
+        }
+        return best;
+    }
+
+    private void assertSame(String what, int query, FeatureMask mask, int[] nearest, TopK found) {
+        assertEquals(what, found.k(), found.sort());
+        for (int i = 0; i < found.k(); i++) {
+            assertEquals(what + " neighbor " + i, nearest[i], found.index(i));
+            assertEquals(what + " neighbor " + i, squaredDistance(queries, query, training, nearest[i], mask), found.distance(i), 0.0);
+        }
+    }
+
+    @Test
+    public void topKKeepsTheNearestWithLowerIndicesFirst() {
+        int[][] nearest = bruteForce(SEARCHED_ROWS, MASKS[0]);
+        TopK neighbors = new TopK(KS[KS.length - 1]);
+        List<Integer> offered = new ArrayList<>();
+        for (int i = 0; i < TRAINING_ROWS; i++) {
+            offered.add(i);
+        }
+        for (int k : KS) {
+            for (int query = 0; query < SEARCHED_ROWS; query++) {
+                Collections.shuffle(offered, random);
+                neighbors.reset(k);
+                for (int i : offered) {
+                    neighbors.offer(i, squaredDistance(queries, query, training, i, MASKS[0]));
+                }
+                assertSame("k=" + k + " query=" + query, query, MASKS[0], nearest[query], neighbors);
+            }
+        }
+    }
+
+    @Test
+    public void kdTreeMatchesBruteForce() {
+        double[] query = new double[COLUMNS];
+        for (FeatureMask mask : MASKS) {
+            int[][] nearest = bruteForce(SEARCHED_ROWS, mask);
+            KdTree tree = new KdTree(training, mask);
+            for (int k : KS) {
+                TopK neighbors = new TopK(k);
+                for (int q = 0; q < SEARCHED_ROWS; q++) {
+                    queries.copyRow(q, query);
+                    tree.nearest(query, neighbors);
+                    assertSame(mask + " k=" + k + " query=" + q, q, mask, nearest[q], neighbors);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void trainingTilesMatchBruteForce() {
+        for (FeatureMask mask : MASKS) {
+            int[][] nearest = bruteForce(SEARCHED_ROWS, mask);
+            TrainingTiles tiles = new TrainingTiles(training, mask);
+            for (int k : KS) {
+                TrainingTiles.Workspace workspace = new TrainingTiles.Workspace(k, COLUMNS);
+                // the last run of queries does not fill the workspace
+                for (int from = 0; from < SEARCHED_ROWS; from += workspace.capacity()) {
+                    int count = Math.min(workspace.capacity(), SEARCHED_ROWS - from);
+                    tiles.nearest(queries, from, count, workspace);
+                    for (int i = 0; i < count; i++) {
+                        int q = from + i;
+                        assertSame(mask + " k=" + k + " query=" + q, q, mask, nearest[q], workspace.neighbors(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The full scan, the k-d tree and the tiles, each on one thread and the last two on several,
+     * give the labels of a vote over the brute force neighbors.
+     */
+    @Test
+    public void everyClassifierGivesTheSameLabels() {
+        for (FeatureMask mask : MASKS) {
+            int[][] nearest = bruteForce(QUERY_ROWS, mask);
+            KNN knn = new KNN();
+            knn.setFeatures(mask);
+            KdTree index = knn.buildIndex(training);
+            TrainingTiles tiles = knn.buildTiles(training);
+            for (int k : KS) {
+                int[] expected = new int[QUERY_ROWS];
+                for (int q = 0; q < QUERY_ROWS; q++) {
+                    expected[q] = vote(nearest[q], k);
+                }
+                String what = mask + " k=" + k;
+                assertArrayEquals(what, expected, knn.classify(k, queries, training, labels));
+                assertArrayEquals(what, expected, knn.classify(k, queries, index, labels));
+                assertArrayEquals(what, expected, knn.classify(k, queries, tiles, labels));
+                assertArrayEquals(what, expected, knn.classifyInParallel(k, queries, index, labels, 3));
+                assertArrayEquals(what, expected, knn.classifyInParallel(k, queries, tiles, labels, 3));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.nyu.cs.pa.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the in-place operations of an {@link OffHeapMatrix} against the same operations on
+ * rows held on the heap. The matrices use chunks of 8 rows, so rows are moved across chunk
+ * boundaries.
+ *
+ * @author ppeirce
+ */
+public class OffHeapMatrixTest {
+    private static final int ROWS_PER_CHUNK = 8;
+
+    private static OffHeapMatrix matrix(List<double[]> rows, int columns) {
+        OffHeapMatrix matrix = new OffHeapMatrix(columns, ROWS_PER_CHUNK);
+        for (double[] row : rows) {
+            matrix.addRow(row);
+        }
+        return matrix;
+    }
+
+    private static void assertRows(List<double[]> expected, OffHeapMatrix actual) {
+        assertEquals(expected.size(), actual.rows());
+        double[] row = new double[actual.columns()];
+        for (int i = 0; i < expected.size(); i++) {
+            actual.copyRow(i, row);
+            assertArrayEquals("row " + i, expected.get(i), row, 0.0);
+        }
+    }
+
+    @Test
+    public void rowsSpanChunks() {
+        List<double[]> rows = new ArrayList<>();
+        for (int i = 0; i < 3 * ROWS_PER_CHUNK + 5; i++) {
+            rows.add(new double[]{i, -i, i * 0.5});
+        }
+        try (OffHeapMatrix matrix = matrix(rows, 3)) {
+            assertRows(rows, matrix);
+            assertEquals(4L * ROWS_PER_CHUNK * 3 * 8, matrix.allocatedBytes());
+        }
+    }
+
+    @Test
+    public void sortRowsOrdersByEachColumnInTurn() {
+        Random random = new Random(5);
+        for (int size : new int[]{0, 1, 2, 17, 100, 1000}) {
+            List<double[]> rows = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                // few distinct first columns, so the later columns break ties
+                rows.add(new double[]{random.nextInt(10), random.nextInt(3), i});
+            }
+            rows.add(new double[]{Double.NaN, 0, -1});
+            try (OffHeapMatrix matrix = matrix(rows, 3)) {
+                matrix.sortRows();
+                Collections.sort(rows, new Comparator<double[]>() {
+                    @Override
+                    public int compare(double[] a, double[] b) {
+                        for (int c = 0; c < a.length; c++) {
+                            int order = Double.compare(a[c], b[c]);
+                            if (order != 0) {
+                                return order;
+                            }
+                        }
+                        return 0;
+                    }
+                });
+                assertRows(rows, matrix);
+            }
+        }
+    }
+
+    @Test
+    public void removeRowsKeepsTheRestInOrder() {
+        List<double[]> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            rows.add(new double[]{i, i * i});
+        }
+        try (OffHeapMatrix matrix = matrix(rows, 2);
+             OffHeapMatrix dropped = new OffHeapMatrix(1)) {
+            for (int row : new int[]{0, 3, 3, 8, 9, 10, 31, 49}) {
+                dropped.addRow(row);
+            }
+            matrix.removeRows(dropped);
+            List<double[]> expected = new ArrayList<>();
+            for (double[] row : rows) {
+                if (Arrays.binarySearch(new int[]{0, 3, 8, 9, 10, 31, 49}, (int) row[0]) < 0) {
+                    expected.add(row);
+                }
+            }
+            assertRows(expected, matrix);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removeRowsRejectsDescendingRows() {
+        try (OffHeapMatrix matrix = new OffHeapMatrix(1);
+             OffHeapMatrix dropped = new OffHeapMatrix(1)) {
+            for (int i = 0; i < 10; i++) {
+                matrix.addRow(i);
+            }
+            dropped.addRow(5);
+            dropped.addRow(2);
+            matrix.removeRows(dropped);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removeRowsRejectsRowsPastTheEnd() {
+        try (OffHeapMatrix matrix = new OffHeapMatrix(1);
+             OffHeapMatrix dropped = new OffHeapMatrix(1)) {
+            matrix.addRow(1);
+            dropped.addRow(1);
+            matrix.removeRows(dropped);
+        }
+    }
+}
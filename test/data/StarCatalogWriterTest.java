@@ -0,0 +1,52 @@
+package edu.nyu.cs.pa.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that converting a CSV file gives a catalog with every row, or no catalog at all.
+ *
+ * @author ppeirce
+ */
+public class StarCatalogWriterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File csv(String... lines) throws IOException {
+        File csv = folder.newFile();
+        Files.write(csv.toPath(), Arrays.asList(lines), StandardCharsets.US_ASCII);
+        return csv;
+    }
+
+    @Test
+    public void convertsEveryLine() throws IOException {
+        File catalog = new File(folder.getRoot(), "stars.bin");
+        assertTrue(StarCatalogWriter.convertCsv(csv("1,2", "3.5,-4", "5,6e2"), catalog, "a", "b"));
+        try (StarCatalog stars = StarCatalog.open(catalog)) {
+            assertEquals(3, stars.rows());
+            assertEquals(3.5, stars.get(1, 0), 0.0);
+            assertEquals(600.0, stars.get(2, 1), 0.0);
+        }
+        assertFalse(new File(catalog.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void badLineLeavesNoCatalog() throws IOException {
+        File catalog = new File(folder.getRoot(), "stars.bin");
+        assertTrue(StarCatalogWriter.convertCsv(csv("1,2"), catalog, "a", "b"));
+        assertFalse(StarCatalogWriter.convertCsv(csv("1,2", "3,1-2", "5,6"), catalog, "a", "b"));
+        assertFalse(catalog.exists());
+        assertFalse(new File(catalog.getPath() + ".part").exists());
+    }
+}
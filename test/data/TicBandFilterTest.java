@@ -0,0 +1,82 @@
+package edu.nyu.cs.pa.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that filtering keeps only stars whose wanted fields are all numbers, and that a failed
+ * filter leaves the previous output alone.
+ *
+ * @author ppeirce
+ */
+public class TicBandFilterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return a band line with the given id and every wanted column set to value
+     */
+    private static String line(long id, String value) {
+        StringBuilder line = new StringBuilder(Long.toString(id));
+        for (int column = 1; column <= 80; column++) {
+            line.append(',');
+            if (column == 64 || column == 66 || column == 68 || column == 70
+                    || column == 72 || column == 77 || column == 79) {
+                line.append(value);
+            } else {
+                line.append('x');
+            }
+        }
+        return line.toString();
+    }
+
+    private File band(String... lines) throws IOException {
+        File band = folder.newFile();
+        Files.write(band.toPath(), Arrays.asList(lines), StandardCharsets.US_ASCII);
+        return band;
+    }
+
+    @Test
+    public void dropsFieldsThatOnlyLookLikeNumbers() throws IOException {
+        File band = band(line(1, "1.5"), line(2, "1-2"), line(3, "e"), line(4, ".-"),
+                line(5, ""), line(6, "-2e3"));
+        File output = new File(folder.getRoot(), "combined.csv");
+        assertTrue(new TicBandFilter().filter(Collections.singletonList(band), output));
+        List<String> kept = Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(Arrays.asList("1.5,1.5,1.5,1.5,1.5,1.5,1.5", "-2e3,-2e3,-2e3,-2e3,-2e3,-2e3,-2e3"), kept);
+
+        final List<Long> ids = new ArrayList<>();
+        new TicBandFilter().readStars(band, new TicBandFilter.StarHandler() {
+            @Override
+            public void star(long ticId, double[] parameters) {
+                ids.add(ticId);
+            }
+        });
+        assertEquals(Arrays.asList(1L, 6L), ids);
+    }
+
+    @Test
+    public void failureKeepsThePreviousOutput() throws IOException {
+        File output = new File(folder.getRoot(), "combined.csv");
+        Files.write(output.toPath(), Collections.singletonList("previous"), StandardCharsets.US_ASCII);
+        File missing = new File(folder.getRoot(), "missing.csv");
+        assertFalse(new TicBandFilter().filter(Arrays.asList(band(line(1, "1")), missing), output));
+        assertEquals(Collections.singletonList("previous"),
+                Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII));
+        assertFalse(new File(output.getPath() + ".part").exists());
+    }
+}
@@ -0,0 +1,140 @@
+package edu.nyu.cs.pa.project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.nyu.cs.pa.data.ColumnStatistics;
+import edu.nyu.cs.pa.data.FeatureMatrix;
+import edu.nyu.cs.pa.data.RowBlockReader;
+
+/**
+ * Stops a block classification of a small synthetic catalog part way, resumes it, and checks
+ * that the labels file and the Earth-like summary are byte for byte those of a run that was
+ * not stopped.
+ * <p> The stopped run reads a copy of the catalog that breaks off after its second block, as a
+ * crash would, and extra labels are appended after its last checkpoint. The three runs use
+ * different numbers of threads, and the blocks are larger than the ranges the summary is split
+ * into, so the result must not depend on the thread count either.</p>
+ *
+ * @author ppeirce
+ */
+public class ClassificationResumeTest {
+    private static final int PLANETS = 80;
+    private static final int STARS = 30000;
+    private static final int BLOCK_ROWS = 12000;
+    private static final int ROWS_BEFORE_FAILURE = 25000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FeatureMatrix planets;
+    private int[] planetLabels;
+    private File catalog;
+
+    @Before
+    public void createData() throws IOException {
+        Random random = new Random(2018);
+        planets = new FeatureMatrix(PLANETS, 7);
+        planetLabels = new int[PLANETS];
+        for (int i = 0; i < PLANETS; i++) {
+            for (int c = 0; c < 7; c++) {
+                planets.set(i, c, random.nextGaussian());
+            }
+            planetLabels[i] = (planets.get(i, 3) < 0.2) ? 0 : 1;
+        }
+        catalog = folder.newFile("stars.csv");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(catalog)))) {
+            for (int i = 0; i < STARS; i++) {
+                StringBuilder line = new StringBuilder();
+                for (int c = 0; c < 7; c++) {
+                    line.append(c == 0 ? "" : ",").append(random.nextGaussian() * 1.5);
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    private ExoplanetAnalyzer analyzer(ExoplanetAnalyzer analyzer, int threads, boolean resume) {
+        analyzer.setPlanetStellarParameters(planets);
+        analyzer.useClusterLabels(planetLabels);
+        analyzer.setClassificationParallelism(threads);
+        analyzer.setBlockRows(BLOCK_ROWS);
+        analyzer.setCheckpointInterval(0);
+        analyzer.setResume(resume);
+        return analyzer;
+    }
+
+    private static byte[] serialized(ColumnStatistics statistics) {
+        ByteBuffer buffer = ByteBuffer.allocate(statistics.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        statistics.writeTo(buffer);
+        return buffer.array();
+    }
+
+    @Test
+    public void resumedRunMatchesUninterruptedRun() throws IOException {
+        File expectedLabels = folder.newFile("expected_labels.txt");
+        File expectedCheckpoint = new File(folder.getRoot(), "expected.checkpoint");
+        ExoplanetAnalyzer uninterrupted = analyzer(new ExoplanetAnalyzer(), 2, false);
+        uninterrupted.classifyStarsInBlocks(catalog, expectedLabels, expectedCheckpoint);
+        ColumnStatistics expected = uninterrupted.getEarthLikeStarStatistics();
+        assertFalse(expectedCheckpoint.exists());
+
+        // the stopped run reads a catalog that ends in a line that cannot be parsed
+        final File broken = folder.newFile("broken.csv");
+        try (BufferedReader in = new BufferedReader(new FileReader(catalog));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(broken)))) {
+            for (int i = 0; i < ROWS_BEFORE_FAILURE; i++) {
+                out.println(in.readLine());
+            }
+            out.println("not,a,star");
+        }
+        File labels = folder.newFile("labels.txt");
+        File checkpoint = new File(folder.getRoot(), "labels.checkpoint");
+        ExoplanetAnalyzer stopped = analyzer(new ExoplanetAnalyzer() {
+            @Override
+            RowBlockReader openTicStellarParameterBlocks(File source, long firstRow) throws IOException {
+                return super.openTicStellarParameterBlocks(broken, firstRow);
+            }
+        }, 1, false);
+        try {
+            stopped.classifyStarsInBlocks(catalog, labels, checkpoint);
+            fail("The broken catalog should stop the classification");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        assertTrue(checkpoint.isFile());
+        // labels written after the last checkpoint, before the crash
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(labels, true), StandardCharsets.US_ASCII)) {
+            out.write("1\n1\n0\n");
+        }
+
+        ExoplanetAnalyzer resumed = analyzer(new ExoplanetAnalyzer(), 3, true);
+        resumed.classifyStarsInBlocks(catalog, labels, checkpoint);
+        ColumnStatistics actual = resumed.getEarthLikeStarStatistics();
+
+        assertFalse(checkpoint.exists());
+        assertArrayEquals(Files.readAllBytes(expectedLabels.toPath()), Files.readAllBytes(labels.toPath()));
+        assertEquals(STARS, Files.readAllLines(labels.toPath()).size());
+        assertArrayEquals(serialized(expected), serialized(actual));
+        for (int c = 0; c < expected.columns(); c++) {
+            for (double q : new double[]{0.05, 0.5, 0.95}) {
+                assertEquals(expected.quantile(c, q), actual.quantile(c, q), 0.0);
+            }
+        }
+    }
+}